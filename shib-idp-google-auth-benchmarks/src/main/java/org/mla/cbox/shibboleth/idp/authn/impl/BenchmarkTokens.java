@@ -0,0 +1,61 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Sample tokens shaped like those issued by Google, shared by the benchmarks.
+ */
+final class BenchmarkTokens {
+    /** Client ID the sample tokens are issued to */
+    static final String CLIENT_ID = "123456789012-abcdefghijklmnopqrstuvwxyz012345.apps.googleusercontent.com";
+
+    /** Constructor */
+    private BenchmarkTokens() {
+
+    }
+
+    /**
+     * Build the claims of a sample ID token
+     *
+     * @return the claims as JSON
+     */
+    static String claims() {
+        final long now = System.currentTimeMillis() / 1000;
+        return "{\"iss\":\"https://accounts.google.com\",\"azp\":\"" + CLIENT_ID + "\",\"aud\":\"" + CLIENT_ID + "\","
+                + "\"sub\":\"110169484474386276334\",\"hd\":\"example.org\",\"email\":\"jane.doe@example.org\","
+                + "\"email_verified\":true,\"at_hash\":\"HK6E_P6Dh8Y93mRNtsDB1Q\",\"name\":\"Jane Doe\","
+                + "\"picture\":\"https://lh3.googleusercontent.com/a/photo.jpg\",\"given_name\":\"Jane\","
+                + "\"family_name\":\"Doe\",\"locale\":\"en\",\"iat\":" + now + ",\"exp\":" + (now + 3600) + "}";
+    }
+
+    /**
+     * Build a sample ID token with a random 2048 bit signature
+     *
+     * @return the encoded ID token
+     */
+    static String idToken() {
+        final BaseEncoding base64Url = BaseEncoding.base64Url().omitPadding();
+        final byte[] signature = new byte[256];
+        new Random(42).nextBytes(signature);
+        return base64Url.encode("{\"alg\":\"RS256\",\"kid\":\"benchmark\",\"typ\":\"JWT\"}".getBytes(StandardCharsets.UTF_8))
+                + "." + base64Url.encode(claims().getBytes(StandardCharsets.UTF_8))
+                + "." + base64Url.encode(signature);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+/**
+ * Work done by {@link GoogleContext} when a login starts: creating the anti forgery state
+ * token and computing the URL the browser is redirected to, and replicating the context
+ * while the user is at Google.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GoogleContextBenchmark {
+    /** Flow execution URL as supplied by Spring Web Flow */
+    static final String FLOW_EXECUTION_URL = "/idp/profile/SAML2/Redirect/SSO?execution=e1s1";
+
+    /** The Google integration */
+    private GoogleIntegration googleIntegration;
+
+    /** The context */
+    private GoogleContext googleContext;
+
+    /** The request starting the login */
+    private MockHttpServletRequest request;
+
+    /** Build the integration, context and request */
+    @Setup
+    public void setup() {
+        this.googleIntegration = new GoogleIntegration()
+                .setOauth2ClientId(BenchmarkTokens.CLIENT_ID)
+                .setOauth2ClientSecret("secret")
+                .setOauth2Url("https://accounts.google.com/o/oauth2/auth")
+                .setTokenEndpoint("https://www.googleapis.com/oauth2/v4/token");
+        this.googleIntegration.initialize();
+
+        this.googleContext = new GoogleContext().setGoogleIntegration(this.googleIntegration);
+        this.googleContext.initializeAntiForgeryStateToken();
+
+        this.request = new MockHttpServletRequest();
+        this.request.setScheme("https");
+        this.request.setServerName("idp.example.org");
+        this.googleContext.googleOauth2Url(this.request, FLOW_EXECUTION_URL);
+    }
+
+    /** Release the integration */
+    @TearDown
+    public void tearDown() {
+        this.googleIntegration.destroy();
+    }
+
+    /**
+     * Compute the Google OAuth2 authentication URL
+     *
+     * @return the URL
+     */
+    @Benchmark
+    public String googleOauth2Url() {
+        return this.googleContext.googleOauth2Url(this.request, FLOW_EXECUTION_URL);
+    }
+
+    /**
+     * Create an anti forgery state token
+     *
+     * @return the token
+     */
+    @Benchmark
+    public String initializeAntiForgeryStateToken() {
+        this.googleContext.initializeAntiForgeryStateToken();
+        return this.googleContext.getAntiForgeryStateToken();
+    }
+
+    /**
+     * Serialize the context and read it back, as a replicated conversation does
+     *
+     * @return the context read back
+     * @throws IOException if the context cannot be serialized
+     * @throws ClassNotFoundException never
+     */
+    @Benchmark
+    public GoogleContext replicate() throws IOException, ClassNotFoundException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (final ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(this.googleContext);
+        }
+        try (final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (GoogleContext) in.readObject();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.api.client.json.JsonObjectParser;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.common.base.Strings;
+
+/**
+ * Decoding of the ID token payload into an {@link OidcIdToken}, comparing the original
+ * split, pad and copy approach with {@link JwtSegmentDecoder}. Run with {@code -prof gc}
+ * to compare the bytes allocated per login.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdTokenDecodeBenchmark {
+    /** Parser for the ID token payload */
+    private JsonObjectParser parser;
+
+    /** Encoded ID token shaped like one issued by Google */
+    private String idToken;
+
+    /** Build the parser and the ID token */
+    @Setup
+    public void setup() {
+        this.parser = new JsonObjectParser(new JacksonFactory());
+        this.idToken = BenchmarkTokens.idToken();
+    }
+
+    /**
+     * Decode the payload as the action originally did
+     *
+     * @return the ID token claims
+     * @throws IOException if the payload cannot be parsed
+     */
+    @Benchmark
+    public OidcIdToken legacyDecode() throws IOException {
+        final String payload = this.idToken.split("\\.")[1];
+        final String padded = Strings.padEnd(payload, payload.length() + (4 - (payload.length() % 4)), '=');
+        final String decoded = new String(DatatypeConverter.parseBase64Binary(padded));
+        return this.parser.parseAndClose(new StringReader(decoded), OidcIdToken.class);
+    }
+
+    /**
+     * Decode the payload by streaming it from the token into the parser
+     *
+     * @return the ID token claims
+     * @throws IOException if the payload cannot be parsed
+     */
+    @Benchmark
+    public OidcIdToken segmentDecode() throws IOException {
+        final JwtSegmentDecoder jwt = new JwtSegmentDecoder(this.idToken);
+        return this.parser.parseAndClose(jwt.openPayload(), StandardCharsets.UTF_8, OidcIdToken.class);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization of {@link GoogleIdPrincipal} as performed on every SSO request that
+ * reads or writes the session.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrincipalSerializerBenchmark {
+    /** The serializer */
+    private GoogleIdPrincipalSerializer serializer;
+
+    /** The principal to serialize */
+    private GoogleIdPrincipal principal;
+
+    /** The principal serialized in the current format */
+    private String serialized;
+
+    /** The principal serialized in the legacy format */
+    private String legacySerialized;
+
+    /**
+     * Build the serializer and the serialized forms
+     *
+     * @throws IOException if the principal cannot be serialized
+     */
+    @Setup
+    public void setup() throws IOException {
+        this.serializer = new GoogleIdPrincipalSerializer();
+        this.principal = new GoogleIdPrincipal("110169484474386276334", "jane.doe@example.org", "Jane Doe");
+        this.serialized = this.serializer.serialize(this.principal);
+        this.legacySerialized = "{\"Google\":\"" + this.principal.serialize().replace("\"", "\\\"") + "\"}";
+    }
+
+    /**
+     * Serialize the principal
+     *
+     * @return the serialized principal
+     * @throws IOException if the principal cannot be serialized
+     */
+    @Benchmark
+    public String serialize() throws IOException {
+        return this.serializer.serialize(this.principal);
+    }
+
+    /**
+     * Deserialize a principal in the current format
+     *
+     * @return the principal
+     * @throws IOException if the principal cannot be deserialized
+     */
+    @Benchmark
+    public GoogleIdPrincipal deserialize() throws IOException {
+        return this.serializer.deserialize(this.serialized);
+    }
+
+    /**
+     * Deserialize a principal in the legacy format
+     *
+     * @return the principal
+     * @throws IOException if the principal cannot be deserialized
+     */
+    @Benchmark
+    public GoogleIdPrincipal deserializeLegacy() throws IOException {
+        return this.serializer.deserialize(this.legacySerialized);
+    }
+
+    /**
+     * Test whether a serialized principal is supported
+     *
+     * @return whether the value is supported
+     */
+    @Benchmark
+    public boolean supports() {
+        return this.serializer.supports(this.serialized);
+    }
+}
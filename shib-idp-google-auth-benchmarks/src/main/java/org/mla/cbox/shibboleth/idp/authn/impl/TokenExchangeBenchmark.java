@@ -0,0 +1,157 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.shibboleth.idp.authn.AuthenticationFlowDescriptor;
+import net.shibboleth.idp.authn.AuthenticationResult;
+import net.shibboleth.idp.authn.context.AuthenticationContext;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A complete login through {@link InitializeGoogleContext} and {@link ProcessRedirectFromGoogle},
+ * exchanging the authorization code at a local stand-in for the Google token endpoint.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenExchangeBenchmark {
+    /** Local stand-in for the token endpoint */
+    private HttpServer server;
+
+    /** The Google integration */
+    private GoogleIntegration googleIntegration;
+
+    /** The authentication flow being attempted */
+    private AuthenticationFlowDescriptor flowDescriptor;
+
+    /**
+     * Start the stand-in token endpoint and build the integration
+     *
+     * @throws IOException if the stand-in cannot be started
+     * @throws ComponentInitializationException if the flow descriptor cannot be initialized
+     */
+    @Setup
+    public void setup() throws IOException, ComponentInitializationException {
+        final byte[] tokenResponse = ("{\"access_token\":\"ya29.benchmark\",\"token_type\":\"Bearer\","
+                + "\"expires_in\":3600,\"id_token\":\"" + BenchmarkTokens.idToken() + "\"}")
+                .getBytes(StandardCharsets.UTF_8);
+
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/token", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                final InputStream body = exchange.getRequestBody();
+                while (body.read() >= 0) {
+                    continue;
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+                exchange.sendResponseHeaders(200, tokenResponse.length);
+                final OutputStream out = exchange.getResponseBody();
+                out.write(tokenResponse);
+                out.close();
+            }
+        });
+        this.server.setExecutor(Executors.newFixedThreadPool(4));
+        this.server.start();
+
+        final String base = "http://127.0.0.1:" + this.server.getAddress().getPort();
+        this.googleIntegration = new GoogleIntegration()
+                .setOauth2ClientId(BenchmarkTokens.CLIENT_ID)
+                .setOauth2ClientSecret("secret")
+                .setOauth2Url(base + "/auth")
+                .setTokenEndpoint(base + "/token");
+        this.googleIntegration.initialize();
+
+        this.flowDescriptor = new AuthenticationFlowDescriptor();
+        this.flowDescriptor.setId("authn/Google");
+        this.flowDescriptor.initialize();
+    }
+
+    /** Stop the stand-in and release the integration */
+    @TearDown
+    public void tearDown() {
+        this.googleIntegration.destroy();
+        this.server.stop(0);
+    }
+
+    /**
+     * Run one login from initialization of the context to the authentication result
+     *
+     * @return the authentication result
+     * @throws ComponentInitializationException if an action cannot be initialized
+     */
+    @Benchmark
+    public AuthenticationResult login() throws ComponentInitializationException {
+        final ProfileRequestContext profileRequestContext = new ProfileRequestContext();
+        final AuthenticationContext authenticationContext =
+                profileRequestContext.getSubcontext(AuthenticationContext.class, true);
+        authenticationContext.setAttemptedFlow(this.flowDescriptor);
+
+        final InitializeGoogleContext initialize = new InitializeGoogleContext();
+        initialize.setGoogleIntegration(this.googleIntegration);
+        initialize.initialize();
+        initialize.execute(profileRequestContext);
+
+        final MockHttpServletRequest redirect = new MockHttpServletRequest();
+        redirect.setScheme("https");
+        redirect.setServerName("idp.example.org");
+        final GoogleContext googleContext = authenticationContext.getSubcontext(GoogleContext.class);
+        googleContext.googleOauth2Url(redirect, GoogleContextBenchmark.FLOW_EXECUTION_URL);
+
+        final MockHttpServletRequest callback = new MockHttpServletRequest();
+        callback.setParameter("state", googleContext.getAntiForgeryStateToken());
+        callback.setParameter("code", "4/benchmark-authorization-code");
+
+        final ProcessRedirectFromGoogle process = new ProcessRedirectFromGoogle();
+        process.setHttpServletRequest(callback);
+        process.initialize();
+        process.execute(profileRequestContext);
+
+        final AuthenticationResult result = authenticationContext.getAuthenticationResult();
+        if (result == null) {
+            throw new IllegalStateException("Login did not produce an authentication result");
+        }
+        return result;
+    }
+}
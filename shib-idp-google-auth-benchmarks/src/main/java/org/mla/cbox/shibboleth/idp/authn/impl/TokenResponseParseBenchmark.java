@@ -0,0 +1,107 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonObjectParser;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.client.util.Key;
+
+/**
+ * Extraction of the id_token from a token endpoint response, comparing binding the whole
+ * response to a {@link GenericJson} with {@link TokenResponseParser}. Run with {@code -prof gc}
+ * to compare the bytes allocated per login.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenResponseParseBenchmark {
+    /** Binding parser, as originally used */
+    private JsonObjectParser jsonParser;
+
+    /** Streaming parser */
+    private TokenResponseParser tokenResponseParser;
+
+    /** Token endpoint response body */
+    private byte[] body;
+
+    /** The token endpoint response as originally bound */
+    public static class TokenResponse extends GenericJson {
+        @Key
+        private String access_token;
+
+        @Key
+        private String token_type;
+
+        @Key
+        private Integer expires_in;
+
+        @Key
+        private String id_token;
+    }
+
+    /** Build the parsers and the response body */
+    @Setup
+    public void setup() {
+        final JacksonFactory jsonFactory = new JacksonFactory();
+        this.jsonParser = new JsonObjectParser(jsonFactory);
+        this.tokenResponseParser = new TokenResponseParser(jsonFactory);
+        this.body = ("{\"access_token\":\"ya29.benchmark\",\"token_type\":\"Bearer\",\"expires_in\":3600,"
+                + "\"scope\":\"openid https://www.googleapis.com/auth/userinfo.email\","
+                + "\"id_token\":\"" + BenchmarkTokens.idToken() + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Bind the whole response and read the id_token from it
+     *
+     * @return the id_token
+     * @throws IOException if the response cannot be parsed
+     */
+    @Benchmark
+    public String bindResponse() throws IOException {
+        return this.jsonParser.parseAndClose(new ByteArrayInputStream(this.body), StandardCharsets.UTF_8,
+                TokenResponse.class).id_token;
+    }
+
+    /**
+     * Stream the id_token out of the response
+     *
+     * @return the id_token
+     * @throws IOException if the response cannot be parsed
+     */
+    @Benchmark
+    public String streamResponse() throws IOException {
+        return this.tokenResponseParser.parseIdToken(new ByteArrayInputStream(this.body), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,407 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Load test of the Google authentication flow against a {@link StandInGoogleServer}, runnable
+ * on a laptop without network access.
+ *
+ * Logins are started at the target rate whatever the time taken by earlier logins, so that
+ * a slowdown shows in the response times rather than lowering the offered load. The response
+ * time of a login is measured from when it was due to start, and includes any time it waited
+ * for a free worker. Logins started during the warm-up are not reported.
+ *
+ * Options are given as --name=value:
+ * <pre>
+ * rate            logins started per second (100)
+ * duration        seconds of measured load (60)
+ * warmup          seconds of load before measuring (10)
+ * workers         threads running logins, the container threads of the IdP (200)
+ * latency         mean token endpoint latency in milliseconds (50)
+ * jitter          maximum deviation from the mean latency in milliseconds (20)
+ * errorRate       fraction of token endpoint queries failing with a 503 (0)
+ * rotation        milliseconds between key rotations, 0 for none (0)
+ * jwksMaxAge      max-age in seconds announced for the key set (3600)
+ * verify          verify ID token signatures (true)
+ * executor        exchange on a GoogleTokenExchangeExecutor (true)
+ * breaker         guard the token endpoint with a GoogleCircuitBreaker (true)
+ * limiter         limit concurrent exchanges with a GoogleConcurrencyLimiter (true)
+ * replay          reject replayed codes and state tokens with a GoogleReplayCache (true)
+ * audit           file the GoogleLoginAuditLog appends to, empty for no audit trail ()
+ * prewarm         open token endpoint connections on redirect with a GoogleConnectionPrewarmer (false)
+ * maxConnections  connections in the GoogleTransportPool (20)
+ * </pre>
+ */
+public final class GoogleLoadTest {
+    /** Options and their defaults */
+    @Nonnull private final Map<String, String> options = new HashMap<String, String>();
+
+    /**
+     * Constructor
+     *
+     * @param args the command line arguments
+     */
+    private GoogleLoadTest(@Nonnull final String[] args) {
+        this.options.put("rate", "100");
+        this.options.put("duration", "60");
+        this.options.put("warmup", "10");
+        this.options.put("workers", "200");
+        this.options.put("latency", "50");
+        this.options.put("jitter", "20");
+        this.options.put("errorRate", "0");
+        this.options.put("rotation", "0");
+        this.options.put("jwksMaxAge", "3600");
+        this.options.put("verify", "true");
+        this.options.put("executor", "true");
+        this.options.put("breaker", "true");
+        this.options.put("limiter", "true");
+        this.options.put("replay", "true");
+        this.options.put("audit", "");
+        this.options.put("prewarm", "false");
+        this.options.put("maxConnections", "20");
+        for (final String arg : args) {
+            final int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split < 0 || !this.options.containsKey(arg.substring(2, split))) {
+                throw new IllegalArgumentException("Unknown option " + arg + ", options are " + this.options.keySet());
+            }
+            this.options.put(arg.substring(2, split), arg.substring(split + 1));
+        }
+    }
+
+    /**
+     * Run the load test and print the report
+     *
+     * @param args the options
+     * @throws Exception if the stand-in or the integration cannot be started
+     */
+    public static void main(final String[] args) throws Exception {
+        new GoogleLoadTest(args).run();
+    }
+
+    /**
+     * Run the load test and print the report
+     *
+     * @throws Exception if the stand-in or the integration cannot be started
+     */
+    private void run() throws Exception {
+        final double rate = Double.parseDouble(this.options.get("rate"));
+        final long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(this.options.get("warmup")));
+        final long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(this.options.get("duration")));
+
+        final StandInGoogleServer google = new StandInGoogleServer()
+                .setLatency(Long.parseLong(this.options.get("latency")))
+                .setLatencyJitter(Long.parseLong(this.options.get("jitter")))
+                .setErrorRate(Double.parseDouble(this.options.get("errorRate")))
+                .setRotationInterval(Long.parseLong(this.options.get("rotation")))
+                .setJwksMaxAge(Long.parseLong(this.options.get("jwksMaxAge")));
+        google.start();
+        try {
+            final Integration integration = new Integration(google);
+            final LoginFlowDriver driver = new LoginFlowDriver(integration.googleIntegration);
+
+            final int workerCount = Integer.parseInt(this.options.get("workers"));
+            final ExecutorService workers = Executors.newFixedThreadPool(workerCount,
+                    new ThreadFactoryBuilder().setNameFormat("login-%d").setDaemon(true).build());
+            final LatencyRecorder responseTime = new LatencyRecorder("login response time");
+            final LatencyRecorder serviceTime = new LatencyRecorder("login service time");
+            final ConcurrentMap<String, AtomicLong> outcomes = new ConcurrentHashMap<String, AtomicLong>();
+            final AtomicLong completed = new AtomicLong();
+
+            System.out.printf("Offering %.0f logins per second for %d s after a %d s warm-up%n", rate,
+                    TimeUnit.NANOSECONDS.toSeconds(duration), TimeUnit.NANOSECONDS.toSeconds(warmup));
+
+            /* Start each login when it is due, whether or not the earlier ones have completed */
+            final long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+            final long start = System.nanoTime();
+            final long measureFrom = start + warmup;
+            final long end = measureFrom + duration;
+            long due = start;
+            while (due < end) {
+                final long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                final long intended = due;
+                final boolean measured = intended >= measureFrom;
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        final long started = System.nanoTime();
+                        final String outcome = driver.login();
+                        final long finished = System.nanoTime();
+                        if (measured) {
+                            responseTime.record(finished - intended);
+                            serviceTime.record(finished - started);
+                            AtomicLong count = outcomes.get(outcome);
+                            if (count == null) {
+                                outcomes.putIfAbsent(outcome, new AtomicLong());
+                                count = outcomes.get(outcome);
+                            }
+                            count.incrementAndGet();
+                            completed.incrementAndGet();
+                        }
+                    }
+                });
+                due += interval;
+            }
+            workers.shutdown();
+            if (!workers.awaitTermination(60, TimeUnit.SECONDS)) {
+                System.out.println("Logins still running 60 s after the end of the load were abandoned");
+            }
+            final long elapsed = System.nanoTime() - measureFrom;
+
+            this.report(rate, elapsed, completed.get(), outcomes, responseTime, serviceTime, driver, google,
+                    integration);
+            integration.destroy();
+        } finally {
+            google.stop();
+        }
+    }
+
+    /**
+     * Print the report
+     *
+     * @param rate the offered rate
+     * @param elapsed the nanoseconds from the end of the warm-up to the last completion
+     * @param completed the number of measured logins completed
+     * @param outcomes the number of logins by outcome
+     * @param responseTime the response times
+     * @param serviceTime the service times
+     * @param driver the driver, holding the step latencies
+     * @param google the stand-in
+     * @param integration the integration under test
+     */
+    private void report(final double rate, final long elapsed, final long completed,
+            @Nonnull final Map<String, AtomicLong> outcomes, @Nonnull final LatencyRecorder responseTime,
+            @Nonnull final LatencyRecorder serviceTime, @Nonnull final LoginFlowDriver driver,
+            @Nonnull final StandInGoogleServer google, @Nonnull final Integration integration) {
+        final double seconds = elapsed / (double) TimeUnit.SECONDS.toNanos(1);
+        final AtomicLong successes = outcomes.get(LoginFlowDriver.SUCCESS);
+
+        System.out.println();
+        System.out.printf("Throughput: %.1f logins/s completed, %.1f logins/s successful, %.0f offered%n",
+                completed / seconds, (successes != null ? successes.get() : 0) / seconds, rate);
+        System.out.println("Outcomes:");
+        for (final Map.Entry<String, AtomicLong> outcome : new TreeMap<String, AtomicLong>(outcomes).entrySet()) {
+            System.out.printf("  %-30s %8d%n", outcome.getKey(), outcome.getValue().get());
+        }
+
+        System.out.println();
+        System.out.println(LatencyRecorder.header());
+        System.out.println(responseTime.report());
+        System.out.println(serviceTime.report());
+        for (final LatencyRecorder step : driver.getStepLatencies()) {
+            System.out.println(step.report());
+        }
+
+        System.out.println();
+        System.out.printf("Stand-in: %d authorizations, %d exchanges, %d injected errors, %d refused, "
+                + "%d key set requests, %d keys generated%n", google.getAuthorizations(), google.getExchanges(),
+                google.getInjectedErrors(), google.getRefusedExchanges(), google.getKeySetRequests(),
+                google.getKeysGenerated());
+        System.out.printf("Transport pool: %d connections, average wait %.2f ms%n",
+                integration.transportPool.getConnectionsInPool(),
+                integration.transportPool.getAverageConnectionWaitTime());
+        if (integration.circuitBreaker != null) {
+            System.out.printf("Circuit breaker: %s, %d logins rejected%n", integration.circuitBreaker.getState(),
+                    integration.metrics.getCircuitBreakerRejectionCount());
+        }
+        if (integration.concurrencyLimiter != null) {
+            System.out.printf("Concurrency limiter: limit %d, %d logins rejected%n",
+                    integration.concurrencyLimiter.getLimit(), integration.metrics.getConcurrencyLimitRejectionCount());
+        }
+        if (integration.replayCache != null) {
+            System.out.printf("Replay cache: %d logins rejected, %d values not remembered%n",
+                    integration.metrics.getReplayCount(), integration.replayCache.getOverflowCount());
+        }
+        if (integration.auditLog != null) {
+            System.out.printf("Audit log: %d records in %d batches, %d dropped, %d failed%n",
+                    integration.auditLog.getWrittenCount(), integration.auditLog.getBatchCount(),
+                    integration.auditLog.getDroppedCount(), integration.auditLog.getFailedCount());
+        }
+        if (integration.connectionPrewarmer != null) {
+            System.out.printf("Connection prewarmer: %d connections opened, %d failed%n",
+                    integration.connectionPrewarmer.getPrewarmCount(),
+                    integration.connectionPrewarmer.getFailureCount());
+        }
+    }
+
+    /** The Google integration under test and its collaborators, configured from the options */
+    private final class Integration {
+        /** The integration */
+        @Nonnull private final GoogleIntegration googleIntegration;
+
+        /** Transport pool */
+        @Nonnull private final GoogleTransportPool transportPool;
+
+        /** Discovery of the stand-in endpoints */
+        @Nonnull private final GoogleDiscoveryCache discovery;
+
+        /** Key cache, null if signatures are not verified */
+        private final GoogleJwksKeyCache keyCache;
+
+        /** Exchange executor, null to exchange on the worker */
+        private final GoogleTokenExchangeExecutor exchangeExecutor;
+
+        /** Circuit breaker, null for none */
+        private final GoogleCircuitBreaker circuitBreaker;
+
+        /** Concurrency limiter, null for none */
+        private final GoogleConcurrencyLimiter concurrencyLimiter;
+
+        /** Replay cache, null for none */
+        private final GoogleReplayCache replayCache;
+
+        /** Audit log, null for none */
+        private final GoogleLoginAuditLog auditLog;
+
+        /** Connection prewarmer, null for none */
+        private final GoogleConnectionPrewarmer connectionPrewarmer;
+
+        /** Metrics */
+        @Nonnull private final JmxGoogleAuthnMetrics metrics;
+
+        /**
+         * Constructor
+         *
+         * @param google the stand-in
+         * @throws IOException if the audit file cannot be opened
+         */
+        private Integration(@Nonnull final StandInGoogleServer google) throws IOException {
+            final int maxConnections = Integer.parseInt(options.get("maxConnections"));
+            this.transportPool = new GoogleTransportPool()
+                    .setMaxConnections(maxConnections)
+                    .setMaxConnectionsPerRoute(maxConnections);
+            this.transportPool.initialize();
+
+            this.discovery = new GoogleDiscoveryCache()
+                    .setDiscoveryUri(google.getDiscoveryUrl())
+                    .setTransportPool(this.transportPool);
+            this.discovery.initialize();
+
+            this.metrics = new JmxGoogleAuthnMetrics().setObjectName(
+                    "org.mla.cbox.shibboleth.idp.authn:type=GoogleAuthnMetrics,name=loadtest");
+            this.metrics.initialize();
+
+            this.googleIntegration = new GoogleIntegration()
+                    .setOauth2ClientId(google.getClientId())
+                    .setOauth2ClientSecret(google.getClientSecret())
+                    .setOauth2Url(google.getBaseUrl() + "/auth")
+                    .setTokenEndpoint(google.getBaseUrl() + "/token")
+                    .setDiscovery(this.discovery)
+                    .setTransportPool(this.transportPool)
+                    .setMetrics(this.metrics);
+
+            if (Boolean.parseBoolean(options.get("verify"))) {
+                this.keyCache = new GoogleJwksKeyCache()
+                        .setJwksUri(google.getBaseUrl() + "/certs")
+                        .setDiscovery(this.discovery)
+                        .setTransportPool(this.transportPool);
+                this.keyCache.initialize();
+                final GoogleIdTokenVerifier verifier = new GoogleIdTokenVerifier().setKeyCache(this.keyCache);
+                verifier.initialize();
+                this.googleIntegration.setIdTokenVerifier(verifier);
+            } else {
+                this.keyCache = null;
+            }
+
+            if (Boolean.parseBoolean(options.get("executor"))) {
+                this.exchangeExecutor = new GoogleTokenExchangeExecutor();
+                this.exchangeExecutor.initialize();
+                this.googleIntegration.setExchangeExecutor(this.exchangeExecutor);
+            } else {
+                this.exchangeExecutor = null;
+            }
+
+            if (Boolean.parseBoolean(options.get("breaker"))) {
+                this.circuitBreaker = new GoogleCircuitBreaker();
+                this.circuitBreaker.initialize();
+                this.googleIntegration.setCircuitBreaker(this.circuitBreaker);
+            } else {
+                this.circuitBreaker = null;
+            }
+
+            if (Boolean.parseBoolean(options.get("limiter"))) {
+                this.concurrencyLimiter = new GoogleConcurrencyLimiter();
+                this.concurrencyLimiter.initialize();
+                this.googleIntegration.setConcurrencyLimiter(this.concurrencyLimiter);
+            } else {
+                this.concurrencyLimiter = null;
+            }
+
+            if (Boolean.parseBoolean(options.get("replay"))) {
+                this.replayCache = new GoogleReplayCache();
+                this.replayCache.initialize();
+                this.googleIntegration.setReplayCache(this.replayCache);
+            } else {
+                this.replayCache = null;
+            }
+
+            if (!options.get("audit").isEmpty()) {
+                this.auditLog = new GoogleLoginAuditLog().setFile(options.get("audit"));
+                this.auditLog.initialize();
+                this.googleIntegration.setAuditLog(this.auditLog);
+            } else {
+                this.auditLog = null;
+            }
+
+            if (Boolean.parseBoolean(options.get("prewarm"))) {
+                this.connectionPrewarmer = new GoogleConnectionPrewarmer();
+                this.connectionPrewarmer.initialize();
+                this.googleIntegration.setConnectionPrewarmer(this.connectionPrewarmer);
+            } else {
+                this.connectionPrewarmer = null;
+            }
+
+            this.googleIntegration.initialize();
+        }
+
+        /** Release the integration and its collaborators */
+        private void destroy() {
+            this.googleIntegration.destroy();
+            if (this.connectionPrewarmer != null) {
+                this.connectionPrewarmer.destroy();
+            }
+            if (this.auditLog != null) {
+                this.auditLog.destroy();
+            }
+            if (this.exchangeExecutor != null) {
+                this.exchangeExecutor.destroy();
+            }
+            if (this.keyCache != null) {
+                this.keyCache.destroy();
+            }
+            this.discovery.destroy();
+            this.metrics.destroy();
+            this.transportPool.destroy();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.idp.authn.AuthenticationFlowDescriptor;
+import net.shibboleth.idp.authn.context.AuthenticationContext;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+import org.opensaml.profile.context.EventContext;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+/**
+ * Drives logins through the states of google-authn-flow.xml: the InitializeGoogleContext
+ * action, the RedirectToGoogle view computing the authorization URL, a browser following
+ * the URL to the authorization endpoint and back, and the ProcessRedirectFromGoogle action.
+ *
+ * The actions are created for each login, as the prototype scoped beans of the flow are.
+ */
+public class LoginFlowDriver {
+    /** Outcome of a login that produced an authentication result */
+    @Nonnull public static final String SUCCESS = "proceed";
+
+    /** Flow execution URL template, completed with the flow execution number */
+    @Nonnull private static final String FLOW_EXECUTION_PATH = "/idp/profile/SAML2/Redirect/SSO?execution=e";
+
+    /** The Google integration under test */
+    @Nonnull private final GoogleIntegration googleIntegration;
+
+    /** The authentication flow being attempted */
+    @Nonnull private final AuthenticationFlowDescriptor flowDescriptor;
+
+    /** Source of flow execution numbers */
+    @Nonnull private final AtomicLong flowExecutions = new AtomicLong();
+
+    /** Time to run InitializeGoogleContext */
+    @Nonnull private final LatencyRecorder initializeLatency = new LatencyRecorder("InitializeGoogleContext");
+
+    /** Time to compute the authorization URL */
+    @Nonnull private final LatencyRecorder redirectLatency = new LatencyRecorder("RedirectToGoogle");
+
+    /** Time for the browser to be sent back by the authorization endpoint */
+    @Nonnull private final LatencyRecorder authorizationLatency = new LatencyRecorder("authorization endpoint");
+
+    /** Time to run ProcessRedirectFromGoogle */
+    @Nonnull private final LatencyRecorder processLatency = new LatencyRecorder("ProcessRedirectFromGoogle");
+
+    /**
+     * Constructor
+     *
+     * @param integration the Google integration under test
+     * @throws ComponentInitializationException if the flow descriptor cannot be initialized
+     */
+    public LoginFlowDriver(@Nonnull final GoogleIntegration integration) throws ComponentInitializationException {
+        this.googleIntegration = integration;
+        this.flowDescriptor = new AuthenticationFlowDescriptor();
+        this.flowDescriptor.setId("authn/Google");
+        this.flowDescriptor.initialize();
+    }
+
+    /**
+     * Run one login
+     *
+     * @return {@link #SUCCESS}, or the event or error that ended the login
+     */
+    @Nonnull public String login() {
+        final ProfileRequestContext profileRequestContext = new ProfileRequestContext();
+        final AuthenticationContext authenticationContext =
+                profileRequestContext.getSubcontext(AuthenticationContext.class, true);
+        authenticationContext.setAttemptedFlow(this.flowDescriptor);
+        final long execution = this.flowExecutions.incrementAndGet();
+
+        try {
+            /* InitializeGoogleContext */
+            long started = System.nanoTime();
+            final MockHttpServletRequest request = new MockHttpServletRequest();
+            request.setScheme("https");
+            request.setServerName("idp.example.org");
+            final InitializeGoogleContext initialize = new InitializeGoogleContext();
+            initialize.setGoogleIntegration(this.googleIntegration);
+            initialize.setHttpServletRequest(request);
+            initialize.initialize();
+            initialize.execute(profileRequestContext);
+            this.initializeLatency.record(System.nanoTime() - started);
+            final String initializeEvent = event(profileRequestContext);
+            if (initializeEvent != null) {
+                return initializeEvent;
+            }
+
+            /* RedirectToGoogle */
+            started = System.nanoTime();
+            final GoogleContext googleContext = authenticationContext.getSubcontext(GoogleContext.class);
+            final String authorizationUrl = googleContext.googleOauth2Url(request,
+                    FLOW_EXECUTION_PATH + execution + "s1");
+            this.redirectLatency.record(System.nanoTime() - started);
+
+            /* The browser at the authorization endpoint */
+            started = System.nanoTime();
+            final String callbackUrl = this.followAuthorization(authorizationUrl);
+            this.authorizationLatency.record(System.nanoTime() - started);
+
+            /* ProcessRedirectFromGoogle */
+            started = System.nanoTime();
+            final MockHttpServletRequest callback = new MockHttpServletRequest();
+            callback.setScheme("https");
+            callback.setServerName("idp.example.org");
+            final String query = callbackUrl.substring(callbackUrl.indexOf('?') + 1);
+            for (final String pair : query.split("&")) {
+                final int split = pair.indexOf('=');
+                if (split > 0) {
+                    callback.setParameter(URLDecoder.decode(pair.substring(0, split), "UTF-8"),
+                            URLDecoder.decode(pair.substring(split + 1), "UTF-8"));
+                }
+            }
+            final ProcessRedirectFromGoogle process = new ProcessRedirectFromGoogle();
+            process.setHttpServletRequest(callback);
+            process.initialize();
+            process.execute(profileRequestContext);
+            this.processLatency.record(System.nanoTime() - started);
+        } catch (IOException | ComponentInitializationException | RuntimeException e) {
+            return e.getClass().getSimpleName();
+        }
+
+        if (authenticationContext.getAuthenticationResult() != null) {
+            return SUCCESS;
+        }
+        final String processEvent = event(profileRequestContext);
+        return processEvent != null ? processEvent : "no result";
+    }
+
+    /**
+     * Get the recorders of the time taken by each step
+     *
+     * @return the recorders in the order of the steps
+     */
+    @Nonnull public LatencyRecorder[] getStepLatencies() {
+        return new LatencyRecorder[] {this.initializeLatency, this.redirectLatency, this.authorizationLatency,
+            this.processLatency, };
+    }
+
+    /**
+     * Follow the authorization URL the way a browser would, up to the redirect back to the IdP
+     *
+     * @param authorizationUrl the authorization URL
+     * @return the redirect URI with the state and code appended by the authorization endpoint
+     * @throws IOException if the authorization endpoint did not redirect back
+     */
+    @Nonnull private String followAuthorization(@Nonnull final String authorizationUrl) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(authorizationUrl).openConnection();
+        connection.setInstanceFollowRedirects(false);
+        try {
+            final int status = connection.getResponseCode();
+            final String location = connection.getHeaderField("Location");
+            if (status != HttpURLConnection.HTTP_MOVED_TEMP || location == null) {
+                throw new IOException("Authorization endpoint answered " + status + " without a redirect");
+            }
+            return location;
+        } finally {
+            /* Drain the body so that the connection is kept alive */
+            final InputStream body = connection.getResponseCode() < 400
+                    ? connection.getInputStream() : connection.getErrorStream();
+            if (body != null) {
+                while (body.read() >= 0) {
+                    continue;
+                }
+                body.close();
+            }
+        }
+    }
+
+    /**
+     * Get the event signalled by the last action
+     *
+     * @param profileRequestContext the profile request context
+     * @return the event, or null if the action proceeded
+     */
+    @Nullable private static String event(@Nonnull final ProfileRequestContext profileRequestContext) {
+        final EventContext eventContext = profileRequestContext.getSubcontext(EventContext.class);
+        if (eventContext == null || eventContext.getEvent() == null) {
+            return null;
+        }
+        final String event = eventContext.getEvent().toString();
+        return SUCCESS.equals(event) ? null : event;
+    }
+}
@@ -0,0 +1,545 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the Google OIDC endpoints: the discovery document, the authorization
+ * endpoint, the token endpoint and the key set.
+ *
+ * The authorization endpoint signs in a synthetic user at once and redirects to the
+ * redirect_uri with a one-time code. The token endpoint exchanges the code for an ID token
+ * signed with RS256 after the configured latency, failing with a 503 at the configured
+ * error rate. Keys are rotated the way Google rotates them: the key set lists the next,
+ * current and previous keys, and tokens are signed with the current key.
+ */
+public class StandInGoogleServer {
+    /** Issuer of the ID tokens, accepted by the default verifier */
+    @Nonnull public static final String ISSUER = "https://accounts.google.com";
+
+    /** Base64url encoding without padding */
+    @Nonnull private static final BaseEncoding BASE64_URL = BaseEncoding.base64Url().omitPadding();
+
+    /** Client ID expected at the endpoints */
+    @Nonnull private String clientId = "loadtest.apps.googleusercontent.com";
+
+    /** Client secret expected at the token endpoint */
+    @Nonnull private String clientSecret = "loadtest-secret";
+
+    /** Mean token endpoint latency in milliseconds */
+    private long latency = 50;
+
+    /** Maximum deviation from the mean token endpoint latency in milliseconds */
+    private long latencyJitter = 20;
+
+    /** Fraction of token endpoint queries answered with a 503 */
+    private double errorRate;
+
+    /** Interval in milliseconds between key rotations, 0 to never rotate */
+    private long rotationInterval;
+
+    /** max-age in seconds announced for the key set */
+    private long jwksMaxAge = 3600;
+
+    /** Number of threads serving requests */
+    private int threads = 64;
+
+    /** Outstanding one-time codes and the redirect_uri each was issued for */
+    @Nonnull private final ConcurrentMap<String, String> codes = new ConcurrentHashMap<String, String>();
+
+    /** Key about to be used, already published */
+    @Nullable private volatile SigningKey nextKey;
+
+    /** Key signing ID tokens */
+    @Nullable private volatile SigningKey currentKey;
+
+    /** Key signing ID tokens before the last rotation, still published */
+    @Nullable private volatile SigningKey previousKey;
+
+    /** Number of keys generated, used in their IDs */
+    @Nonnull private final AtomicLong keysGenerated = new AtomicLong();
+
+    /** Number of authorizations */
+    @Nonnull private final AtomicLong authorizations = new AtomicLong();
+
+    /** Number of successful exchanges */
+    @Nonnull private final AtomicLong exchanges = new AtomicLong();
+
+    /** Number of exchanges answered with an injected error */
+    @Nonnull private final AtomicLong injectedErrors = new AtomicLong();
+
+    /** Number of exchanges refused for an unknown code or client */
+    @Nonnull private final AtomicLong refusedExchanges = new AtomicLong();
+
+    /** Number of key set requests */
+    @Nonnull private final AtomicLong keySetRequests = new AtomicLong();
+
+    /** The HTTP server, null until started */
+    @Nullable private HttpServer server;
+
+    /** Threads serving requests */
+    @Nullable private ExecutorService executor;
+
+    /** Scheduler rotating the keys */
+    @Nullable private ScheduledExecutorService rotator;
+
+    /** Constructor */
+    public StandInGoogleServer() {
+
+    }
+
+    /**
+     * Generate the keys and start serving on an ephemeral local port
+     *
+     * @throws IOException if the server cannot be started
+     * @throws GeneralSecurityException if the keys cannot be generated
+     */
+    public void start() throws IOException, GeneralSecurityException {
+        this.currentKey = this.generateKey();
+        this.nextKey = this.generateKey();
+
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        this.server.createContext("/.well-known/openid-configuration", new DiscoveryHandler());
+        this.server.createContext("/auth", new AuthorizationHandler());
+        this.server.createContext("/token", new TokenHandler());
+        this.server.createContext("/certs", new KeySetHandler());
+        this.executor = Executors.newFixedThreadPool(this.threads,
+                new ThreadFactoryBuilder().setNameFormat("stand-in-google-%d").setDaemon(true).build());
+        this.server.setExecutor(this.executor);
+        this.server.start();
+
+        if (this.rotationInterval > 0) {
+            this.rotator = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("stand-in-google-rotation-%d").setDaemon(true).build());
+            this.rotator.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        rotate();
+                    } catch (GeneralSecurityException e) {
+                        throw new IllegalStateException("Unable to generate a key", e);
+                    }
+                }
+            }, this.rotationInterval, this.rotationInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop serving
+     */
+    public void stop() {
+        if (this.rotator != null) {
+            this.rotator.shutdownNow();
+            this.rotator = null;
+        }
+        if (this.server != null) {
+            this.server.stop(0);
+            this.server = null;
+        }
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Rotate the keys: the next key starts signing, the current key is kept published as
+     * the previous key and a new next key is published
+     *
+     * @throws GeneralSecurityException if the new key cannot be generated
+     */
+    public synchronized void rotate() throws GeneralSecurityException {
+        final SigningKey generated = this.generateKey();
+        this.previousKey = this.currentKey;
+        this.currentKey = this.nextKey;
+        this.nextKey = generated;
+    }
+
+    /**
+     * Get the base URL of the endpoints
+     *
+     * @return the base URL, such as http://127.0.0.1:12345
+     */
+    @Nonnull public String getBaseUrl() {
+        return "http://127.0.0.1:" + this.server.getAddress().getPort();
+    }
+
+    /**
+     * Get the URL of the discovery document
+     *
+     * @return the discovery URL
+     */
+    @Nonnull public String getDiscoveryUrl() {
+        return this.getBaseUrl() + "/.well-known/openid-configuration";
+    }
+
+    @Nonnull public String getClientId() {
+        return this.clientId;
+    }
+
+    @Nonnull public String getClientSecret() {
+        return this.clientSecret;
+    }
+
+    public long getAuthorizations() {
+        return this.authorizations.get();
+    }
+
+    public long getExchanges() {
+        return this.exchanges.get();
+    }
+
+    public long getInjectedErrors() {
+        return this.injectedErrors.get();
+    }
+
+    public long getRefusedExchanges() {
+        return this.refusedExchanges.get();
+    }
+
+    public long getKeySetRequests() {
+        return this.keySetRequests.get();
+    }
+
+    public long getKeysGenerated() {
+        return this.keysGenerated.get();
+    }
+
+    public StandInGoogleServer setClientId(@Nonnull final String id) {
+        this.clientId = id;
+        return this;
+    }
+
+    public StandInGoogleServer setClientSecret(@Nonnull final String secret) {
+        this.clientSecret = secret;
+        return this;
+    }
+
+    public StandInGoogleServer setLatency(final long millis) {
+        this.latency = millis;
+        return this;
+    }
+
+    public StandInGoogleServer setLatencyJitter(final long millis) {
+        this.latencyJitter = millis;
+        return this;
+    }
+
+    public StandInGoogleServer setErrorRate(final double rate) {
+        this.errorRate = rate;
+        return this;
+    }
+
+    public StandInGoogleServer setRotationInterval(final long millis) {
+        this.rotationInterval = millis;
+        return this;
+    }
+
+    public StandInGoogleServer setJwksMaxAge(final long seconds) {
+        this.jwksMaxAge = seconds;
+        return this;
+    }
+
+    public StandInGoogleServer setThreads(final int count) {
+        this.threads = count;
+        return this;
+    }
+
+    /**
+     * Generate a signing key
+     *
+     * @return the key
+     * @throws GeneralSecurityException if RSA keys cannot be generated
+     */
+    @Nonnull private SigningKey generateKey() throws GeneralSecurityException {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048, new SecureRandom());
+        return new SigningKey("stand-in-" + this.keysGenerated.incrementAndGet(), generator.generateKeyPair());
+    }
+
+    /**
+     * Build a signed ID token for a synthetic user
+     *
+     * @param user the number of the user
+     * @return the encoded ID token
+     * @throws GeneralSecurityException if the token cannot be signed
+     */
+    @Nonnull private String idToken(final long user) throws GeneralSecurityException {
+        final SigningKey key = this.currentKey;
+        final long now = System.currentTimeMillis() / 1000;
+        final String header = "{\"alg\":\"RS256\",\"kid\":\"" + key.kid + "\",\"typ\":\"JWT\"}";
+        final String claims = "{\"iss\":\"" + ISSUER + "\",\"azp\":\"" + this.clientId + "\",\"aud\":\""
+                + this.clientId + "\",\"sub\":\"1" + String.format("%020d", user) + "\",\"hd\":\"example.org\","
+                + "\"email\":\"user" + user + "@example.org\",\"email_verified\":true,\"name\":\"User " + user
+                + "\",\"given_name\":\"User\",\"family_name\":\"" + user + "\",\"locale\":\"en\","
+                + "\"iat\":" + now + ",\"exp\":" + (now + 3600) + "}";
+        final String signingInput = BASE64_URL.encode(header.getBytes(StandardCharsets.UTF_8)) + "."
+                + BASE64_URL.encode(claims.getBytes(StandardCharsets.UTF_8));
+
+        final Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(key.keyPair.getPrivate());
+        signature.update(signingInput.getBytes(StandardCharsets.US_ASCII));
+        return signingInput + "." + BASE64_URL.encode(signature.sign());
+    }
+
+    /**
+     * Send a response
+     *
+     * @param exchange the exchange
+     * @param status the HTTP status
+     * @param contentType the content type, null for no body
+     * @param body the body
+     * @throws IOException if the response cannot be sent
+     */
+    private static void respond(@Nonnull final HttpExchange exchange, final int status,
+            @Nullable final String contentType, @Nonnull final String body) throws IOException {
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        if (contentType != null) {
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+        }
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        final OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    /**
+     * Parse URL encoded parameters
+     *
+     * @param encoded the query string or form body, may be null
+     * @return the parameters
+     * @throws UnsupportedEncodingException never, UTF-8 being supported
+     */
+    @Nonnull private static Map<String, String> parameters(@Nullable final String encoded)
+            throws UnsupportedEncodingException {
+        final Map<String, String> parameters = new HashMap<String, String>();
+        if (encoded == null || encoded.isEmpty()) {
+            return parameters;
+        }
+        for (final String pair : encoded.split("&")) {
+            final int split = pair.indexOf('=');
+            if (split > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, split), "UTF-8"),
+                        URLDecoder.decode(pair.substring(split + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Read a request body
+     *
+     * @param exchange the exchange
+     * @return the body as UTF-8
+     * @throws IOException if the body cannot be read
+     */
+    @Nonnull private static String body(@Nonnull final HttpExchange exchange) throws IOException {
+        final InputStream in = exchange.getRequestBody();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+        final byte[] buffer = new byte[512];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encode a JSON web key
+     *
+     * @param key the key, may be null
+     * @return the JSON web key followed by a comma, or an empty string
+     */
+    @Nonnull private static String jwk(@Nullable final SigningKey key) {
+        if (key == null) {
+            return "";
+        }
+        final RSAPublicKey publicKey = (RSAPublicKey) key.keyPair.getPublic();
+        return "{\"kty\":\"RSA\",\"alg\":\"RS256\",\"use\":\"sig\",\"kid\":\"" + key.kid + "\",\"n\":\""
+                + BASE64_URL.encode(unsigned(publicKey.getModulus())) + "\",\"e\":\""
+                + BASE64_URL.encode(unsigned(publicKey.getPublicExponent())) + "\"},";
+    }
+
+    /**
+     * Get the big endian bytes of a positive integer without a sign byte
+     *
+     * @param value the integer
+     * @return the bytes
+     */
+    @Nonnull private static byte[] unsigned(@Nonnull final BigInteger value) {
+        final byte[] bytes = value.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0) {
+            final byte[] trimmed = new byte[bytes.length - 1];
+            System.arraycopy(bytes, 1, trimmed, 0, trimmed.length);
+            return trimmed;
+        }
+        return bytes;
+    }
+
+    /** A signing key and its ID */
+    private static final class SigningKey {
+        /** Key ID */
+        @Nonnull private final String kid;
+
+        /** Key pair */
+        @Nonnull private final KeyPair keyPair;
+
+        /**
+         * Constructor
+         *
+         * @param id the key ID
+         * @param pair the key pair
+         */
+        private SigningKey(@Nonnull final String id, @Nonnull final KeyPair pair) {
+            this.kid = id;
+            this.keyPair = pair;
+        }
+    }
+
+    /** Serves the discovery document */
+    private class DiscoveryHandler implements HttpHandler {
+
+        /** {@inheritDoc} */
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            final String base = getBaseUrl();
+            respond(exchange, 200, "application/json; charset=UTF-8", "{\"issuer\":\"" + ISSUER + "\","
+                    + "\"authorization_endpoint\":\"" + base + "/auth\",\"token_endpoint\":\"" + base + "/token\","
+                    + "\"jwks_uri\":\"" + base + "/certs\"}");
+        }
+    }
+
+    /** Signs in a synthetic user and redirects back with a one-time code */
+    private class AuthorizationHandler implements HttpHandler {
+
+        /** {@inheritDoc} */
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            final Map<String, String> query = parameters(exchange.getRequestURI().getRawQuery());
+            final String redirectUri = query.get("redirect_uri");
+            if (!clientId.equals(query.get("client_id")) || redirectUri == null || query.get("state") == null) {
+                respond(exchange, 400, "text/plain; charset=UTF-8", "invalid_request");
+                return;
+            }
+
+            final String code = "4/" + authorizations.incrementAndGet() + "-"
+                    + Long.toHexString(ThreadLocalRandom.current().nextLong());
+            codes.put(code, redirectUri);
+            exchange.getResponseHeaders().set("Location", redirectUri + (redirectUri.indexOf('?') < 0 ? '?' : '&')
+                    + "state=" + URLEncoder.encode(query.get("state"), "UTF-8")
+                    + "&code=" + URLEncoder.encode(code, "UTF-8"));
+            respond(exchange, 302, null, "");
+        }
+    }
+
+    /** Exchanges one-time codes for signed ID tokens */
+    private class TokenHandler implements HttpHandler {
+
+        /** {@inheritDoc} */
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            final Map<String, String> form = parameters(body(exchange));
+
+            final long delay = latency + (latencyJitter > 0
+                    ? ThreadLocalRandom.current().nextLong(-latencyJitter, latencyJitter + 1) : 0);
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                injectedErrors.incrementAndGet();
+                respond(exchange, 503, "application/json; charset=UTF-8", "{\"error\":\"temporarily_unavailable\"}");
+                return;
+            }
+
+            final String code = form.get("code");
+            final String redirectUri = code != null ? codes.remove(code) : null;
+            if (redirectUri == null || !redirectUri.equals(form.get("redirect_uri"))
+                    || !clientId.equals(form.get("client_id")) || !clientSecret.equals(form.get("client_secret"))
+                    || !"authorization_code".equals(form.get("grant_type"))) {
+                refusedExchanges.incrementAndGet();
+                respond(exchange, 400, "application/json; charset=UTF-8", "{\"error\":\"invalid_grant\"}");
+                return;
+            }
+
+            final String idToken;
+            try {
+                idToken = idToken(Long.parseLong(code.substring(2, code.indexOf('-'))));
+            } catch (GeneralSecurityException e) {
+                respond(exchange, 500, "application/json; charset=UTF-8", "{\"error\":\"server_error\"}");
+                return;
+            }
+            exchanges.incrementAndGet();
+            respond(exchange, 200, "application/json; charset=UTF-8", "{\"access_token\":\"ya29.stand-in\","
+                    + "\"expires_in\":3600,\"scope\":\"openid email profile\",\"token_type\":\"Bearer\","
+                    + "\"id_token\":\"" + idToken + "\"}");
+        }
+    }
+
+    /** Serves the published keys */
+    private class KeySetHandler implements HttpHandler {
+
+        /** {@inheritDoc} */
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            keySetRequests.incrementAndGet();
+            final String keys = jwk(nextKey) + jwk(currentKey) + jwk(previousKey);
+            exchange.getResponseHeaders().set("Cache-Control", "public, max-age=" + jwksMaxAge);
+            respond(exchange, 200, "application/json; charset=UTF-8",
+                    "{\"keys\":[" + keys.substring(0, keys.length() - 1) + "]}");
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.attribute.resolver.dc.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.StringAttributeValue;
+import net.shibboleth.idp.attribute.resolver.AbstractDataConnector;
+import net.shibboleth.idp.attribute.resolver.ResolutionException;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolutionContext;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolverWorkContext;
+import net.shibboleth.idp.authn.AuthenticationResult;
+import net.shibboleth.idp.authn.context.SubjectContext;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+import org.mla.cbox.shibboleth.idp.authn.impl.GoogleIdPrincipal;
+import org.opensaml.messaging.context.BaseContext;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+
+/**
+ * A data connector that produces attributes from the Google ID token claims captured in
+ * the {@link GoogleIdPrincipal} of the authenticated subject.
+ *
+ * The claims are read from the authentication results in the {@link SubjectContext}, so
+ * resolution performs no I/O. Each configured claim produces an attribute with the claim
+ * name as its ID, holding a single string value; email_verified is "true" or "false".
+ * Claims that Google did not assert produce no attribute.
+ */
+public class GoogleClaimsDataConnector extends AbstractDataConnector {
+    /** Claims that can be produced */
+    @Nonnull public static final List<String> SUPPORTED_CLAIMS = Collections.unmodifiableList(Arrays.asList(
+            "sub", "email", "email_verified", "name", "given_name", "family_name", "picture", "locale", "hd"));
+
+    /** Claims produced when none are configured */
+    @Nonnull private static final List<String> DEFAULT_CLAIMS = Arrays.asList("sub", "email", "name");
+
+    /** Claims to produce */
+    @Nonnull private Collection<String> claims = DEFAULT_CLAIMS;
+
+    /** Claims to produce as indexes into SUPPORTED_CLAIMS, computed at initialization */
+    @Nonnull private int[] claimIndexes = new int[0];
+
+    /** Strategy locating the SubjectContext of the request */
+    @Nonnull private Function<AttributeResolutionContext, SubjectContext> subjectContextLookupStrategy =
+            new ProfileRequestSubjectContextLookup();
+
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(GoogleClaimsDataConnector.class);
+
+    /** Constructor */
+    public GoogleClaimsDataConnector() {
+
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        final int[] indexes = new int[this.claims.size()];
+        int i = 0;
+        for (final String claim : this.claims) {
+            final int index = SUPPORTED_CLAIMS.indexOf(claim);
+            if (index < 0) {
+                throw new ComponentInitializationException("Data connector '" + getId()
+                        + "': unsupported claim " + claim + ", supported claims are " + SUPPORTED_CLAIMS);
+            }
+            indexes[i++] = index;
+        }
+        this.claimIndexes = indexes;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nullable protected Map<String, IdPAttribute> doDataConnectorResolve(
+            @Nonnull final AttributeResolutionContext resolutionContext,
+            @Nonnull final AttributeResolverWorkContext workContext) throws ResolutionException {
+
+        final GoogleIdPrincipal principal = this.findPrincipal(resolutionContext);
+        if (principal == null) {
+            log.debug("Data connector '{}': no GoogleIdPrincipal for {}, producing no attributes", getId(),
+                    resolutionContext.getPrincipal());
+            return null;
+        }
+
+        final Map<String, IdPAttribute> attributes = new HashMap<String, IdPAttribute>(this.claimIndexes.length * 2);
+        for (final int index : this.claimIndexes) {
+            final String value = claimValue(principal, index);
+            if (value != null) {
+                final String claim = SUPPORTED_CLAIMS.get(index);
+                final IdPAttribute attribute = new IdPAttribute(claim);
+                attribute.setValues(Collections.singletonList(new StringAttributeValue(value)));
+                attributes.put(claim, attribute);
+            }
+        }
+        log.debug("Data connector '{}': produced {} attributes from the claims of {}", getId(),
+                attributes.size(), principal.getSubClaim());
+        return attributes;
+    }
+
+    /**
+     * Find the GoogleIdPrincipal among the authentication results of the request
+     *
+     * @param resolutionContext the attribute resolution context
+     * @return the principal, or null if the subject was not authenticated by Google
+     */
+    @Nullable private GoogleIdPrincipal findPrincipal(@Nonnull final AttributeResolutionContext resolutionContext) {
+        final SubjectContext subjectContext = this.subjectContextLookupStrategy.apply(resolutionContext);
+        if (subjectContext == null || subjectContext.getAuthenticationResults() == null) {
+            return null;
+        }
+        for (final AuthenticationResult result : subjectContext.getAuthenticationResults().values()) {
+            final Set<GoogleIdPrincipal> principals = result.getSubject().getPrincipals(GoogleIdPrincipal.class);
+            if (!principals.isEmpty()) {
+                return principals.iterator().next();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the value of a claim as an attribute value
+     *
+     * @param principal the principal
+     * @param index the index of the claim in SUPPORTED_CLAIMS
+     * @return the value, or null if the claim was not asserted
+     */
+    @Nullable private static String claimValue(@Nonnull final GoogleIdPrincipal principal, final int index) {
+        switch (index) {
+            case 0:
+                return principal.getSubClaim();
+            case 1:
+                return principal.getEmailClaim();
+            case 2:
+                return principal.getEmailVerifiedClaim() != null ? principal.getEmailVerifiedClaim().toString() : null;
+            case 3:
+                return principal.getNameClaim();
+            case 4:
+                return principal.getGivenNameClaim();
+            case 5:
+                return principal.getFamilyNameClaim();
+            case 6:
+                return principal.getPictureClaim();
+            case 7:
+                return principal.getLocaleClaim();
+            case 8:
+                return principal.getHostedDomainClaim();
+            default:
+                return null;
+        }
+    }
+
+    public GoogleClaimsDataConnector setClaims(@Nullable final Collection<String> produced) {
+        this.claims = produced != null ? new ArrayList<String>(produced) : DEFAULT_CLAIMS;
+        return this;
+    }
+
+    public GoogleClaimsDataConnector setSubjectContextLookupStrategy(
+            @Nonnull final Function<AttributeResolutionContext, SubjectContext> strategy) {
+        this.subjectContextLookupStrategy = strategy;
+        return this;
+    }
+
+    /** Locates the SubjectContext child of the ProfileRequestContext above the resolution context */
+    public static class ProfileRequestSubjectContextLookup
+            implements Function<AttributeResolutionContext, SubjectContext> {
+
+        /** {@inheritDoc} */
+        @Override
+        @Nullable public SubjectContext apply(@Nullable final AttributeResolutionContext input) {
+            BaseContext context = input;
+            while (context != null && !(context instanceof ProfileRequestContext)) {
+                context = context.getParent();
+            }
+            return context != null ? context.getSubcontext(SubjectContext.class) : null;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * The Google OAuth2 authorization URL with its invariant parts precomputed.
+ *
+ * The authorization endpoint, client ID, response type, scope and prompt are encoded once.
+ * The encoded redirect URI up to the flow execution key is cached per host and flow path,
+ * so expanding the template only appends the flow execution key and the state token.
+ */
+@ThreadSafe
+public class AuthorizationUrlTemplate {
+    /** Marker preceding the flow execution key in a flow execution URL */
+    private static final String EXECUTION_PARAMETER = "?execution=";
+
+    /** Encoded event appended to the redirect URI */
+    private static final String ENCODED_EVENT = "%26_eventId%3Dproceed";
+
+    /** Maximum number of cached redirect URI prefixes */
+    private static final int MAX_REDIRECT_PREFIXES = 64;
+
+    /** Authorization endpoint this template was built for */
+    @Nonnull private final String authorizationEndpoint;
+
+    /** Client ID this template was built for */
+    @Nonnull private final String clientId;
+
+    /** Scope this template was built for */
+    @Nonnull private final String scope;
+
+    /** Prompt this template was built for, null if none is sent */
+    @Nullable private final String prompt;
+
+    /** Hosted domain this template was built for, null if none is sent */
+    @Nullable private final String hostedDomain;
+
+    /** Invariant prefix, ending with the redirect_uri parameter name */
+    @Nonnull private final String prefix;
+
+    /** Encoded redirect URI prefixes keyed by scheme, host and flow path */
+    @Nonnull private final ConcurrentMap<String, String> redirectPrefixes =
+            new ConcurrentHashMap<String, String>();
+
+    /**
+     * Constructor
+     *
+     * @param endpoint the authorization endpoint
+     * @param oauth2ClientId the client ID
+     * @param oauth2Scope the space separated scopes
+     * @param oauth2Prompt the prompt, or null to let Google decide
+     * @param domain the hosted domain, or null to accept any Google account
+     */
+    public AuthorizationUrlTemplate(@Nonnull final String endpoint, @Nonnull final String oauth2ClientId,
+            @Nonnull final String oauth2Scope, @Nullable final String oauth2Prompt, @Nullable final String domain) {
+        this.authorizationEndpoint = endpoint;
+        this.clientId = oauth2ClientId;
+        this.scope = oauth2Scope;
+        this.prompt = oauth2Prompt == null || oauth2Prompt.isEmpty() ? null : oauth2Prompt;
+        this.hostedDomain = domain;
+
+        final StringBuilder builder = new StringBuilder(endpoint)
+                .append(endpoint.indexOf('?') < 0 ? '?' : '&')
+                .append("client_id=").append(encode(oauth2ClientId))
+                .append("&response_type=code")
+                .append("&scope=").append(encode(oauth2Scope));
+        if (this.prompt != null) {
+            builder.append("&prompt=").append(encode(this.prompt));
+        }
+        if (domain != null) {
+            builder.append("&hd=").append(encode(domain));
+        }
+        this.prefix = builder.append("&redirect_uri=").toString();
+    }
+
+    /**
+     * Whether this template was built for the given parameters
+     *
+     * @param endpoint the authorization endpoint
+     * @param oauth2ClientId the client ID
+     * @param oauth2Scope the space separated scopes
+     * @param oauth2Prompt the prompt
+     * @param domain the hosted domain
+     * @return true iff the template can be used for these parameters
+     */
+    public boolean matches(@Nonnull final String endpoint, @Nonnull final String oauth2ClientId,
+            @Nonnull final String oauth2Scope, @Nullable final String oauth2Prompt, @Nullable final String domain) {
+        final String normalizedPrompt = oauth2Prompt == null || oauth2Prompt.isEmpty() ? null : oauth2Prompt;
+        return this.authorizationEndpoint.equals(endpoint) && this.clientId.equals(oauth2ClientId)
+                && this.scope.equals(oauth2Scope)
+                && (this.prompt == null ? normalizedPrompt == null : this.prompt.equals(normalizedPrompt))
+                && (this.hostedDomain == null ? domain == null : this.hostedDomain.equals(domain));
+    }
+
+    /**
+     * Expand the template for a flow execution
+     *
+     * @param scheme the scheme of the request to the IdP
+     * @param serverName the host of the request to the IdP
+     * @param flowExecutionUrl the flow execution URL
+     * @param state the anti forgery state token, which must be URL safe
+     * @return the authorization URL
+     */
+    @Nonnull public String expand(@Nonnull final String scheme, @Nonnull final String serverName,
+            @Nonnull final String flowExecutionUrl, @Nonnull final String state) {
+        final int split = flowExecutionUrl.indexOf(EXECUTION_PARAMETER);
+        final String redirectPrefix;
+        final String executionKey;
+        if (split < 0) {
+            redirectPrefix = encode(redirectUri(scheme, serverName, flowExecutionUrl));
+            executionKey = null;
+        } else {
+            final int keyStart = split + EXECUTION_PARAMETER.length();
+            redirectPrefix = this.redirectPrefix(scheme, serverName, flowExecutionUrl, keyStart);
+            final String key = flowExecutionUrl.substring(keyStart);
+            executionKey = isUrlSafe(key) ? key : encode(key);
+        }
+
+        final StringBuilder url = new StringBuilder(this.prefix.length() + redirectPrefix.length()
+                + (executionKey == null ? 0 : executionKey.length() + ENCODED_EVENT.length())
+                + 7 + state.length());
+        url.append(this.prefix).append(redirectPrefix);
+        if (executionKey != null) {
+            url.append(executionKey).append(ENCODED_EVENT);
+        }
+        return url.append("&state=").append(state).toString();
+    }
+
+    /**
+     * Build the redirect URI for a flow execution
+     *
+     * @param scheme the scheme of the request to the IdP
+     * @param serverName the host of the request to the IdP
+     * @param flowExecutionUrl the flow execution URL
+     * @return the redirect URI, not encoded
+     */
+    @Nonnull public static String redirectUri(@Nonnull final String scheme, @Nonnull final String serverName,
+            @Nonnull final String flowExecutionUrl) {
+        return new StringBuilder(scheme.length() + serverName.length() + flowExecutionUrl.length() + 20)
+                .append(scheme).append("://").append(serverName).append(flowExecutionUrl)
+                .append("&_eventId=proceed").toString();
+    }
+
+    /**
+     * Get the encoded redirect URI up to the flow execution key, caching it per host and flow path
+     *
+     * @param scheme the scheme of the request to the IdP
+     * @param serverName the host of the request to the IdP
+     * @param flowExecutionUrl the flow execution URL
+     * @param keyStart the index of the flow execution key in the flow execution URL
+     * @return the encoded redirect URI prefix
+     */
+    @Nonnull private String redirectPrefix(@Nonnull final String scheme, @Nonnull final String serverName,
+            @Nonnull final String flowExecutionUrl, final int keyStart) {
+        final String base = new StringBuilder(scheme.length() + serverName.length() + keyStart + 3)
+                .append(scheme).append("://").append(serverName).append(flowExecutionUrl, 0, keyStart)
+                .toString();
+        String encoded = this.redirectPrefixes.get(base);
+        if (encoded == null) {
+            encoded = encode(base);
+            if (this.redirectPrefixes.size() < MAX_REDIRECT_PREFIXES) {
+                this.redirectPrefixes.putIfAbsent(base, encoded);
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Whether a value consists of unreserved characters only
+     *
+     * @param value the value
+     * @return true iff the value needs no encoding
+     */
+    private static boolean isUrlSafe(@Nonnull final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9'
+                    || c == '-' || c == '_' || c == '.' || c == '~')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * URL encode a value as UTF-8, with spaces encoded as %20
+     *
+     * @param value the value
+     * @return the encoded value
+     */
+    @Nonnull private static String encode(@Nonnull final String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+    }
+}
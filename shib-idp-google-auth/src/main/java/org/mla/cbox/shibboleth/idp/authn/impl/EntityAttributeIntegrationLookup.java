@@ -0,0 +1,96 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.idp.profile.context.RelyingPartyContext;
+
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.schema.XSAny;
+import org.opensaml.core.xml.schema.XSString;
+import org.opensaml.messaging.context.BaseContext;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.opensaml.saml.common.messaging.context.SAMLMetadataContext;
+import org.opensaml.saml.ext.saml2mdattr.EntityAttributes;
+import org.opensaml.saml.saml2.core.Attribute;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.Extensions;
+
+import com.google.common.base.Function;
+
+/**
+ * Looks up the ID of the Google integration requested by the relying party through an
+ * entity attribute in its metadata, such as:
+ * <pre>&lt;saml:Attribute Name="urn:mla:cbox:google-integration"&gt;
+ *     &lt;saml:AttributeValue&gt;integration-id&lt;/saml:AttributeValue&gt;
+ * &lt;/saml:Attribute&gt;</pre>
+ */
+public class EntityAttributeIntegrationLookup implements Function<ProfileRequestContext, String> {
+    /** Name of the entity attribute carrying the integration ID */
+    @Nonnull private String attributeName = "urn:mla:cbox:google-integration";
+
+    /** Constructor */
+    public EntityAttributeIntegrationLookup() {
+
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nullable public String apply(@Nullable final ProfileRequestContext profileRequestContext) {
+        if (profileRequestContext == null) {
+            return null;
+        }
+        final RelyingPartyContext relyingPartyContext = profileRequestContext.getSubcontext(RelyingPartyContext.class);
+        if (relyingPartyContext == null) {
+            return null;
+        }
+        final BaseContext peerContext = relyingPartyContext.getRelyingPartyIdContextTree();
+        if (peerContext == null) {
+            return null;
+        }
+        final SAMLMetadataContext metadataContext = peerContext.getSubcontext(SAMLMetadataContext.class);
+        if (metadataContext == null) {
+            return null;
+        }
+        final EntityDescriptor entity = metadataContext.getEntityDescriptor();
+        if (entity == null || entity.getExtensions() == null) {
+            return null;
+        }
+
+        final Extensions extensions = entity.getExtensions();
+        for (final XMLObject extension : extensions.getUnknownXMLObjects(EntityAttributes.DEFAULT_ELEMENT_NAME)) {
+            for (final Attribute attribute : ((EntityAttributes) extension).getAttributes()) {
+                if (!this.attributeName.equals(attribute.getName())) {
+                    continue;
+                }
+                for (final XMLObject value : attribute.getAttributeValues()) {
+                    if (value instanceof XSString) {
+                        return ((XSString) value).getValue();
+                    } else if (value instanceof XSAny) {
+                        return ((XSAny) value).getTextContent();
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    public EntityAttributeIntegrationLookup setAttributeName(@Nonnull final String name) {
+        this.attributeName = name;
+        return this;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Looks up the local account of a Google subject in a properties file of sub=account lines,
+ * for small deployments and for standing in for a database in tests. The file is read again
+ * when it has changed, at most once per reload interval. While it is missing or unreadable, the
+ * last mappings read stay in use and the file is tried again at the next interval.
+ */
+public class FileIdentityMappingSource implements GoogleIdentityMappingSource {
+    /** Path of the mapping file */
+    @Nullable private String file;
+
+    /** Minimum time in milliseconds between checks of the file for changes */
+    private long reloadInterval = 30000;
+
+    /** Current mappings */
+    @Nonnull private volatile Properties mappings = new Properties();
+
+    /** Modification time of the file when last read */
+    private volatile long fileModified;
+
+    /** Time in milliseconds of the next check of the file for changes */
+    private volatile long nextCheck;
+
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(FileIdentityMappingSource.class);
+
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+
+    /** Constructor */
+    public FileIdentityMappingSource() {
+
+    }
+
+    /**
+     * Read the mapping file
+     *
+     * @throws IOException if the file cannot be read
+     */
+    public void initialize() throws IOException {
+        if (this.file == null) {
+            throw new IllegalArgumentException("A file identity mapping source needs a file");
+        }
+        this.reload();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nullable public String lookup(@Nonnull final String sub) throws IOException {
+        final long now = System.currentTimeMillis();
+        if (now >= this.nextCheck) {
+            this.nextCheck = now + this.reloadInterval;
+            final long modified = new File(this.file).lastModified();
+            if (modified == 0L) {
+                /* Missing, or between being removed and replaced */
+                log.warn("{} Identity mapping file {} is unavailable, keeping the last {} mappings", this.logPrefix,
+                        this.file, this.mappings.size());
+            } else if (modified != this.fileModified) {
+                try {
+                    this.reload();
+                } catch (final IOException e) {
+                    log.warn("{} Unable to reload identity mappings from {}, keeping the last {} mappings",
+                            this.logPrefix, this.file, this.mappings.size(), e);
+                }
+            }
+        }
+        return this.mappings.getProperty(sub);
+    }
+
+    /**
+     * Read the mapping file, replacing the current mappings
+     *
+     * @throws IOException if the file cannot be read
+     */
+    private synchronized void reload() throws IOException {
+        final File mappingFile = new File(this.file);
+        final long modified = mappingFile.lastModified();
+        final Properties loaded = new Properties();
+        try (final Reader in = new InputStreamReader(new FileInputStream(mappingFile), StandardCharsets.UTF_8)) {
+            loaded.load(in);
+        }
+        this.mappings = loaded;
+        this.fileModified = modified;
+        log.info("{} Loaded {} identity mappings from {}", this.logPrefix, loaded.size(), this.file);
+    }
+
+    public FileIdentityMappingSource setFile(@Nonnull final String path) {
+        this.file = path;
+        return this;
+    }
+
+    public FileIdentityMappingSource setReloadInterval(final long millis) {
+        this.reloadInterval = millis;
+        return this;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+
+/**
+ * Events signalled by the Google authentication flow in addition to those in
+ * {@link net.shibboleth.idp.authn.AuthnEventIds}.
+ */
+public final class GoogleAuthnEventIds {
+
+    /** Google is unavailable and the login was failed without contacting it */
+    @Nonnull @NotEmpty public static final String GOOGLE_UNAVAILABLE = "GoogleUnavailable";
+
+    /** Constructor */
+    private GoogleAuthnEventIds() {
+
+    }
+}
@@ -0,0 +1,100 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Receives measurements from the Google authentication flow.
+ *
+ * Methods are called on the login path and so must be cheap, must not allocate and must
+ * not throw. {@link JmxGoogleAuthnMetrics} is the default implementation; another may be
+ * configured to forward measurements to a different metrics registry.
+ */
+@ThreadSafe
+public interface GoogleAuthnMetrics {
+
+    /** Record that a GoogleContext was initialized */
+    void recordContextInitialized();
+
+    /**
+     * Record the time between redirecting the browser to Google and its return
+     *
+     * @param millis the dwell time in milliseconds
+     */
+    void recordCallbackDwell(long millis);
+
+    /**
+     * Record a query to the token endpoint
+     *
+     * @param status the HTTP status, or 0 if no response was received
+     * @param nanos the latency in nanoseconds
+     */
+    void recordTokenEndpointLatency(int status, long nanos);
+
+    /** Record a callback whose anti forgery state token was missing or invalid */
+    void recordStateMismatch();
+
+    /** Record a callback without a one-time authorization code */
+    void recordMissingCode();
+
+    /** Record a callback rejected because its state token or authorization code was seen before */
+    void recordReplay();
+
+    /** Record a login attempt left out of the audit log because its ring was full */
+    void recordAuditRecordDropped();
+
+    /** Record a login failed without contacting Google because the circuit breaker was open */
+    void recordCircuitBreakerRejection();
+
+    /**
+     * Record the current limit on concurrent queries to the token endpoint
+     *
+     * @param limit the limit
+     */
+    void recordConcurrencyLimit(int limit);
+
+    /** Record a login failed without contacting Google because the concurrency limit was reached */
+    void recordConcurrencyLimitRejection();
+
+    /**
+     * Record the decoding of an ID token payload
+     *
+     * @param nanos the decode time in nanoseconds
+     */
+    void recordIdTokenDecode(long nanos);
+
+    /**
+     * Record the serialization of a GoogleIdPrincipal
+     *
+     * @param length the length of the serialized principal in characters
+     */
+    void recordSerializedPrincipalSize(int length);
+
+    /**
+     * Record a lookup of the local account of a Google subject
+     *
+     * @param hit true iff the mapping was cached
+     */
+    void recordIdentityMappingLookup(boolean hit);
+
+    /**
+     * Record a query of the identity mapping source
+     *
+     * @param success true iff the source answered
+     * @param nanos the query time in nanoseconds
+     */
+    void recordIdentityMappingLoad(boolean success, long nanos);
+}
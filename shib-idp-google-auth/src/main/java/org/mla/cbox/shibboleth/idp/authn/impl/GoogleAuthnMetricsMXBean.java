@@ -0,0 +1,138 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.util.Map;
+
+/**
+ * JMX view of the measurements recorded by {@link JmxGoogleAuthnMetrics}.
+ */
+public interface GoogleAuthnMetricsMXBean {
+
+    /**
+     * Get the number of GoogleContexts initialized
+     *
+     * @return the count
+     */
+    long getContextInitializedCount();
+
+    /**
+     * Get the time between redirecting the browser to Google and its return
+     *
+     * @return the dwell time histogram in milliseconds
+     */
+    MetricsHistogram.Snapshot getCallbackDwellMillis();
+
+    /**
+     * Get the token endpoint latency by HTTP status, "0" for queries without a response
+     *
+     * @return the latency histograms in microseconds keyed by status
+     */
+    Map<String, MetricsHistogram.Snapshot> getTokenEndpointLatencyMicros();
+
+    /**
+     * Get the number of callbacks whose anti forgery state token was missing or invalid
+     *
+     * @return the count
+     */
+    long getStateMismatchCount();
+
+    /**
+     * Get the number of callbacks without a one-time authorization code
+     *
+     * @return the count
+     */
+    long getMissingCodeCount();
+
+    /**
+     * Get the number of callbacks whose state token or authorization code was seen before
+     *
+     * @return the count
+     */
+    long getReplayCount();
+
+    /**
+     * Get the number of login attempts left out of the audit log because its ring was full
+     *
+     * @return the count
+     */
+    long getAuditRecordDroppedCount();
+
+    /**
+     * Get the number of logins failed because the circuit breaker was open
+     *
+     * @return the count
+     */
+    long getCircuitBreakerRejectionCount();
+
+    /**
+     * Get the current limit on concurrent queries to the token endpoint
+     *
+     * @return the limit, 0 if no limit has been recorded
+     */
+    int getConcurrencyLimit();
+
+    /**
+     * Get the number of logins failed because the concurrency limit was reached
+     *
+     * @return the count
+     */
+    long getConcurrencyLimitRejectionCount();
+
+    /**
+     * Get the time taken to decode ID token payloads
+     *
+     * @return the decode time histogram in microseconds
+     */
+    MetricsHistogram.Snapshot getIdTokenDecodeMicros();
+
+    /**
+     * Get the length of serialized GoogleIdPrincipals
+     *
+     * @return the length histogram in characters
+     */
+    MetricsHistogram.Snapshot getSerializedPrincipalSize();
+
+    /**
+     * Get the number of lookups of the local account of a Google subject
+     *
+     * @return the count
+     */
+    long getIdentityMappingLookupCount();
+
+    /**
+     * Get the fraction of lookups of local accounts answered from the cache
+     *
+     * @return the hit rate between 0 and 1, or 0 if there was no lookup
+     */
+    double getIdentityMappingHitRate();
+
+    /**
+     * Get the time taken by queries of the identity mapping source
+     *
+     * @return the query time histogram in microseconds
+     */
+    MetricsHistogram.Snapshot getIdentityMappingLoadMicros();
+
+    /**
+     * Get the number of failed queries of the identity mapping source
+     *
+     * @return the count
+     */
+    long getIdentityMappingLoadFailureCount();
+
+    /** Reset all measurements */
+    void reset();
+}
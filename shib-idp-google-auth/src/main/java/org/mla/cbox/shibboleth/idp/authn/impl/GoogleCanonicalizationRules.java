@@ -0,0 +1,281 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.utilities.java.support.collection.Pair;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Rules turning the claims of a {@link GoogleIdPrincipal} into a canonical principal name.
+ *
+ * The name starts from the sub claim, the email claim or the local part of the email claim.
+ * The domain of an email address can then be replaced, or stripped by replacing it with an
+ * empty string, the name lowercased, and regular expression transforms applied in order,
+ * each replacing all matches of its pattern. The rules are compiled into a pipeline once
+ * when the bean is initialized, and the name computed for each claim value is kept in a
+ * bounded cache, so repeated logins by the same account skip the pipeline altogether.
+ *
+ * A Google account may carry an email address its owner has not proven to control, so a
+ * name is only computed from the email claim when the email_verified claim is true. Allowing
+ * unverified addresses lets anyone able to add an address to a Google account log in as the
+ * local user the address names, and is only safe where every address is managed by Google.
+ */
+@ThreadSafe
+public class GoogleCanonicalizationRules {
+    /** Claims a name can start from */
+    public enum Source {
+        /** The sub claim */
+        SUB,
+
+        /** The email claim */
+        EMAIL,
+
+        /** The email claim up to the @ */
+        LOCAL_PART,
+    }
+
+    /** Claim the name starts from */
+    @Nonnull private Source source = Source.SUB;
+
+    /** Replacement of email domains, an empty replacement stripping the domain */
+    @Nonnull private Map<String, String> domainMappings = Collections.emptyMap();
+
+    /** Whether to lowercase the name */
+    private boolean lowercase;
+
+    /** Whether to compute names from email addresses Google has not verified */
+    private boolean allowUnverifiedEmail;
+
+    /** Regular expressions and their replacements, applied in order */
+    @Nonnull private List<Pair<String, String>> transforms = Collections.emptyList();
+
+    /** Maximum number of names cached */
+    private long cacheSize = 10000;
+
+    /** Compiled steps applied to the claim value */
+    @Nonnull private List<Function<String, String>> pipeline = Collections.emptyList();
+
+    /** Names computed by the pipeline, keyed by claim value */
+    @Nullable private Cache<String, String> names;
+
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(GoogleCanonicalizationRules.class);
+
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+
+    /** Constructor */
+    public GoogleCanonicalizationRules() {
+
+    }
+
+    /**
+     * Compile the rules into a pipeline
+     */
+    public void initialize() {
+        final List<Function<String, String>> steps = new ArrayList<Function<String, String>>();
+        if (this.source == Source.LOCAL_PART) {
+            steps.add(new LocalPart());
+        } else if (!this.domainMappings.isEmpty()) {
+            steps.add(new DomainMapping(this.domainMappings));
+        }
+        if (this.lowercase) {
+            steps.add(new Lowercase());
+        }
+        for (final Pair<String, String> transform : this.transforms) {
+            steps.add(new Transform(Pattern.compile(transform.getFirst()), transform.getSecond()));
+        }
+        this.pipeline = steps;
+        this.names = this.cacheSize > 0 && !steps.isEmpty()
+                ? CacheBuilder.newBuilder().maximumSize(this.cacheSize).<String, String>build() : null;
+        log.debug("{} Canonicalizing the {} claim in {} steps", this.logPrefix, this.source, steps.size());
+    }
+
+    /**
+     * Compute the canonical name of a principal
+     *
+     * @param principal the principal
+     * @return the name, or null if the principal lacks the claim the name starts from, the email
+     *          address it starts from is not verified, or the name is empty
+     */
+    @Nullable public String canonicalize(@Nonnull final GoogleIdPrincipal principal) {
+        final String claim = this.source == Source.SUB ? principal.getSubClaim() : principal.getEmailClaim();
+        if (claim == null || claim.isEmpty()) {
+            return null;
+        }
+        if (this.source != Source.SUB && !this.allowUnverifiedEmail
+                && !Boolean.TRUE.equals(principal.getEmailVerifiedClaim())) {
+            log.warn("{} Email address {} of subject {} is not verified", this.logPrefix, claim,
+                    principal.getSubClaim());
+            return null;
+        }
+
+        final Cache<String, String> cache = this.names;
+        String name = cache != null ? cache.getIfPresent(claim) : null;
+        if (name == null) {
+            name = claim;
+            for (final Function<String, String> step : this.pipeline) {
+                name = step.apply(name);
+            }
+            if (cache != null) {
+                cache.put(claim, name);
+            }
+            log.debug("{} Canonicalized {} to {}", this.logPrefix, claim, name);
+        }
+
+        return name.isEmpty() ? null : name;
+    }
+
+    /**
+     * Get the claim the name starts from
+     *
+     * @return the source
+     */
+    @Nonnull public Source getSource() {
+        return this.source;
+    }
+
+    public GoogleCanonicalizationRules setSource(@Nonnull final Source claim) {
+        this.source = claim;
+        return this;
+    }
+
+    public GoogleCanonicalizationRules setDomainMappings(@Nullable final Map<String, String> mappings) {
+        final Map<String, String> lowercased = new HashMap<String, String>();
+        if (mappings != null) {
+            for (final Map.Entry<String, String> mapping : mappings.entrySet()) {
+                lowercased.put(mapping.getKey().toLowerCase(Locale.ROOT), mapping.getValue());
+            }
+        }
+        this.domainMappings = lowercased;
+        return this;
+    }
+
+    public GoogleCanonicalizationRules setLowercase(final boolean flag) {
+        this.lowercase = flag;
+        return this;
+    }
+
+    public GoogleCanonicalizationRules setTransforms(@Nullable final Collection<Pair<String, String>> patterns) {
+        this.transforms = patterns != null ? new ArrayList<Pair<String, String>>(patterns)
+                : Collections.<Pair<String, String>>emptyList();
+        return this;
+    }
+
+    public GoogleCanonicalizationRules setAllowUnverifiedEmail(final boolean flag) {
+        this.allowUnverifiedEmail = flag;
+        return this;
+    }
+
+    public GoogleCanonicalizationRules setCacheSize(final long size) {
+        this.cacheSize = size;
+        return this;
+    }
+
+    /** Keeps the part of an email address before the @ */
+    private static final class LocalPart implements Function<String, String> {
+        /** {@inheritDoc} */
+        @Override
+        public String apply(final String email) {
+            final int at = email.lastIndexOf('@');
+            return at >= 0 ? email.substring(0, at) : email;
+        }
+    }
+
+    /** Replaces the domain of an email address */
+    private static final class DomainMapping implements Function<String, String> {
+        /** Replacement domains keyed by lowercased domain */
+        @Nonnull private final Map<String, String> mappings;
+
+        /**
+         * Constructor
+         *
+         * @param domainMappings replacement domains keyed by lowercased domain
+         */
+        private DomainMapping(@Nonnull final Map<String, String> domainMappings) {
+            this.mappings = domainMappings;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String apply(final String email) {
+            final int at = email.lastIndexOf('@');
+            if (at < 0) {
+                return email;
+            }
+            final String replacement = this.mappings.get(email.substring(at + 1).toLowerCase(Locale.ROOT));
+            if (replacement == null) {
+                return email;
+            }
+            return replacement.isEmpty() ? email.substring(0, at) : email.substring(0, at + 1) + replacement;
+        }
+    }
+
+    /** Lowercases the name */
+    private static final class Lowercase implements Function<String, String> {
+        /** {@inheritDoc} */
+        @Override
+        public String apply(final String name) {
+            return name.toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /** Replaces all matches of a regular expression */
+    private static final class Transform implements Function<String, String> {
+        /** Compiled regular expression */
+        @Nonnull private final Pattern pattern;
+
+        /** Replacement, which may refer to groups of the expression */
+        @Nonnull private final String replacement;
+
+        /**
+         * Constructor
+         *
+         * @param regex compiled regular expression
+         * @param replace replacement
+         */
+        private Transform(@Nonnull final Pattern regex, @Nonnull final String replace) {
+            this.pattern = regex;
+            this.replacement = replace;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String apply(final String name) {
+            final Matcher matcher = this.pattern.matcher(name);
+            return matcher.find() ? matcher.replaceAll(this.replacement) : name;
+        }
+    }
+}
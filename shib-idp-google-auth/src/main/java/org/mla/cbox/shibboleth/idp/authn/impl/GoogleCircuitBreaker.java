@@ -0,0 +1,309 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker around the Google token endpoint.
+ *
+ * The outcomes of the most recent queries are kept in a fixed window. Once the window holds
+ * enough queries and the proportion that failed, or that took longer than the slow call
+ * duration, reaches its threshold, the breaker opens and logins fail without querying Google.
+ * After the open duration the breaker is half open and admits a single probe query, refusing
+ * the others while it is out; its outcome closes the breaker if the query succeeded promptly
+ * and reopens it otherwise. A caller admitted but not making the query after all must
+ * {@link #cancel()} its admission, and a probe whose outcome has not been recorded within
+ * the open duration is given up, so the breaker cannot stay half open for good.
+ *
+ * Logins are checked with {@link #allowLogin()} before the browser is sent to Google, so that
+ * users do not sign in at Google only to have the exchange refused. While the breaker is half
+ * open a single login is sent, to make the probe, and another only once the open duration has
+ * passed without the probe deciding the state.
+ *
+ * A query fails if no response was received or Google answered with a server error. Client
+ * errors such as an invalid authorization code show that the endpoint is healthy.
+ */
+@ThreadSafe
+public class GoogleCircuitBreaker {
+
+    /** State of the breaker */
+    public enum State {
+        /** Queries are admitted and their outcomes recorded */
+        CLOSED,
+
+        /** Queries are refused */
+        OPEN,
+
+        /** A single probe query is admitted and its outcome decides whether to close */
+        HALF_OPEN
+    }
+
+    /** Number of outcomes in the window */
+    private int windowSize = 20;
+
+    /** Number of outcomes required before the breaker may open */
+    private int minimumCalls = 10;
+
+    /** Percentage of failed queries at which the breaker opens */
+    private int failureRateThreshold = 50;
+
+    /** Duration in milliseconds from which a query is slow */
+    private long slowCallDuration = 5000;
+
+    /** Percentage of slow queries at which the breaker opens */
+    private int slowCallRateThreshold = 80;
+
+    /** Duration in milliseconds the breaker stays open before admitting queries again */
+    private long openDuration = 30000;
+
+    /** Current state */
+    @Nonnull private volatile State state = State.CLOSED;
+
+    /** Time in milliseconds at which the breaker last opened */
+    private volatile long openedAt;
+
+    /** Time in milliseconds at which the probe of the half open breaker was admitted, 0 if none is out */
+    private long probeAdmittedAt;
+
+    /** Time in milliseconds at which a login was sent to Google to make the probe, 0 if none was */
+    private long probeLoginAt;
+
+    /** Whether each query in the window failed */
+    @Nonnull private boolean[] failed = new boolean[this.windowSize];
+
+    /** Whether each query in the window was slow */
+    @Nonnull private boolean[] slow = new boolean[this.windowSize];
+
+    /** Position of the next outcome in the window */
+    private int position;
+
+    /** Number of outcomes in the window */
+    private int calls;
+
+    /** Number of failed queries in the window */
+    private int failures;
+
+    /** Number of slow queries in the window */
+    private int slowCalls;
+
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(GoogleCircuitBreaker.class);
+
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+
+    /** Constructor */
+    public GoogleCircuitBreaker() {
+
+    }
+
+    /**
+     * Initialize the window to the configured size
+     */
+    public synchronized void initialize() {
+        this.failed = new boolean[this.windowSize];
+        this.slow = new boolean[this.windowSize];
+        this.clear();
+    }
+
+    /**
+     * Whether a login may be sent to Google, moving the breaker to half open once the open duration
+     * has passed. While half open only the login that is to make the probe is allowed.
+     *
+     * @return true iff the login may proceed
+     */
+    public boolean allowLogin() {
+        if (this.state == State.CLOSED) {
+            return true;
+        }
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            this.halfOpenIfDue(now);
+            if (this.state == State.HALF_OPEN) {
+                if (this.probeLoginAt != 0 && now - this.probeLoginAt < this.openDuration) {
+                    return false;
+                }
+                this.probeLoginAt = now;
+                return true;
+            }
+            return this.state == State.CLOSED;
+        }
+    }
+
+    /**
+     * Whether a query may be made, moving the breaker to half open once the open duration has passed.
+     * An admitted query must either have its outcome recorded or be cancelled.
+     *
+     * @return true iff the query is admitted
+     */
+    public boolean allowRequest() {
+        if (this.state == State.CLOSED) {
+            return true;
+        }
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            this.halfOpenIfDue(now);
+            if (this.state == State.HALF_OPEN) {
+                if (this.probeAdmittedAt != 0 && now - this.probeAdmittedAt < this.openDuration) {
+                    return false;
+                }
+                this.probeAdmittedAt = now;
+                return true;
+            }
+            return this.state == State.CLOSED;
+        }
+    }
+
+    /**
+     * Give up an admission for a query that will not be made, letting another caller probe
+     * a half open breaker
+     */
+    public synchronized void cancel() {
+        if (this.state == State.HALF_OPEN) {
+            this.probeAdmittedAt = 0;
+        }
+    }
+
+    /**
+     * Record the outcome of a query
+     *
+     * @param success whether a response other than a server error was received
+     * @param nanos the duration of the query in nanoseconds
+     */
+    public synchronized void record(final boolean success, final long nanos) {
+        final boolean wasSlow = TimeUnit.NANOSECONDS.toMillis(nanos) >= this.slowCallDuration;
+
+        if (this.state == State.HALF_OPEN) {
+            this.probeAdmittedAt = 0;
+            if (success && !wasSlow) {
+                this.state = State.CLOSED;
+                this.clear();
+                log.info("{} Closed, Google token endpoint has recovered", this.logPrefix);
+            } else {
+                this.open();
+            }
+            return;
+        }
+        if (this.state == State.OPEN) {
+            return;
+        }
+
+        if (this.calls == this.failed.length) {
+            if (this.failed[this.position]) {
+                this.failures--;
+            }
+            if (this.slow[this.position]) {
+                this.slowCalls--;
+            }
+        } else {
+            this.calls++;
+        }
+        this.failed[this.position] = !success;
+        this.slow[this.position] = wasSlow;
+        if (!success) {
+            this.failures++;
+        }
+        if (wasSlow) {
+            this.slowCalls++;
+        }
+        this.position = (this.position + 1) % this.failed.length;
+
+        if (this.calls >= this.minimumCalls && (this.failures * 100 >= this.failureRateThreshold * this.calls
+                || this.slowCalls * 100 >= this.slowCallRateThreshold * this.calls)) {
+            this.open();
+        }
+    }
+
+    /**
+     * Get the current state
+     *
+     * @return the state
+     */
+    @Nonnull public State getState() {
+        return this.state;
+    }
+
+    /**
+     * Move the breaker to half open if it has been open for the open duration
+     *
+     * @param now the current time in milliseconds
+     */
+    private void halfOpenIfDue(final long now) {
+        if (this.state == State.OPEN && now - this.openedAt >= this.openDuration) {
+            this.state = State.HALF_OPEN;
+            this.probeAdmittedAt = 0;
+            this.probeLoginAt = 0;
+            log.info("{} Half open, admitting a probe query to the Google token endpoint", this.logPrefix);
+        }
+    }
+
+    /** Open the breaker, discarding the window */
+    private void open() {
+        log.warn("{} Open for {} ms after {} failed and {} slow of {} queries to the Google token endpoint",
+                this.logPrefix, this.openDuration, this.failures, this.slowCalls, this.calls);
+        this.state = State.OPEN;
+        this.openedAt = System.currentTimeMillis();
+        this.clear();
+    }
+
+    /** Discard the window */
+    private void clear() {
+        for (int i = 0; i < this.failed.length; i++) {
+            this.failed[i] = false;
+            this.slow[i] = false;
+        }
+        this.position = 0;
+        this.calls = 0;
+        this.failures = 0;
+        this.slowCalls = 0;
+    }
+
+    public GoogleCircuitBreaker setWindowSize(final int size) {
+        this.windowSize = size;
+        return this;
+    }
+
+    public GoogleCircuitBreaker setMinimumCalls(final int calls) {
+        this.minimumCalls = calls;
+        return this;
+    }
+
+    public GoogleCircuitBreaker setFailureRateThreshold(final int percentage) {
+        this.failureRateThreshold = percentage;
+        return this;
+    }
+
+    public GoogleCircuitBreaker setSlowCallDuration(final long millis) {
+        this.slowCallDuration = millis;
+        return this;
+    }
+
+    public GoogleCircuitBreaker setSlowCallRateThreshold(final int percentage) {
+        this.slowCallRateThreshold = percentage;
+        return this;
+    }
+
+    public GoogleCircuitBreaker setOpenDuration(final long millis) {
+        this.openDuration = millis;
+        return this;
+    }
+}
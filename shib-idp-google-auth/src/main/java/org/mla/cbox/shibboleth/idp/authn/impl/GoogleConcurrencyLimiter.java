@@ -0,0 +1,279 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adaptive limit on the number of concurrent queries to the Google token endpoint.
+ *
+ * The limit is learned from the latency of the queries with a gradient algorithm. A long
+ * term average of the latency stands for the latency of an unloaded endpoint; each query
+ * faster than the average times the tolerance lets the limit grow by about its square
+ * root, and each slower query shrinks it in proportion to how much slower it was, down
+ * to half, however small the limit already is. A failed query shrinks the limit by the backoff ratio. The limit only grows
+ * while at least half of it is in use, so an idle period does not inflate it.
+ *
+ * A query beyond the limit waits up to the maximum wait for another to finish, with at
+ * most the queue size queries waiting. Beyond that it is rejected immediately.
+ */
+@ThreadSafe
+public class GoogleConcurrencyLimiter {
+    /** Limit before any query has been measured */
+    private int initialLimit = 10;
+
+    /** Lowest limit */
+    private int minLimit = 2;
+
+    /** Highest limit */
+    private int maxLimit = 64;
+
+    /** Maximum number of queries waiting for the limit */
+    private int queueSize = 8;
+
+    /** Maximum time in milliseconds a query waits for the limit */
+    private long maxWait = 200;
+
+    /** Ratio of the long term latency from which a query counts as slower */
+    private double tolerance = 1.5;
+
+    /** Weight of each new limit in the smoothed limit */
+    private double smoothing = 0.2;
+
+    /** Factor applied to the limit when a query fails */
+    private double backoffRatio = 0.9;
+
+    /** Number of queries over which the long term latency is averaged */
+    private int longWindow = 600;
+
+    /** Guards the counts and the limit */
+    @Nonnull private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signalled when a query finishes or the limit grows */
+    @Nonnull private final Condition available = this.lock.newCondition();
+
+    /** Current limit, fractional so that it can move by less than one query */
+    private double limit = this.initialLimit;
+
+    /** Current limit as a whole number of queries, readable without the lock */
+    private volatile int currentLimit = this.initialLimit;
+
+    /** Queries in progress */
+    private volatile int inFlight;
+
+    /** Queries waiting for the limit */
+    private int waiting;
+
+    /** Long term average latency in nanoseconds, 0 before the first query */
+    private double longLatency;
+
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(GoogleConcurrencyLimiter.class);
+
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+
+    /** Constructor */
+    public GoogleConcurrencyLimiter() {
+
+    }
+
+    /**
+     * Start from the initial limit
+     */
+    public void initialize() {
+        this.lock.lock();
+        try {
+            this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, this.initialLimit));
+            this.currentLimit = (int) this.limit;
+            this.longLatency = 0;
+        } finally {
+            this.lock.unlock();
+        }
+        log.debug("{} Initialized with limit {} between {} and {}", this.logPrefix, this.currentLimit,
+                this.minLimit, this.maxLimit);
+    }
+
+    /**
+     * Acquire a permit for a query, waiting a bounded time if the limit is reached. A permit
+     * acquired must be returned with {@link #release()}.
+     *
+     * @return true iff the permit was acquired, false if the query is rejected
+     */
+    public boolean acquire() {
+        this.lock.lock();
+        try {
+            if (this.inFlight < this.currentLimit) {
+                this.inFlight++;
+                return true;
+            }
+            if (this.waiting >= this.queueSize) {
+                return false;
+            }
+
+            this.waiting++;
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(this.maxWait);
+                while (this.inFlight >= this.currentLimit) {
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    remaining = this.available.awaitNanos(remaining);
+                }
+                this.inFlight++;
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                this.waiting--;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Return a permit acquired with {@link #acquire()}
+     */
+    public void release() {
+        this.lock.lock();
+        try {
+            this.inFlight--;
+            this.available.signal();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Adjust the limit to the outcome of a query
+     *
+     * @param success whether a response other than a server error was received
+     * @param nanos the duration of the query in nanoseconds
+     */
+    public void record(final boolean success, final long nanos) {
+        this.lock.lock();
+        try {
+            final int previous = this.currentLimit;
+            if (!success) {
+                this.limit = Math.max(this.minLimit, this.limit * this.backoffRatio);
+            } else if (nanos > 0) {
+                if (this.longLatency == 0) {
+                    this.longLatency = nanos;
+                } else {
+                    this.longLatency += (nanos - this.longLatency) / this.longWindow;
+                    /* Let the average follow a lasting fall in latency quickly */
+                    if (this.longLatency > 2 * nanos) {
+                        this.longLatency *= 0.95;
+                    }
+                }
+
+                final double gradient = Math.max(0.5, Math.min(1.0, this.tolerance * this.longLatency / nanos));
+                /* Only a query within the tolerance earns room to grow, so that a slower one always
+                 * shrinks the limit, including the small limits the square root would outweigh
+                 */
+                double target = gradient < 1.0 ? this.limit * gradient : this.limit + Math.sqrt(this.limit);
+                if (this.inFlight * 2 < this.limit) {
+                    target = Math.min(target, this.limit);
+                }
+                this.limit = Math.max(this.minLimit, Math.min(this.maxLimit,
+                        this.limit * (1 - this.smoothing) + target * this.smoothing));
+            }
+
+            this.currentLimit = (int) this.limit;
+            if (this.currentLimit > previous) {
+                this.available.signalAll();
+            }
+            if (this.currentLimit != previous && log.isDebugEnabled()) {
+                log.debug("{} Limit changed from {} to {}, {} queries in progress", this.logPrefix, previous,
+                        this.currentLimit, this.inFlight);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the current limit
+     *
+     * @return the maximum number of concurrent queries
+     */
+    public int getLimit() {
+        return this.currentLimit;
+    }
+
+    /**
+     * Get the number of queries in progress
+     *
+     * @return the number of permits held
+     */
+    public int getInFlight() {
+        return this.inFlight;
+    }
+
+    public GoogleConcurrencyLimiter setInitialLimit(final int initial) {
+        this.initialLimit = initial;
+        return this;
+    }
+
+    public GoogleConcurrencyLimiter setMinLimit(final int min) {
+        this.minLimit = min;
+        return this;
+    }
+
+    public GoogleConcurrencyLimiter setMaxLimit(final int max) {
+        this.maxLimit = max;
+        return this;
+    }
+
+    public GoogleConcurrencyLimiter setQueueSize(final int size) {
+        this.queueSize = size;
+        return this;
+    }
+
+    public GoogleConcurrencyLimiter setMaxWait(final long millis) {
+        this.maxWait = millis;
+        return this;
+    }
+
+    public GoogleConcurrencyLimiter setTolerance(final double ratio) {
+        this.tolerance = ratio;
+        return this;
+    }
+
+    public GoogleConcurrencyLimiter setSmoothing(final double weight) {
+        this.smoothing = weight;
+        return this;
+    }
+
+    public GoogleConcurrencyLimiter setBackoffRatio(final double ratio) {
+        this.backoffRatio = ratio;
+        return this;
+    }
+
+    public GoogleConcurrencyLimiter setLongWindow(final int queries) {
+        this.longWindow = queries;
+        return this;
+    }
+}
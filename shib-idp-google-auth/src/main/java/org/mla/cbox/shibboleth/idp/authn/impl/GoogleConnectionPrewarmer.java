@@ -0,0 +1,175 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Opens a connection to the token endpoint while the user is choosing an account at Google,
+ * so that the callback finds an established TLS connection in the pool instead of paying for
+ * the connect and handshake itself.
+ *
+ * A prewarm is requested each time a browser is redirected to Google, and started only if no
+ * other prewarm to the same token endpoint was started in the last interval milliseconds, which
+ * should be well below the keep-alive time of the transport pool. Integrations sharing a token
+ * endpoint, as tenants sharing the default one do, share the connections of the pool and so the
+ * interval, while each distinct endpoint is warmed on its own. At most maxConnections prewarms
+ * run at once, on threads of their own; a request arriving when all are busy is dropped, so
+ * prewarms add at most maxConnections connections to those the exchanges themselves keep in
+ * the pool.
+ */
+@ThreadSafe
+public class GoogleConnectionPrewarmer {
+    /** Minimum time in milliseconds between the start of two prewarms */
+    private long interval = 10000;
+
+    /** Maximum number of prewarms running at once */
+    private int maxConnections = 2;
+
+    /** Executor running the prewarms */
+    @Nullable private ThreadPoolExecutor executor;
+
+    /** Time in milliseconds at which the last prewarm was started, keyed by token endpoint */
+    @Nonnull private final ConcurrentMap<String, AtomicLong> lastPrewarms = new ConcurrentHashMap<String, AtomicLong>();
+
+    /** Number of prewarms that reached the token endpoint */
+    @Nonnull private final AtomicLong prewarms = new AtomicLong();
+
+    /** Number of prewarms that failed to reach the token endpoint */
+    @Nonnull private final AtomicLong failures = new AtomicLong();
+
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(GoogleConnectionPrewarmer.class);
+
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+
+    /** Constructor */
+    public GoogleConnectionPrewarmer() {
+
+    }
+
+    /**
+     * Initialize the executor
+     */
+    public void initialize() {
+        this.executor = new ThreadPoolExecutor(this.maxConnections, this.maxConnections, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("google-connection-prewarm-%d").setDaemon(true).build());
+        this.executor.allowCoreThreadTimeOut(true);
+        log.debug("{} Prewarming at most {} connections every {} ms", this.logPrefix, this.maxConnections,
+                this.interval);
+    }
+
+    /**
+     * Stop the executor, abandoning any prewarms in progress
+     */
+    public void destroy() {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Request a connection to the token endpoint of an integration, returning immediately
+     *
+     * @param integration the integration a browser was redirected for
+     * @return true iff a prewarm was started
+     */
+    public boolean prewarm(@Nonnull final GoogleIntegration integration) {
+        final String tokenEndpoint = integration.getTokenEndpointUrl().build();
+        AtomicLong lastPrewarm = this.lastPrewarms.get(tokenEndpoint);
+        if (lastPrewarm == null) {
+            final AtomicLong created = new AtomicLong();
+            lastPrewarm = this.lastPrewarms.putIfAbsent(tokenEndpoint, created);
+            if (lastPrewarm == null) {
+                lastPrewarm = created;
+            }
+        }
+
+        final long now = System.currentTimeMillis();
+        final long last = lastPrewarm.get();
+        if (now - last < this.interval || !lastPrewarm.compareAndSet(last, now)) {
+            return false;
+        }
+
+        try {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final int status = GoogleIntegrationWarmUp.connectTokenEndpoint(integration);
+                        prewarms.incrementAndGet();
+                        log.trace("{} Token endpoint answered {}", logPrefix, status);
+                    } catch (IOException | RuntimeException e) {
+                        failures.incrementAndGet();
+                        log.debug("{} Unable to prewarm a connection to the token endpoint : {}", logPrefix,
+                                e.getMessage());
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            log.trace("{} All {} prewarm threads busy, dropping prewarm", this.logPrefix, this.maxConnections);
+            return false;
+        }
+    }
+
+    /**
+     * Get the number of prewarms that reached the token endpoint
+     *
+     * @return the count
+     */
+    public long getPrewarmCount() {
+        return this.prewarms.get();
+    }
+
+    /**
+     * Get the number of prewarms that failed to reach the token endpoint
+     *
+     * @return the count
+     */
+    public long getFailureCount() {
+        return this.failures.get();
+    }
+
+    public GoogleConnectionPrewarmer setInterval(final long millis) {
+        this.interval = millis;
+        return this;
+    }
+
+    public GoogleConnectionPrewarmer setMaxConnections(final int max) {
+        this.maxConnections = max;
+        return this;
+    }
+}
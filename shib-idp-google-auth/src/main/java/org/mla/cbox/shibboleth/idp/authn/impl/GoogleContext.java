@@ -14,9 +14,11 @@
 
 package org.mla.cbox.shibboleth.idp.authn.impl;
 
-import java.math.BigInteger;
-import java.security.SecureRandom;
 import java.net.URLEncoder;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.io.UnsupportedEncodingException;
 
 import javax.annotation.Nonnull;
@@ -30,23 +32,38 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Context, usually attached to {@link AuthenticationContext}, that carries a GoogleIdToken
+ * 
+ * The context stays in the flow conversation while the user is at Google, so when the
+ * conversation is replicated only the ID of the integration, the state token, the redirect
+ * URI and the redirect time are written. The integration is resolved again by its ID on the
+ * node receiving the callback, and the ID token, held only until the principal is created,
+ * is never written.
  */
-public class GoogleContext extends BaseContext {
-    /** Anti forgery state token  */
+public class GoogleContext extends BaseContext implements Externalizable {
+    /** Serial version UID */
+    private static final long serialVersionUID = -2925107467386813297L;
+    
+    /** Version of the externalized form */
+    private static final byte EXTERNAL_VERSION = 1;
+    
+    /** Anti forgery state token, either random or issued by the SignedStateCodec of the integration */
     @Nullable private String antiForgeryStateToken = null;
     
-    /** Google integration details */
-    @Nullable private GoogleIntegration googleIntegration = null;
+    /** ID of the Google integration, null if it is not selectable by ID */
+    @Nullable private String integrationId = null;
     
-    /** The Google Id token string */
-    @Nullable private String googleIdTokenString = null;
+    /** Google integration details, null until resolved again after replication */
+    @Nullable private transient GoogleIntegration googleIntegration = null;
     
     /** The OIDC ID token */
-    @Nullable private OidcIdToken IdToken = null;
+    @Nullable private transient OidcIdToken IdToken = null;
     
     /** The OAuth2 redirect_uri */
     @Nullable private String redirectUri = null;
     
+    /** Time in milliseconds at which the browser was redirected to Google, 0 if not yet */
+    private long redirectTime;
+    
     /** Class logger */
     @Nonnull private final Logger log = LoggerFactory.getLogger(GoogleContext.class);
     
@@ -92,19 +109,19 @@ public class GoogleContext extends BaseContext {
     /**
      * Get the Google integration
      * 
-     * @return the Google integration object
+     * @return the Google integration object, or null if it has not been resolved since replication
      */
     @Nullable public GoogleIntegration getGoogleIntegration() {
         return this.googleIntegration;
     }
     
     /**
-     * Get the ID token string to be validated
+     * Get the ID of the Google integration
      * 
-     * @return the ID token string to be validated
+     * @return the ID, or null if the integration is not selectable by ID
      */
-    @Nullable public String getGoogleIdTokenString() {
-        return this.googleIdTokenString;
+    @Nullable public String getIntegrationId() {
+        return this.integrationId;
     }
     
     /**
@@ -135,56 +152,71 @@ public class GoogleContext extends BaseContext {
       * @return redirect URI as String
       */
      @Nullable public String getRedirectUri(String scheme, String serverName, String flowExecutionUrl) {
-         StringBuilder redirectUriBuilder = new StringBuilder().append(scheme)
-                 .append("://")
-                 .append(serverName)
-                 .append(flowExecutionUrl)
-                 .append("&_eventId=proceed");
-         
-         this.redirectUri = redirectUriBuilder.toString();
+         this.redirectUri = AuthorizationUrlTemplate.redirectUri(scheme, serverName, flowExecutionUrl);
          
          return this.redirectUri;
      }
      
+     /**
+      * Get the time at which the browser was redirected to Google
+      * 
+      * @return the time in milliseconds, or 0 if the authentication URL has not been computed
+      */
+     public long getRedirectTime() {
+         return this.redirectTime;
+     }
+     
      /**
       * Compute the Google OAuth2 authentication URL
       * 
       * @return the URL
       */
      public String googleOauth2Url(HttpServletRequest request, String flowExecutionUrl) {
-         StringBuilder oauth2Url = new StringBuilder().append(this.googleIntegration.getOauth2Url())
-                 .append("?client_id=").append(this.googleIntegration.getOauth2ClientId())
-                 .append("&response_type=code")
-                 .append("&scope=openid%20email%20profile")
-                 .append("&redirect_uri=").append(this.getEncodedRedirectUri(request.getScheme(),request.getServerName(), flowExecutionUrl))
-                 .append("&prompt=select_account")
-                 .append("&state=").append(this.getAntiForgeryStateToken());
+         /* A stateless token can only be issued once the flow execution it is bound to is known,
+          * and is also bound to the session of the browser so that it cannot be used from another
+          */
+         final SignedStateCodec stateCodec = this.googleIntegration.getStateCodec();
+         if (stateCodec != null) {
+             this.antiForgeryStateToken = stateCodec.issue(SignedStateCodec.flowExecutionKey(flowExecutionUrl),
+                     SignedStateCodec.sessionBinding(request, true));
+         }
+         
+         /* Only the flow execution key and state are appended to the precomputed template */
+         final String scheme = request.getScheme();
+         final String serverName = request.getServerName();
+         this.redirectUri = AuthorizationUrlTemplate.redirectUri(scheme, serverName, flowExecutionUrl);
+         final String oauth2Url = this.googleIntegration.getAuthorizationUrlTemplate()
+                 .expand(scheme, serverName, flowExecutionUrl, this.antiForgeryStateToken);
                  
-         log.debug("{} computed Google OAuth2 Url is {}", this.logPrefix, oauth2Url.toString());
+         log.debug("{} computed Google OAuth2 Url is {}", this.logPrefix, oauth2Url);
+         this.redirectTime = System.currentTimeMillis();
          
-         return oauth2Url.toString();
+         /* Open a connection to the token endpoint while the user is at Google */
+         final GoogleConnectionPrewarmer prewarmer = this.googleIntegration.getConnectionPrewarmer();
+         if (prewarmer != null) {
+             prewarmer.prewarm(this.googleIntegration);
+         }
+         
+         return oauth2Url;
      }
      
      /**
-      * Initialize the anti forgery state token
+      * Initialize the anti forgery state token using the default generator
       * 
       */
      public void initializeAntiForgeryStateToken() {
-         this.antiForgeryStateToken = new BigInteger(130, new SecureRandom()).toString(32);
+         this.initializeAntiForgeryStateToken(StateTokenGenerator.getDefault());
+     }
+     
+     /**
+      * Initialize the anti forgery state token
+      * 
+      * @param generator the state token generator
+      */
+     public void initializeAntiForgeryStateToken(@Nonnull final StateTokenGenerator generator) {
+         this.antiForgeryStateToken = generator.generate();
      }
      
-    /**
-     * Set the ID token string to be validated
-     * 
-     * @param ID token string to be validated
-     * 
-     * @return this context
-     */
-    public GoogleContext setGoogleIdTokenString(@Nullable final String tokenString) {
-        this.googleIdTokenString = tokenString;
-        return this;
-    }
-    
     /**
      * Set the validated ID token
      * 
@@ -206,6 +238,56 @@ public class GoogleContext extends BaseContext {
      */
     public GoogleContext setGoogleIntegration(@Nullable final GoogleIntegration googleIntegration) {
         this.googleIntegration = googleIntegration;
+        this.integrationId = googleIntegration != null ? googleIntegration.getId() : null;
         return this;
     }
+    
+    /** {@inheritDoc} */
+    @Override
+    public void writeExternal(final ObjectOutput out) throws IOException {
+        out.writeByte(EXTERNAL_VERSION);
+        writeNullableUTF(out, this.integrationId);
+        writeNullableUTF(out, this.antiForgeryStateToken);
+        writeNullableUTF(out, this.redirectUri);
+        out.writeLong(this.redirectTime);
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public void readExternal(final ObjectInput in) throws IOException {
+        final byte version = in.readByte();
+        if (version != EXTERNAL_VERSION) {
+            throw new IOException("Unsupported GoogleContext version " + version);
+        }
+        this.integrationId = readNullableUTF(in);
+        this.antiForgeryStateToken = readNullableUTF(in);
+        this.redirectUri = readNullableUTF(in);
+        this.redirectTime = in.readLong();
+    }
+    
+    /**
+     * Write a string that may be null
+     * 
+     * @param out the output
+     * @param value the string
+     * @throws IOException if the string cannot be written
+     */
+    private static void writeNullableUTF(@Nonnull final ObjectOutput out, @Nullable final String value)
+            throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+    
+    /**
+     * Read a string written by {@link #writeNullableUTF(ObjectOutput, String)}
+     * 
+     * @param in the input
+     * @return the string, or null
+     * @throws IOException if the string cannot be read
+     */
+    @Nullable private static String readNullableUTF(@Nonnull final ObjectInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
 }
@@ -0,0 +1,259 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonObjectParser;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.client.util.Key;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * In-memory copy of the Google OpenID Connect discovery document.
+ *
+ * The document is fetched at initialization and refreshed in the background every refresh
+ * interval. The last good copy is kept if a refresh fails, so readers never block on
+ * fetching the document, and the fetch is retried after the shorter retry interval, so that
+ * a node starting during a network failure soon leaves the configured endpoints.
+ */
+public class GoogleDiscoveryCache {
+    /** JSON factory used for parsing the discovery document */
+    private static final JsonFactory JSON_FACTORY = new JacksonFactory();
+
+    /** URL of the discovery document */
+    @Nonnull private String discoveryUri = "https://accounts.google.com/.well-known/openid-configuration";
+
+    /** Transport used to fetch the discovery document */
+    @Nullable private GoogleTransportPool transportPool;
+
+    /** Refresh interval in milliseconds */
+    private long refreshInterval = 3600000;
+
+    /** Interval in milliseconds before retrying a failed refresh */
+    private long retryInterval = 60000;
+
+    /** The last good copy of the discovery document, null until first fetched */
+    @Nullable private volatile ProviderMetadata metadata;
+
+    /** Whether the transport pool was created by this cache */
+    private boolean ownsTransportPool;
+
+    /** Scheduler running background refreshes */
+    @Nullable private ScheduledExecutorService scheduler;
+
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(GoogleDiscoveryCache.class);
+
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+
+    /** Represents the fields of the discovery document used by the flow */
+    public static class ProviderMetadata extends GenericJson {
+        @Key
+        private String issuer;
+
+        @Key
+        private String authorization_endpoint;
+
+        @Key
+        private String token_endpoint;
+
+        @Key
+        private String jwks_uri;
+    }
+
+    /** Constructor */
+    public GoogleDiscoveryCache() {
+
+    }
+
+    /**
+     * Initialize the cache by fetching the discovery document and scheduling its refresh
+     */
+    public void initialize() {
+        if (this.transportPool == null) {
+            this.transportPool = new GoogleTransportPool();
+            this.transportPool.initialize();
+            this.ownsTransportPool = true;
+        }
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("google-discovery-refresh-%d").setDaemon(true).build());
+
+        this.scheduleRefresh(this.refreshOrRetry());
+    }
+
+    /**
+     * Stop refreshing the discovery document
+     */
+    public void destroy() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+            this.scheduler = null;
+        }
+        if (this.ownsTransportPool) {
+            this.transportPool.destroy();
+            this.transportPool = null;
+            this.ownsTransportPool = false;
+        }
+    }
+
+    /**
+     * Get the issuer
+     *
+     * @return the issuer, or null if the discovery document has not been fetched
+     */
+    @Nullable public String getIssuer() {
+        final ProviderMetadata current = this.metadata;
+        return current != null ? current.issuer : null;
+    }
+
+    /**
+     * Get the OAuth2 authorization endpoint
+     *
+     * @return the endpoint, or null if the discovery document has not been fetched
+     */
+    @Nullable public String getAuthorizationEndpoint() {
+        final ProviderMetadata current = this.metadata;
+        return current != null ? current.authorization_endpoint : null;
+    }
+
+    /**
+     * Get the token endpoint
+     *
+     * @return the endpoint, or null if the discovery document has not been fetched
+     */
+    @Nullable public String getTokenEndpoint() {
+        final ProviderMetadata current = this.metadata;
+        return current != null ? current.token_endpoint : null;
+    }
+
+    /**
+     * Get the JSON web key set URL
+     *
+     * @return the URL, or null if the discovery document has not been fetched
+     */
+    @Nullable public String getJwksUri() {
+        final ProviderMetadata current = this.metadata;
+        return current != null ? current.jwks_uri : null;
+    }
+
+    /**
+     * Schedule the next background refresh
+     *
+     * @param delay the delay in milliseconds
+     */
+    private void scheduleRefresh(final long delay) {
+        final ScheduledExecutorService current = this.scheduler;
+        if (current == null || current.isShutdown()) {
+            return;
+        }
+        current.schedule(new Runnable() {
+            @Override
+            public void run() {
+                scheduleRefresh(refreshOrRetry());
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Refresh the discovery document, retrying after the retry interval on any failure, so
+     * that an unexpected exception cannot end the chain of scheduled refreshes
+     *
+     * @return the delay in milliseconds before the next refresh
+     */
+    private long refreshOrRetry() {
+        try {
+            return this.refresh();
+        } catch (RuntimeException e) {
+            log.error("{} Unexpected failure fetching discovery document from {}, keeping last good copy",
+                    this.logPrefix, this.discoveryUri, e);
+            return this.retryInterval;
+        }
+    }
+
+    /**
+     * Fetch the discovery document, keeping the last good copy if the fetch fails
+     *
+     * @return the delay in milliseconds before the next refresh
+     */
+    private long refresh() {
+        try {
+            final HttpRequest request = this.transportPool.getHttpTransport().createRequestFactory()
+                    .buildGetRequest(new GenericUrl(this.discoveryUri));
+            request.setParser(new JsonObjectParser(JSON_FACTORY));
+            request.setConnectTimeout(this.transportPool.getConnectTimeout());
+            request.setReadTimeout(this.transportPool.getReadTimeout());
+
+            final HttpResponse response = request.execute();
+            final ProviderMetadata fetched;
+            try {
+                fetched = response.parseAs(ProviderMetadata.class);
+            } finally {
+                response.ignore();
+            }
+
+            if (fetched.authorization_endpoint == null || fetched.token_endpoint == null) {
+                log.warn("{} Discovery document at {} is missing endpoints, keeping last good copy",
+                        this.logPrefix, this.discoveryUri);
+                return this.retryInterval;
+            }
+
+            this.metadata = fetched;
+            log.debug("{} Loaded discovery document with authorization endpoint {} and token endpoint {}",
+                    this.logPrefix, fetched.authorization_endpoint, fetched.token_endpoint);
+            return this.refreshInterval;
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("{} Unable to fetch discovery document from {}, keeping last good copy : {}",
+                    this.logPrefix, this.discoveryUri, e.getMessage());
+            return this.retryInterval;
+        }
+    }
+
+    public GoogleDiscoveryCache setDiscoveryUri(@Nonnull final String uri) {
+        this.discoveryUri = uri;
+        return this;
+    }
+
+    public GoogleDiscoveryCache setTransportPool(@Nullable final GoogleTransportPool pool) {
+        this.transportPool = pool;
+        return this;
+    }
+
+    public GoogleDiscoveryCache setRefreshInterval(final long interval) {
+        this.refreshInterval = interval;
+        return this;
+    }
+
+    public GoogleDiscoveryCache setRetryInterval(final long interval) {
+        this.retryInterval = interval;
+        return this;
+    }
+}
@@ -15,6 +15,7 @@
 package org.mla.cbox.shibboleth.idp.authn.impl;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import net.shibboleth.idp.authn.principal.CloneablePrincipal;
 import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
@@ -33,6 +34,24 @@ public class GoogleIdPrincipal implements CloneablePrincipal {
     /** Name claim from ID token asserted by Google, Can be null if not asserted */
     private String nameClaim;
     
+    /** Hosted domain claim from ID token asserted by Google, null for consumer accounts */
+    private String hostedDomainClaim;
+    
+    /** Email verified claim from ID token asserted by Google, can be null if not asserted */
+    private Boolean emailVerifiedClaim;
+    
+    /** Picture claim from ID token asserted by Google, can be null if not asserted */
+    private String pictureClaim;
+    
+    /** Given name claim from ID token asserted by Google, can be null if not asserted */
+    private String givenNameClaim;
+    
+    /** Family name claim from ID token asserted by Google, can be null if not asserted */
+    private String familyNameClaim;
+    
+    /** Locale claim from ID token asserted by Google, can be null if not asserted */
+    private String localeClaim;
+    
     /**
      * Constructor
      */
@@ -49,6 +68,26 @@ public class GoogleIdPrincipal implements CloneablePrincipal {
         this.subClaim = token.getSub();
         this.emailClaim = token.getEmail();
         this.nameClaim = token.getName();
+        this.hostedDomainClaim = token.getHd();
+        this.emailVerifiedClaim = token.getEmailVerified();
+        this.pictureClaim = token.getPicture();
+        this.givenNameClaim = token.getGivenName();
+        this.familyNameClaim = token.getFamilyName();
+        this.localeClaim = token.getLocale();
+    }
+    
+    /**
+     * Constructor using the individual claims.
+     * 
+     * @param sub the sub claim
+     * @param email the email claim, or null if not asserted
+     * @param name the name claim, or null if not asserted
+     */
+    public GoogleIdPrincipal(@Nonnull @NotEmpty final String sub, @Nullable final String email,
+            @Nullable final String name) {
+        this.subClaim = sub;
+        this.emailClaim = email;
+        this.nameClaim = name;
     }
     
     /**
@@ -69,6 +108,60 @@ public class GoogleIdPrincipal implements CloneablePrincipal {
         return this.nameClaim;
     }
     
+    /**
+     * Get the hosted domain claim
+     * 
+     * @return the G Suite domain of the account, or null for a consumer account
+     */
+    public String getHostedDomainClaim() {
+        return this.hostedDomainClaim;
+    }
+    
+    /**
+     * Get the email verified claim
+     * 
+     * @return whether Google verified the email address, or null if not asserted
+     */
+    public Boolean getEmailVerifiedClaim() {
+        return this.emailVerifiedClaim;
+    }
+    
+    /**
+     * Get the picture claim
+     * 
+     * @return the URL of the profile picture if asserted by Google
+     */
+    public String getPictureClaim() {
+        return this.pictureClaim;
+    }
+    
+    /**
+     * Get the given name claim
+     * 
+     * @return the given name if asserted by Google
+     */
+    public String getGivenNameClaim() {
+        return this.givenNameClaim;
+    }
+    
+    /**
+     * Get the family name claim
+     * 
+     * @return the family name if asserted by Google
+     */
+    public String getFamilyNameClaim() {
+        return this.familyNameClaim;
+    }
+    
+    /**
+     * Get the locale claim
+     * 
+     * @return the BCP 47 locale if asserted by Google
+     */
+    public String getLocaleClaim() {
+        return this.localeClaim;
+    }
+    
     /**
      * Get the sub claim
      * 
@@ -78,6 +171,30 @@ public class GoogleIdPrincipal implements CloneablePrincipal {
         return this.subClaim;
     }
     
+    void setHostedDomainClaim(@Nullable final String hd) {
+        this.hostedDomainClaim = hd;
+    }
+    
+    void setEmailVerifiedClaim(@Nullable final Boolean emailVerified) {
+        this.emailVerifiedClaim = emailVerified;
+    }
+    
+    void setPictureClaim(@Nullable final String picture) {
+        this.pictureClaim = picture;
+    }
+    
+    void setGivenNameClaim(@Nullable final String givenName) {
+        this.givenNameClaim = givenName;
+    }
+    
+    void setFamilyNameClaim(@Nullable final String familyName) {
+        this.familyNameClaim = familyName;
+    }
+    
+    void setLocaleClaim(@Nullable final String locale) {
+        this.localeClaim = locale;
+    }
+    
     /** {@inheritDoc} */
     @Override
     @Nonnull @NotEmpty public String getName() {
@@ -127,6 +244,12 @@ public class GoogleIdPrincipal implements CloneablePrincipal {
         copy.subClaim = this.subClaim;
         copy.emailClaim = this.emailClaim;
         copy.nameClaim = this.nameClaim;
+        copy.hostedDomainClaim = this.hostedDomainClaim;
+        copy.emailVerifiedClaim = this.emailVerifiedClaim;
+        copy.pictureClaim = this.pictureClaim;
+        copy.givenNameClaim = this.givenNameClaim;
+        copy.familyNameClaim = this.familyNameClaim;
+        copy.localeClaim = this.localeClaim;
         return copy;
     }
 }
@@ -39,19 +39,67 @@ import net.shibboleth.idp.authn.principal.AbstractPrincipalSerializer;
 import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
 
 /**
- * Principal serializer for GoogleIdPrincipal
+ * Principal serializer for GoogleIdPrincipal.
+ * 
+ * Principals are serialized as a single flat JSON object whose first field name carries the
+ * format version and the sub claim, followed by the other claims when asserted:
+ * <pre>{"G2":"sub","e":"email","n":"name","h":"hd","v":true,"p":"picture","g":"given","f":"family","l":"en"}</pre>
+ * The legacy format, a JSON encoded principal nested as a string inside a JSON object,
+ * is still accepted so that existing sessions remain valid.
  */
 @ThreadSafe
 public class GoogleIdPrincipalSerializer extends AbstractPrincipalSerializer<String> {
 
-    /** Field name of GoogleIdPrincipal */
+    /** Field name carrying the version and sub claim of the current format */
+    @Nonnull @NotEmpty private static final String SUB_FIELD = "G2";
+    
+    /** Field name of the email claim */
+    @Nonnull @NotEmpty private static final String EMAIL_FIELD = "e";
+    
+    /** Field name of the name claim */
+    @Nonnull @NotEmpty private static final String NAME_FIELD = "n";
+    
+    /** Field name of the hosted domain claim */
+    @Nonnull @NotEmpty private static final String HOSTED_DOMAIN_FIELD = "h";
+    
+    /** Field name of the email verified claim */
+    @Nonnull @NotEmpty private static final String EMAIL_VERIFIED_FIELD = "v";
+    
+    /** Field name of the picture claim */
+    @Nonnull @NotEmpty private static final String PICTURE_FIELD = "p";
+    
+    /** Field name of the given name claim */
+    @Nonnull @NotEmpty private static final String GIVEN_NAME_FIELD = "g";
+    
+    /** Field name of the family name claim */
+    @Nonnull @NotEmpty private static final String FAMILY_NAME_FIELD = "f";
+    
+    /** Field name of the locale claim */
+    @Nonnull @NotEmpty private static final String LOCALE_FIELD = "l";
+
+    /** Field name of GoogleIdPrincipal in the legacy format */
     @Nonnull @NotEmpty private static final String GOOGLE_TOKEN_FIELD = "Google";
 
-    /** Pattern used to determine if input is supported */
-    @Nonnull private static final Pattern JSON_PATTERN = Pattern.compile("^\\{\"Google\":.*\\}$");
+    /** Pattern used to determine if input is supported, in either format */
+    @Nonnull private static final Pattern JSON_PATTERN = Pattern.compile("^\\{\"(G2|Google)\":.*\\}$");
+    
+    /** Gson instance for the legacy format, which is thread safe */
+    @Nonnull private static final Gson GSON = new Gson();
+
+    /** Receiver of the serialized principal sizes, null to record none */
+    @Nullable private GoogleAuthnMetrics metrics;
 
     /** Class logger */
     @Nonnull private final Logger log = LoggerFactory.getLogger(GoogleIdPrincipalSerializer.class);
+    
+    /**
+     * Set the receiver of the serialized principal sizes
+     * 
+     * @param authnMetrics the metrics, or null to record none
+     */
+    public void setMetrics(@Nullable final GoogleAuthnMetrics authnMetrics) {
+        this.metrics = authnMetrics;
+    }
 
     /** {@inheritDoc} */
     @Override
@@ -64,13 +112,40 @@ public class GoogleIdPrincipalSerializer extends AbstractPrincipalSerializer<Str
     @Nonnull @NotEmpty public String serialize(@Nonnull final Principal principal) throws IOException {
         GoogleIdPrincipal googlePrincipal = (GoogleIdPrincipal) principal;
         
-        final StringWriter sink = new StringWriter(32);
+        final StringWriter sink = new StringWriter(128);
         final JsonGenerator gen = getJsonGenerator(sink);
-        gen.writeStartObject()
-            .write(GOOGLE_TOKEN_FIELD, googlePrincipal.serialize())
-            .writeEnd();
+        gen.writeStartObject().write(SUB_FIELD, googlePrincipal.getSubClaim());
+        if (googlePrincipal.getEmailClaim() != null) {
+            gen.write(EMAIL_FIELD, googlePrincipal.getEmailClaim());
+        }
+        if (googlePrincipal.getNameClaim() != null) {
+            gen.write(NAME_FIELD, googlePrincipal.getNameClaim());
+        }
+        if (googlePrincipal.getHostedDomainClaim() != null) {
+            gen.write(HOSTED_DOMAIN_FIELD, googlePrincipal.getHostedDomainClaim());
+        }
+        if (googlePrincipal.getEmailVerifiedClaim() != null) {
+            gen.write(EMAIL_VERIFIED_FIELD, googlePrincipal.getEmailVerifiedClaim().booleanValue());
+        }
+        if (googlePrincipal.getPictureClaim() != null) {
+            gen.write(PICTURE_FIELD, googlePrincipal.getPictureClaim());
+        }
+        if (googlePrincipal.getGivenNameClaim() != null) {
+            gen.write(GIVEN_NAME_FIELD, googlePrincipal.getGivenNameClaim());
+        }
+        if (googlePrincipal.getFamilyNameClaim() != null) {
+            gen.write(FAMILY_NAME_FIELD, googlePrincipal.getFamilyNameClaim());
+        }
+        if (googlePrincipal.getLocaleClaim() != null) {
+            gen.write(LOCALE_FIELD, googlePrincipal.getLocaleClaim());
+        }
+        gen.writeEnd();
         gen.close();
-        return sink.toString();
+        final String serialized = sink.toString();
+        if (this.metrics != null) {
+            this.metrics.recordSerializedPrincipalSize(serialized.length());
+        }
+        return serialized;
     }
 
     /** {@inheritDoc} */
@@ -92,13 +167,32 @@ public class GoogleIdPrincipalSerializer extends AbstractPrincipalSerializer<Str
         if (!(st instanceof JsonObject)) {
             throw new IOException("Found invalid data structure while parsing GoogleIdPrincipal");
         }
-        final JsonString str = ((JsonObject) st).getJsonString(GOOGLE_TOKEN_FIELD);
+        final JsonObject obj = (JsonObject) st;
+        
+        final JsonString sub = obj.getJsonString(SUB_FIELD);
+        if (sub != null) {
+            if (Strings.isNullOrEmpty(sub.getString())) {
+                return null;
+            }
+            final GoogleIdPrincipal principal = new GoogleIdPrincipal(sub.getString(),
+                    obj.getString(EMAIL_FIELD, null), obj.getString(NAME_FIELD, null));
+            principal.setHostedDomainClaim(obj.getString(HOSTED_DOMAIN_FIELD, null));
+            if (obj.containsKey(EMAIL_VERIFIED_FIELD)) {
+                principal.setEmailVerifiedClaim(obj.getBoolean(EMAIL_VERIFIED_FIELD));
+            }
+            principal.setPictureClaim(obj.getString(PICTURE_FIELD, null));
+            principal.setGivenNameClaim(obj.getString(GIVEN_NAME_FIELD, null));
+            principal.setFamilyNameClaim(obj.getString(FAMILY_NAME_FIELD, null));
+            principal.setLocaleClaim(obj.getString(LOCALE_FIELD, null));
+            return principal;
+        }
+        
+        final JsonString str = obj.getJsonString(GOOGLE_TOKEN_FIELD);
         if (str != null) {
             final String serializedGoogleIdPrincipal = str.getString();
             if (!Strings.isNullOrEmpty(serializedGoogleIdPrincipal)) {
-                Gson gson = new Gson();
-                GoogleIdPrincipal googleIdPrincipal = gson.fromJson(serializedGoogleIdPrincipal, GoogleIdPrincipal.class);
-                return googleIdPrincipal;
+                log.trace("Deserializing GoogleIdPrincipal in legacy format");
+                return GSON.fromJson(serializedGoogleIdPrincipal, GoogleIdPrincipal.class);
             }
         }
         return null;
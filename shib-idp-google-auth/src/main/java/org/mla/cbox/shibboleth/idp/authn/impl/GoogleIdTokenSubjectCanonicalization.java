@@ -14,10 +14,12 @@
 
 package org.mla.cbox.shibboleth.idp.authn.impl;
 
-import java.util.Set;
+import java.io.IOException;
+import java.security.Principal;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.security.auth.Subject;
 
 import net.shibboleth.idp.authn.AbstractSubjectCanonicalizationAction;
 import net.shibboleth.idp.authn.AuthnEventIds;
@@ -34,6 +36,9 @@ import com.google.common.base.Predicate;
  * {@link ProfileRequestContext}, and transforms the input {@link javax.security.auth.Subject}
  * into a principal name by searching for one and only one GoogleIdPrincipal custom principal.
  * 
+ * The name is the sub claim of the principal, unless {@link GoogleCanonicalizationRules} are
+ * configured to compute it from its claims. If a {@link GoogleIdentityMapper} is configured,
+ * the local account mapped to the sub claim takes the place of that name.
  */
 public class GoogleIdTokenSubjectCanonicalization extends AbstractSubjectCanonicalizationAction {
     
@@ -43,18 +48,47 @@ public class GoogleIdTokenSubjectCanonicalization extends AbstractSubjectCanonic
     /** The custom Principal to operate on */
     @Nullable private GoogleIdPrincipal googleIdPrincipal;
     
+    /** Rules computing the principal name, null to use the sub claim */
+    @Nullable private GoogleCanonicalizationRules rules;
+    
+    /** Mapper of the sub claim to a local account, null to not map it */
+    @Nullable private GoogleIdentityMapper identityMapper;
+    
     /** Constructor */
     public GoogleIdTokenSubjectCanonicalization() {
         embeddedPredicate = new ActivationCondition();
     }
     
+    /**
+     * Set the rules computing the principal name
+     * 
+     * @param canonicalizationRules the rules, or null to use the sub claim
+     * @return instance of this class
+     */
+    public GoogleIdTokenSubjectCanonicalization setRules(
+            @Nullable GoogleCanonicalizationRules canonicalizationRules) {
+        this.rules = canonicalizationRules;
+        return this;
+    }
+    
+    /**
+     * Set the mapper of the sub claim to a local account
+     * 
+     * @param mapper the identity mapper, or null to not map the sub claim
+     * @return instance of this class
+     */
+    public GoogleIdTokenSubjectCanonicalization setIdentityMapper(@Nullable GoogleIdentityMapper mapper) {
+        this.identityMapper = mapper;
+        return this;
+    }
+    
     /** {@inheritDoc} */
     @Override
     protected boolean doPreExecute(@Nonnull final ProfileRequestContext profileRequestContext, 
             @Nonnull final SubjectCanonicalizationContext c14nContext) {
 
-        if (embeddedPredicate.apply(profileRequestContext, c14nContext, true)) {
-            googleIdPrincipal = c14nContext.getSubject().getPrincipals(GoogleIdPrincipal.class).iterator().next();
+        googleIdPrincipal = embeddedPredicate.findPrincipal(profileRequestContext, c14nContext, true);
+        if (googleIdPrincipal != null) {
             return super.doPreExecute(profileRequestContext, c14nContext);
         }
         
@@ -66,7 +100,35 @@ public class GoogleIdTokenSubjectCanonicalization extends AbstractSubjectCanonic
     protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext, 
             @Nonnull final SubjectCanonicalizationContext c14nContext) {
         
-        c14nContext.setPrincipalName(googleIdPrincipal.getName());
+        String name = rules != null ? rules.canonicalize(googleIdPrincipal) : googleIdPrincipal.getName();
+        if (name == null) {
+            c14nContext.setException(new SubjectCanonicalizationException("GoogleIdPrincipal has no "
+                    + rules.getSource() + " claim to canonicalize"));
+            ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.INVALID_SUBJECT);
+            return;
+        }
+        
+        if (identityMapper != null) {
+            final String account;
+            try {
+                account = identityMapper.lookup(googleIdPrincipal.getSubClaim());
+            } catch (IOException e) {
+                c14nContext.setException(new SubjectCanonicalizationException(
+                        "Unable to look up the local account of " + googleIdPrincipal.getSubClaim(), e));
+                ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.SUBJECT_C14N_ERROR);
+                return;
+            }
+            if (account != null) {
+                name = account;
+            } else if (identityMapper.isMappingRequired()) {
+                c14nContext.setException(new SubjectCanonicalizationException(
+                        "No local account is mapped to " + googleIdPrincipal.getSubClaim()));
+                ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.INVALID_SUBJECT);
+                return;
+            }
+        }
+        
+        c14nContext.setPrincipalName(name);
     }
      
     /** A predicate that determines if this action can run or not */
@@ -99,31 +161,44 @@ public class GoogleIdTokenSubjectCanonicalization extends AbstractSubjectCanonic
          */
         public boolean apply(@Nonnull final ProfileRequestContext profileRequestContext,
                 @Nonnull final SubjectCanonicalizationContext c14nContext, final boolean duringAction) {
+            return findPrincipal(profileRequestContext, c14nContext, duringAction) != null;
+        }
+        
+        /**
+         * Find the one and only GoogleIdPrincipal of the subject, in a single pass over its
+         * principals that stops at the second GoogleIdPrincipal.
+         * 
+         * @param profileRequestContext the current profile request context
+         * @param c14nContext   the current c14n context
+         * @param duringAction  true iff the method is run from the action above
+         * @return the principal, or null if there is none or more than one
+         */
+        @Nullable public GoogleIdPrincipal findPrincipal(@Nonnull final ProfileRequestContext profileRequestContext,
+                @Nonnull final SubjectCanonicalizationContext c14nContext, final boolean duringAction) {
 
-            final Set<GoogleIdPrincipal> googleIdPrincipals;
-            if (c14nContext.getSubject() != null) {
-                googleIdPrincipals = c14nContext.getSubject().getPrincipals(GoogleIdPrincipal.class);
-            } else {
-                googleIdPrincipals = null;
+            final Subject subject = c14nContext.getSubject();
+            GoogleIdPrincipal found = null;
+            int count = 0;
+            if (subject != null) {
+                for (final Principal principal : subject.getPrincipals()) {
+                    if (principal instanceof GoogleIdPrincipal) {
+                        found = (GoogleIdPrincipal) principal;
+                        if (++count > 1) {
+                            break;
+                        }
+                    }
+                }
             }
             
+            if (count == 1) {
+                return found;
+            }
             if (duringAction) {
-                if (googleIdPrincipals == null || googleIdPrincipals.isEmpty()) {
-                    c14nContext.setException(
-                            new SubjectCanonicalizationException("No GoogleIdPrincipals were found"));
-                    ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.INVALID_SUBJECT);
-                    return false;
-                } else if (googleIdPrincipals.size() > 1) {
-                    c14nContext.setException(
-                            new SubjectCanonicalizationException("Multiple GoogleIdPrincipals were found"));
-                    ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.INVALID_SUBJECT);
-                    return false;
-                }
-                
-                return true;
-            } else {
-                return googleIdPrincipals != null && googleIdPrincipals.size() == 1;
+                c14nContext.setException(new SubjectCanonicalizationException(
+                        count == 0 ? "No GoogleIdPrincipals were found" : "Multiple GoogleIdPrincipals were found"));
+                ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.INVALID_SUBJECT);
             }
+            return null;
         }
     }
 }
@@ -0,0 +1,170 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonObjectParser;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.client.util.Key;
+
+/**
+ * Verifies the signature and claims of an ID token in-process using the keys held by a
+ * {@link GoogleJwksKeyCache}, so verification requires no network I/O once keys are cached.
+ */
+public class GoogleIdTokenVerifier {
+    /** JSON factory used for parsing the ID token header */
+    private static final JsonFactory JSON_FACTORY = new JacksonFactory();
+
+    /** Signature algorithm Google signs ID tokens with */
+    private static final String ALGORITHM = "RS256";
+
+    /** Signature instance per thread, since instances are not thread safe */
+    private static final ThreadLocal<Signature> SIGNATURE = new ThreadLocal<Signature>() {
+        @Override
+        protected Signature initialValue() {
+            try {
+                return Signature.getInstance("SHA256withRSA");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("SHA256withRSA signature is not available", e);
+            }
+        }
+    };
+
+    /** Parser for the ID token header */
+    @Nonnull private final JsonObjectParser headerParser = new JsonObjectParser(JSON_FACTORY);
+
+    /** Cache of the keys used to verify signatures */
+    @Nullable private GoogleJwksKeyCache keyCache;
+
+    /** Accepted issuers */
+    @Nonnull private Set<String> issuers = new HashSet<String>(
+            Arrays.asList("accounts.google.com", "https://accounts.google.com"));
+
+    /** Allowed clock skew in seconds */
+    private long clockSkew = 300;
+
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(GoogleIdTokenVerifier.class);
+
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+
+    /** Represents the header of an ID token */
+    public static class IdTokenHeader extends GenericJson {
+        @Key
+        private String alg;
+
+        @Key
+        private String kid;
+    }
+
+    /** Constructor */
+    public GoogleIdTokenVerifier() {
+
+    }
+
+    /**
+     * Check that a key cache was configured
+     */
+    public void initialize() {
+        if (this.keyCache == null) {
+            throw new IllegalArgumentException("An ID token verifier needs a key cache");
+        }
+    }
+
+    /**
+     * Verify the signature and claims of an ID token
+     *
+     * @param jwt the decoder over the encoded ID token
+     * @param idToken the claims decoded from the ID token
+     * @param audience the expected audience, the OAuth2 client ID
+     * @throws IOException if the ID token is malformed, the signature is invalid or a claim is not acceptable
+     */
+    public void verify(@Nonnull final JwtSegmentDecoder jwt, @Nonnull final OidcIdToken idToken,
+            @Nonnull final String audience) throws IOException {
+
+        final IdTokenHeader header = this.headerParser.parseAndClose(jwt.openHeader(), StandardCharsets.UTF_8,
+                IdTokenHeader.class);
+        if (!ALGORITHM.equals(header.alg)) {
+            throw new IOException("ID token signed with unsupported algorithm " + header.alg);
+        }
+
+        final PublicKey key = this.keyCache.getKey(header.kid);
+        if (key == null) {
+            throw new IOException("ID token signed with unknown key " + header.kid);
+        }
+
+        try {
+            final Signature signature = SIGNATURE.get();
+            signature.initVerify(key);
+            signature.update(jwt.getToken().getBytes(StandardCharsets.US_ASCII), 0, jwt.getSigningInputLength());
+            if (!signature.verify(jwt.decodeSignature())) {
+                throw new IOException("ID token signature is invalid");
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to verify ID token signature", e);
+        }
+
+        if (!this.issuers.contains(idToken.getIss())) {
+            throw new IOException("ID token issuer " + idToken.getIss() + " is not accepted");
+        }
+
+        if (!audience.equals(idToken.getAud())) {
+            throw new IOException("ID token audience " + idToken.getAud() + " is not " + audience);
+        }
+
+        final long now = System.currentTimeMillis() / 1000;
+        if (idToken.getExp() == null || idToken.getExp() + this.clockSkew < now) {
+            throw new IOException("ID token has expired");
+        }
+        if (idToken.getIat() != null && idToken.getIat() - this.clockSkew > now) {
+            throw new IOException("ID token was issued in the future");
+        }
+
+        log.debug("{} Verified ID token signed with key {}", this.logPrefix, header.kid);
+    }
+
+    public GoogleIdTokenVerifier setKeyCache(@Nonnull final GoogleJwksKeyCache cache) {
+        this.keyCache = cache;
+        return this;
+    }
+
+    public GoogleIdTokenVerifier setIssuers(@Nonnull final Collection<String> accepted) {
+        this.issuers = new HashSet<String>(accepted);
+        return this;
+    }
+
+    public GoogleIdTokenVerifier setClockSkew(final long skew) {
+        this.clockSkew = skew;
+        return this;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Maps the Google sub claim to the identifier of a local account through a
+ * {@link GoogleIdentityMappingSource}, caching the answers so that logins and SSO events
+ * rarely wait for the source.
+ *
+ * Up to the maximum size mappings are cached for the time to live, and subjects without an
+ * account for the shorter negative time to live. Concurrent lookups of a subject that is not
+ * cached wait for a single query of the source. Once a mapping is older than the refresh
+ * interval the next lookup still answers from the cache while the mapping is queried again
+ * in the background, so a subject logging in regularly never waits for the source; if that
+ * query fails the cached mapping is kept until it expires.
+ */
+@ThreadSafe
+public class GoogleIdentityMapper {
+    /** Source of the mappings */
+    @Nullable private GoogleIdentityMappingSource source;
+
+    /** Maximum number of cached mappings */
+    private long maximumSize = 10000;
+
+    /** Time in milliseconds a mapping is cached */
+    private long timeToLive = 3600000;
+
+    /** Time in milliseconds the absence of a mapping is cached */
+    private long negativeTimeToLive = 60000;
+
+    /** Age in milliseconds from which a mapping is refreshed in the background, 0 to never refresh */
+    private long refreshInterval = 900000;
+
+    /** Number of threads refreshing mappings */
+    private int refreshThreads = 2;
+
+    /** Whether a subject without a local account fails canonicalization */
+    private boolean mappingRequired;
+
+    /** Receiver of measurements of the lookups, null to record none */
+    @Nullable private GoogleAuthnMetrics metrics;
+
+    /** Cached mappings */
+    @Nullable private LoadingCache<String, Mapping> mappings;
+
+    /** Executor refreshing mappings in the background */
+    @Nullable private ExecutorService refresher;
+
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(GoogleIdentityMapper.class);
+
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+
+    /** Constructor */
+    public GoogleIdentityMapper() {
+
+    }
+
+    /**
+     * Build the cache and start the refresh threads
+     */
+    public void initialize() {
+        if (this.source == null) {
+            throw new IllegalArgumentException("An identity mapper needs a mapping source");
+        }
+        final CacheLoader<String, Mapping> loader = new CacheLoader<String, Mapping>() {
+            @Override
+            public Mapping load(final String sub) throws IOException {
+                return query(sub);
+            }
+        };
+
+        final CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+                .maximumSize(this.maximumSize)
+                .expireAfterWrite(this.timeToLive, TimeUnit.MILLISECONDS);
+        if (this.refreshInterval > 0) {
+            this.refresher = Executors.newFixedThreadPool(this.refreshThreads,
+                    new ThreadFactoryBuilder().setNameFormat("google-identity-refresh-%d").setDaemon(true).build());
+            builder.refreshAfterWrite(this.refreshInterval, TimeUnit.MILLISECONDS);
+            this.mappings = builder.build(CacheLoader.asyncReloading(loader, this.refresher));
+        } else {
+            this.mappings = builder.build(loader);
+        }
+        log.debug("{} Caching up to {} identity mappings for {} ms", this.logPrefix, this.maximumSize,
+                this.timeToLive);
+    }
+
+    /**
+     * Stop the refresh threads
+     */
+    public void destroy() {
+        if (this.refresher != null) {
+            this.refresher.shutdownNow();
+            this.refresher = null;
+        }
+    }
+
+    /**
+     * Look up the local account of a Google subject
+     *
+     * @param sub the sub claim
+     * @return the local account identifier, or null if the subject has none
+     * @throws IOException if the mapping is not cached and the source cannot be queried
+     */
+    @Nullable public String lookup(@Nonnull final String sub) throws IOException {
+        Mapping mapping = this.mappings.getIfPresent(sub);
+        if (mapping != null && mapping.account == null
+                && System.currentTimeMillis() - mapping.loaded >= this.negativeTimeToLive) {
+            this.mappings.invalidate(sub);
+            mapping = null;
+        }
+        if (this.metrics != null) {
+            this.metrics.recordIdentityMappingLookup(mapping != null);
+        }
+
+        if (mapping == null) {
+            try {
+                mapping = this.mappings.get(sub);
+            } catch (ExecutionException | UncheckedExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Unable to look up the account of " + sub, e.getCause());
+            }
+        }
+        return mapping.account;
+    }
+
+    /**
+     * Whether a subject without a local account fails canonicalization
+     *
+     * @return true iff a mapping is required
+     */
+    public boolean isMappingRequired() {
+        return this.mappingRequired;
+    }
+
+    /**
+     * Query the source for the mapping of a subject, on a login or refresh thread
+     *
+     * @param sub the sub claim
+     * @return the mapping
+     * @throws IOException if the source cannot be queried
+     */
+    @Nonnull private Mapping query(@Nonnull final String sub) throws IOException {
+        final long started = System.nanoTime();
+        boolean success = false;
+        try {
+            final Mapping mapping = new Mapping(this.source.lookup(sub), System.currentTimeMillis());
+            success = true;
+            return mapping;
+        } finally {
+            if (this.metrics != null) {
+                this.metrics.recordIdentityMappingLoad(success, System.nanoTime() - started);
+            }
+        }
+    }
+
+    public GoogleIdentityMapper setSource(@Nonnull final GoogleIdentityMappingSource mappingSource) {
+        this.source = mappingSource;
+        return this;
+    }
+
+    public GoogleIdentityMapper setMaximumSize(final long size) {
+        this.maximumSize = size;
+        return this;
+    }
+
+    public GoogleIdentityMapper setTimeToLive(final long millis) {
+        this.timeToLive = millis;
+        return this;
+    }
+
+    public GoogleIdentityMapper setNegativeTimeToLive(final long millis) {
+        this.negativeTimeToLive = millis;
+        return this;
+    }
+
+    public GoogleIdentityMapper setRefreshInterval(final long millis) {
+        this.refreshInterval = millis;
+        return this;
+    }
+
+    public GoogleIdentityMapper setRefreshThreads(final int threads) {
+        this.refreshThreads = threads;
+        return this;
+    }
+
+    public GoogleIdentityMapper setMappingRequired(final boolean required) {
+        this.mappingRequired = required;
+        return this;
+    }
+
+    public GoogleIdentityMapper setMetrics(@Nullable final GoogleAuthnMetrics identityMetrics) {
+        this.metrics = identityMetrics;
+        return this;
+    }
+
+    /** The local account of a subject, or its absence, as of a time */
+    private static final class Mapping {
+        /** Local account identifier, null if none */
+        @Nullable private final String account;
+
+        /** Time in milliseconds the mapping was queried */
+        private final long loaded;
+
+        /**
+         * Constructor
+         *
+         * @param localAccount local account identifier, null if none
+         * @param queried time in milliseconds the mapping was queried
+         */
+        private Mapping(@Nullable final String localAccount, final long queried) {
+            this.account = localAccount;
+            this.loaded = queried;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Store mapping the Google sub claim to the identifier of a local account, queried by
+ * {@link GoogleIdentityMapper} when a mapping is not cached.
+ */
+public interface GoogleIdentityMappingSource {
+
+    /**
+     * Look up the local account of a Google subject
+     *
+     * @param sub the sub claim
+     * @return the local account identifier, or null if the subject has none
+     * @throws IOException if the store cannot be queried
+     */
+    @Nullable String lookup(@Nonnull String sub) throws IOException;
+}
@@ -14,15 +14,39 @@
 
 package org.mla.cbox.shibboleth.idp.authn.impl;
 
+import java.util.Collection;
+import java.util.Collections;
+
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonObjectParser;
+import com.google.api.client.json.jackson.JacksonFactory;
+
 /**
  * Represents a Google OAuth 2 web application integration
  */
 public class GoogleIntegration {
+    /** JSON factory used for interpreting responses from Google */
+    private static final JsonFactory JSON_FACTORY = new JacksonFactory();
+    
+    /** JSON parser shared by all requests, which is thread safe */
+    @Nonnull private final JsonObjectParser jsonParser = new JsonObjectParser(JSON_FACTORY);
+    
+    /** Streaming parser of token endpoint responses, which is thread safe */
+    @Nonnull private final TokenResponseParser tokenResponseParser = new TokenResponseParser(JSON_FACTORY);
+    
+    /** ID of this integration, null if it is not selectable by ID */
+    @Nullable private String id;
+    
     /** Google OAuth2 Client ID */
     @Nonnull private String oauth2ClientId;
     
@@ -35,6 +59,72 @@ public class GoogleIntegration {
     /** Google Token Endpoint */
     @Nonnull private String tokenEndpoint;
     
+    /** Space separated scopes requested at the authorization endpoint */
+    @Nonnull private String scope = "openid email profile";
+    
+    /** Prompt sent to the authorization endpoint, null or empty to send none */
+    @Nullable private String prompt = "select_account";
+    
+    /** G Suite domain users must belong to, null to accept any Google account */
+    @Nullable private String hostedDomain;
+    
+    /** Relying parties this integration is selected for by a {@link GoogleIntegrationRegistry} */
+    @Nonnull private Collection<String> relyingParties = Collections.emptyList();
+    
+    /** Hosts this integration is selected for by a {@link GoogleIntegrationRegistry} */
+    @Nonnull private Collection<String> hosts = Collections.emptyList();
+    
+    /** Transport used to query the Google endpoints */
+    @Nullable private GoogleTransportPool transportPool;
+    
+    /** Executor running token exchanges, null to run them on the calling thread */
+    @Nullable private GoogleTokenExchangeExecutor exchangeExecutor;
+    
+    /** Discovery document supplying the endpoints, null to use the configured endpoints */
+    @Nullable private GoogleDiscoveryCache discovery;
+    
+    /** Verifier of ID token signatures, null to accept ID tokens without verification */
+    @Nullable private GoogleIdTokenVerifier idTokenVerifier;
+    
+    /** Codec of stateless signed state tokens, null to compare against the token stored in the flow */
+    @Nullable private SignedStateCodec stateCodec;
+    
+    /** Circuit breaker around the token endpoint, null to always query it */
+    @Nullable private GoogleCircuitBreaker circuitBreaker;
+    
+    /** Adaptive limit on concurrent token endpoint queries, null for no limit */
+    @Nullable private GoogleConcurrencyLimiter concurrencyLimiter;
+    
+    /** Cache of codes and state tokens already presented, null to not detect replays */
+    @Nullable private GoogleReplayCache replayCache;
+    
+    /** Audit trail of login attempts, null to keep none */
+    @Nullable private GoogleLoginAuditLog auditLog;
+    
+    /** Opener of token endpoint connections while users are at Google, null to open none */
+    @Nullable private GoogleConnectionPrewarmer connectionPrewarmer;
+    
+    /** Receiver of measurements of the authentication flow, null to record none */
+    @Nullable private GoogleAuthnMetrics metrics;
+    
+    /** Request factory shared by all requests to the Google endpoints, built at initialization */
+    @Nullable private HttpRequestFactory requestFactory;
+    
+    /** Parsed token endpoint, replaced when the endpoint changes */
+    @Nullable private volatile ParsedEndpoint tokenEndpointUrl;
+    
+    /** Authorization URL template, replaced when any of its parameters changes */
+    @Nullable private volatile AuthorizationUrlTemplate authorizationUrlTemplate;
+    
+    /** Whether the transport pool was created by this integration */
+    private boolean ownsTransportPool;
+    
+    /** Whether to warm up the login code paths and the token endpoint connection at initialization */
+    private boolean warmUp;
+    
+    /** Time in milliseconds initialization waits for the warm-up to complete */
+    private long warmUpTimeout = 10000;
+    
     /** Class logger */
     @Nonnull private final Logger log = LoggerFactory.getLogger(GoogleIntegration.class);
     
@@ -46,10 +136,89 @@ public class GoogleIntegration {
         
     }
     
+    /**
+     * Initialize the integration, creating a default transport pool if none was configured
+     */
+    public void initialize() {
+        if (this.transportPool == null) {
+            log.debug("{} No transport pool configured, using default pool", this.logPrefix);
+            this.transportPool = new GoogleTransportPool();
+            this.transportPool.initialize();
+            this.ownsTransportPool = true;
+        }
+        
+        final GoogleTransportPool pool = this.transportPool;
+        this.requestFactory = pool.getHttpTransport().createRequestFactory(
+                new HttpRequestInitializer() {
+                    @Override
+                    public void initialize(HttpRequest request) {
+                        /* Set default parser as a JSON parser to make casting to class instance easier */
+                        request.setParser(jsonParser);
+                        request.setConnectTimeout(pool.getConnectTimeout());
+                        request.setReadTimeout(pool.getReadTimeout());
+                    }
+                });
+        
+        if (this.warmUp) {
+            this.runWarmUp();
+        }
+    }
+    
+    /**
+     * Run the warm-up on a separate thread, waiting for it no longer than the warm-up timeout
+     * so that an unreachable endpoint cannot hold up the start of the IdP
+     */
+    private void runWarmUp() {
+        final Thread thread = new Thread(new GoogleIntegrationWarmUp(this), "google-integration-warm-up");
+        thread.setDaemon(true);
+        thread.start();
+        try {
+            thread.join(this.warmUpTimeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            log.warn("{} Warm-up not complete after {} ms, continuing in the background", this.logPrefix,
+                    this.warmUpTimeout);
+        }
+    }
+    
+    /**
+     * Release the transport pool if it was created by this integration
+     */
+    public void destroy() {
+        if (this.ownsTransportPool) {
+            this.transportPool.destroy();
+            this.transportPool = null;
+            this.ownsTransportPool = false;
+        }
+    }
+    
+    /**
+     * Get the OAuth2 authorization endpoint, preferring the discovery document
+     * over the configured URL
+     * 
+     * @return the authorization endpoint
+     */
     public String getOauth2Url() {
+        if (this.discovery != null) {
+            final String discovered = this.discovery.getAuthorizationEndpoint();
+            if (discovered != null) {
+                return discovered;
+            }
+        }
         return this.oauth2Url;
     }
     
+    /**
+     * Get the ID of this integration
+     * 
+     * @return the ID, or null if it is not selectable by ID
+     */
+    @Nullable public String getId() {
+        return this.id;
+    }
+    
     public String getOauth2ClientId(){
         return this.oauth2ClientId;
     }
@@ -58,10 +227,210 @@ public class GoogleIntegration {
         return this.oauth2ClientSecret;
     }
     
+    public String getScope() {
+        return this.scope;
+    }
+    
+    public String getPrompt() {
+        return this.prompt;
+    }
+    
+    /**
+     * Get the G Suite domain users must belong to
+     * 
+     * @return the hosted domain, or null if any Google account is accepted
+     */
+    @Nullable public String getHostedDomain() {
+        return this.hostedDomain;
+    }
+    
+    @Nonnull public Collection<String> getRelyingParties() {
+        return this.relyingParties;
+    }
+    
+    @Nonnull public Collection<String> getHosts() {
+        return this.hosts;
+    }
+    
+    /**
+     * Get the token endpoint, preferring the discovery document over the configured URL
+     * 
+     * @return the token endpoint
+     */
     public String getTokenEndpoint() {
+        if (this.discovery != null) {
+            final String discovered = this.discovery.getTokenEndpoint();
+            if (discovered != null) {
+                return discovered;
+            }
+        }
         return this.tokenEndpoint;
     }
     
+    /**
+     * Get the parsed token endpoint, reparsed only when the endpoint changes
+     * 
+     * @return the token endpoint URL, which must not be modified
+     */
+    @Nonnull public GenericUrl getTokenEndpointUrl() {
+        final String endpoint = this.getTokenEndpoint();
+        ParsedEndpoint parsed = this.tokenEndpointUrl;
+        if (parsed == null || !endpoint.equals(parsed.endpoint)) {
+            parsed = new ParsedEndpoint(endpoint);
+            this.tokenEndpointUrl = parsed;
+        }
+        return parsed.url;
+    }
+    
+    /**
+     * Get the authorization URL template, rebuilt only when the authorization endpoint,
+     * client ID, scope, prompt or hosted domain changes
+     * 
+     * @return the authorization URL template
+     */
+    @Nonnull public AuthorizationUrlTemplate getAuthorizationUrlTemplate() {
+        final String endpoint = this.getOauth2Url();
+        AuthorizationUrlTemplate template = this.authorizationUrlTemplate;
+        if (template == null
+                || !template.matches(endpoint, this.oauth2ClientId, this.scope, this.prompt, this.hostedDomain)) {
+            template = new AuthorizationUrlTemplate(endpoint, this.oauth2ClientId, this.scope, this.prompt,
+                    this.hostedDomain);
+            this.authorizationUrlTemplate = template;
+        }
+        return template;
+    }
+    
+    /**
+     * Get the request factory shared by all requests to the Google endpoints
+     * 
+     * @return the request factory
+     */
+    @Nonnull public HttpRequestFactory getRequestFactory() {
+        return this.requestFactory;
+    }
+    
+    /**
+     * Get the JSON parser shared by all requests to the Google endpoints
+     * 
+     * @return the JSON parser
+     */
+    @Nonnull public JsonObjectParser getJsonParser() {
+        return this.jsonParser;
+    }
+    
+    /**
+     * Get the streaming parser of token endpoint responses
+     * 
+     * @return the token response parser
+     */
+    @Nonnull public TokenResponseParser getTokenResponseParser() {
+        return this.tokenResponseParser;
+    }
+    
+    /**
+     * Get the discovery document supplying the endpoints
+     * 
+     * @return the discovery cache, or null if the configured endpoints are used
+     */
+    @Nullable public GoogleDiscoveryCache getDiscovery() {
+        return this.discovery;
+    }
+    
+    /**
+     * Get the transport used to query the Google endpoints
+     * 
+     * @return the transport pool
+     */
+    @Nullable public GoogleTransportPool getTransportPool() {
+        return this.transportPool;
+    }
+    
+    /**
+     * Get the executor running token exchanges
+     * 
+     * @return the exchange executor, or null if exchanges run on the calling thread
+     */
+    @Nullable public GoogleTokenExchangeExecutor getExchangeExecutor() {
+        return this.exchangeExecutor;
+    }
+    
+    /**
+     * Get the verifier of ID token signatures
+     * 
+     * @return the ID token verifier, or null if ID tokens are not verified
+     */
+    @Nullable public GoogleIdTokenVerifier getIdTokenVerifier() {
+        return this.idTokenVerifier;
+    }
+    
+    /**
+     * Get the codec of stateless signed state tokens
+     * 
+     * @return the state codec, or null if state tokens are stored in the flow
+     */
+    @Nullable public SignedStateCodec getStateCodec() {
+        return this.stateCodec;
+    }
+    
+    /**
+     * Get the circuit breaker around the token endpoint
+     * 
+     * @return the circuit breaker, or null if the token endpoint is always queried
+     */
+    @Nullable public GoogleCircuitBreaker getCircuitBreaker() {
+        return this.circuitBreaker;
+    }
+    
+    /**
+     * Get the adaptive limit on concurrent token endpoint queries
+     * 
+     * @return the limiter, or null if the queries are not limited
+     */
+    @Nullable public GoogleConcurrencyLimiter getConcurrencyLimiter() {
+        return this.concurrencyLimiter;
+    }
+    
+    /**
+     * Get the cache of codes and state tokens already presented
+     * 
+     * @return the replay cache, or null if replays are not detected
+     */
+    @Nullable public GoogleReplayCache getReplayCache() {
+        return this.replayCache;
+    }
+    
+    /**
+     * Get the audit trail of login attempts
+     * 
+     * @return the audit log, or null if none is kept
+     */
+    @Nullable public GoogleLoginAuditLog getAuditLog() {
+        return this.auditLog;
+    }
+    
+    /**
+     * Get the opener of token endpoint connections while users are at Google
+     * 
+     * @return the prewarmer, or null if connections are only opened by the exchanges
+     */
+    @Nullable public GoogleConnectionPrewarmer getConnectionPrewarmer() {
+        return this.connectionPrewarmer;
+    }
+    
+    /**
+     * Get the receiver of measurements of the authentication flow
+     * 
+     * @return the metrics, or null if none are recorded
+     */
+    @Nullable public GoogleAuthnMetrics getMetrics() {
+        return this.metrics;
+    }
+    
+    public GoogleIntegration setId(@Nullable String integrationId) {
+        this.id = integrationId;
+        return this;
+    }
+    
     public GoogleIntegration setOauth2Url(String url) {
         this.oauth2Url = url;
         return this;
@@ -81,4 +450,113 @@ public class GoogleIntegration {
         this.tokenEndpoint = url;
         return this;
     }
+    
+    public GoogleIntegration setHostedDomain(@Nullable String domain) {
+        this.hostedDomain = domain == null || domain.isEmpty() ? null : domain;
+        return this;
+    }
+    
+    public GoogleIntegration setRelyingParties(@Nullable Collection<String> relyingPartyIds) {
+        this.relyingParties = relyingPartyIds != null ? relyingPartyIds : Collections.<String>emptyList();
+        return this;
+    }
+    
+    public GoogleIntegration setHosts(@Nullable Collection<String> hostNames) {
+        this.hosts = hostNames != null ? hostNames : Collections.<String>emptyList();
+        return this;
+    }
+    
+    public GoogleIntegration setScope(@Nonnull String oauth2Scope) {
+        this.scope = oauth2Scope;
+        return this;
+    }
+    
+    public GoogleIntegration setPrompt(@Nullable String oauth2Prompt) {
+        this.prompt = oauth2Prompt;
+        return this;
+    }
+    
+    public GoogleIntegration setDiscovery(@Nullable GoogleDiscoveryCache discoveryCache) {
+        this.discovery = discoveryCache;
+        return this;
+    }
+    
+    public GoogleIntegration setExchangeExecutor(@Nullable GoogleTokenExchangeExecutor executor) {
+        this.exchangeExecutor = executor;
+        return this;
+    }
+    
+    public GoogleIntegration setIdTokenVerifier(@Nullable GoogleIdTokenVerifier verifier) {
+        this.idTokenVerifier = verifier;
+        return this;
+    }
+    
+    public GoogleIntegration setStateCodec(@Nullable SignedStateCodec codec) {
+        this.stateCodec = codec;
+        return this;
+    }
+    
+    public GoogleIntegration setCircuitBreaker(@Nullable GoogleCircuitBreaker breaker) {
+        this.circuitBreaker = breaker;
+        return this;
+    }
+    
+    public GoogleIntegration setConcurrencyLimiter(@Nullable GoogleConcurrencyLimiter limiter) {
+        this.concurrencyLimiter = limiter;
+        return this;
+    }
+    
+    public GoogleIntegration setReplayCache(@Nullable GoogleReplayCache cache) {
+        this.replayCache = cache;
+        return this;
+    }
+    
+    public GoogleIntegration setAuditLog(@Nullable GoogleLoginAuditLog audit) {
+        this.auditLog = audit;
+        return this;
+    }
+    
+    public GoogleIntegration setConnectionPrewarmer(@Nullable GoogleConnectionPrewarmer prewarmer) {
+        this.connectionPrewarmer = prewarmer;
+        return this;
+    }
+    
+    public GoogleIntegration setMetrics(@Nullable GoogleAuthnMetrics authnMetrics) {
+        this.metrics = authnMetrics;
+        return this;
+    }
+    
+    public GoogleIntegration setWarmUp(boolean flag) {
+        this.warmUp = flag;
+        return this;
+    }
+    
+    public GoogleIntegration setWarmUpTimeout(long millis) {
+        this.warmUpTimeout = millis;
+        return this;
+    }
+    
+    public GoogleIntegration setTransportPool(@Nullable GoogleTransportPool pool) {
+        this.transportPool = pool;
+        return this;
+    }
+    
+    /** An endpoint together with its parsed URL */
+    private static final class ParsedEndpoint {
+        /** The endpoint */
+        @Nonnull private final String endpoint;
+        
+        /** The parsed URL */
+        @Nonnull private final GenericUrl url;
+        
+        /**
+         * Constructor
+         * 
+         * @param value the endpoint
+         */
+        ParsedEndpoint(@Nonnull final String value) {
+            this.endpoint = value;
+            this.url = new GenericUrl(value);
+        }
+    }
 }
@@ -0,0 +1,356 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.idp.profile.context.RelyingPartyContext;
+
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonObjectParser;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.client.util.Key;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Registry of the Google integrations of all tenants, selecting the integration for a login
+ * by relying party, by an integration ID looked up from the request such as an entity
+ * attribute of the relying party, or by the host the IdP was addressed as, in that order,
+ * falling back to the default integration.
+ *
+ * Integrations are configured directly or listed in a JSON tenants file, whose tenants
+ * share the endpoints, transport, executor, verifier and other collaborators of the default
+ * integration and differ in client, hosted domain, scope and selectors:
+ * <pre>{"tenants":[{"id":"mla","clientId":"...","clientSecret":"...","hostedDomain":"mla.org",
+ *   "relyingParties":["https://sp.mla.org/shibboleth"],"hosts":["idp.mla.org"]}]}</pre>
+ * The file is reloaded when it changes. Each reload builds and initializes every integration
+ * and then replaces the index in a single write, so lookups never block and never see a
+ * partially loaded set of tenants.
+ */
+@ThreadSafe
+public class GoogleIntegrationRegistry {
+    /** Parser of the tenants file */
+    @Nonnull private static final JsonObjectParser JSON_PARSER = new JsonObjectParser(new JacksonFactory());
+
+    /** Integration used when no other is selected */
+    @Nullable private GoogleIntegration defaultIntegration;
+
+    /** Integrations configured directly */
+    @Nonnull private Collection<GoogleIntegration> integrations = Collections.emptyList();
+
+    /** Tenants file, null if none */
+    @Nullable private String tenantsFile;
+
+    /** Interval in milliseconds between checks of the tenants file for changes */
+    private long reloadInterval = 60000;
+
+    /** Strategy looking up the requested integration ID, null to select by relying party and host only */
+    @Nullable private Function<ProfileRequestContext, String> integrationIdLookupStrategy;
+
+    /** Current index of the integrations */
+    @Nonnull private volatile Index index = new Index();
+
+    /** Modification time of the tenants file when last loaded */
+    private volatile long tenantsFileModified;
+
+    /** Scheduler checking the tenants file for changes */
+    @Nullable private ScheduledExecutorService scheduler;
+
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(GoogleIntegrationRegistry.class);
+
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+
+    /** A tenant in the tenants file */
+    public static class Tenant extends GenericJson {
+        @Key
+        private String id;
+
+        @Key
+        private String clientId;
+
+        @Key
+        private String clientSecret;
+
+        @Key
+        private String hostedDomain;
+
+        @Key
+        private String scope;
+
+        @Key
+        private String prompt;
+
+        @Key
+        private List<String> relyingParties;
+
+        @Key
+        private List<String> hosts;
+    }
+
+    /** The tenants file */
+    public static class TenantsDocument extends GenericJson {
+        @Key
+        private List<Tenant> tenants;
+    }
+
+    /** Constructor */
+    public GoogleIntegrationRegistry() {
+
+    }
+
+    /**
+     * Build the index, loading the tenants file if configured and scheduling checks for its changes
+     *
+     * @throws IOException if the tenants file cannot be loaded
+     */
+    public void initialize() throws IOException {
+        this.reload();
+
+        if (this.tenantsFile != null) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("google-tenants-reload-%d").setDaemon(true).build());
+            this.scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    final long modified = new File(tenantsFile).lastModified();
+                    if (modified != tenantsFileModified) {
+                        try {
+                            reload();
+                        } catch (IOException | RuntimeException e) {
+                            log.warn("{} Unable to reload tenants from {}, keeping current tenants : {}",
+                                    logPrefix, tenantsFile, e.getMessage());
+                        }
+                    }
+                }
+            }, this.reloadInterval, this.reloadInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop checking the tenants file for changes
+     */
+    public void destroy() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+            this.scheduler = null;
+        }
+    }
+
+    /**
+     * Rebuild the index from the configured integrations and the tenants file
+     *
+     * @throws IOException if the tenants file cannot be loaded
+     */
+    public synchronized void reload() throws IOException {
+        final List<GoogleIntegration> loaded = new ArrayList<GoogleIntegration>(this.integrations);
+        if (this.defaultIntegration != null && !loaded.contains(this.defaultIntegration)) {
+            loaded.add(0, this.defaultIntegration);
+        }
+        if (this.tenantsFile != null) {
+            final File file = new File(this.tenantsFile);
+            final long modified = file.lastModified();
+            final TenantsDocument document;
+            try (final FileInputStream in = new FileInputStream(file)) {
+                document = JSON_PARSER.parseAndClose(in, StandardCharsets.UTF_8, TenantsDocument.class);
+            }
+            if (document.tenants != null) {
+                for (final Tenant tenant : document.tenants) {
+                    loaded.add(this.newTenantIntegration(tenant));
+                }
+            }
+            this.tenantsFileModified = modified;
+        }
+
+        final Index rebuilt = new Index();
+        for (final GoogleIntegration integration : loaded) {
+            /* Build the authorization URL template now rather than on the first login */
+            integration.getAuthorizationUrlTemplate();
+            if (integration.getId() != null) {
+                rebuilt.byId.put(integration.getId(), integration);
+            }
+            for (final String relyingParty : integration.getRelyingParties()) {
+                rebuilt.byRelyingParty.put(relyingParty, integration);
+            }
+            for (final String host : integration.getHosts()) {
+                rebuilt.byHost.put(host.toLowerCase(Locale.ROOT), integration);
+            }
+        }
+        this.index = rebuilt;
+        log.info("{} Loaded {} Google integrations", this.logPrefix, loaded.size());
+    }
+
+    /**
+     * Select the integration for a login
+     *
+     * @param profileRequestContext the profile request context
+     * @param host the host the IdP was addressed as, or null if unknown
+     * @return the selected integration, or the default integration if none is selected
+     */
+    @Nullable public GoogleIntegration lookup(@Nonnull final ProfileRequestContext profileRequestContext,
+            @Nullable final String host) {
+        final Index current = this.index;
+
+        final RelyingPartyContext relyingPartyContext = profileRequestContext.getSubcontext(RelyingPartyContext.class);
+        if (relyingPartyContext != null && relyingPartyContext.getRelyingPartyId() != null) {
+            final GoogleIntegration integration = current.byRelyingParty.get(relyingPartyContext.getRelyingPartyId());
+            if (integration != null) {
+                return integration;
+            }
+        }
+
+        if (this.integrationIdLookupStrategy != null) {
+            final String id = this.integrationIdLookupStrategy.apply(profileRequestContext);
+            if (id != null) {
+                final GoogleIntegration integration = current.byId.get(id);
+                if (integration != null) {
+                    return integration;
+                }
+                log.warn("{} Relying party requested unknown Google integration {}", this.logPrefix, id);
+            }
+        }
+
+        if (host != null && !current.byHost.isEmpty()) {
+            final GoogleIntegration integration = current.byHost.get(host.toLowerCase(Locale.ROOT));
+            if (integration != null) {
+                return integration;
+            }
+        }
+
+        return this.defaultIntegration;
+    }
+
+    /**
+     * Get an integration by ID
+     *
+     * @param id the integration ID
+     * @return the integration, or null if there is none with this ID
+     */
+    @Nullable public GoogleIntegration getIntegration(@Nullable final String id) {
+        return id != null ? this.index.byId.get(id) : null;
+    }
+
+    /**
+     * Get the integration used when no other is selected
+     *
+     * @return the default integration
+     */
+    @Nullable public GoogleIntegration getDefaultIntegration() {
+        return this.defaultIntegration;
+    }
+
+    /**
+     * Build and initialize the integration of a tenant, sharing the collaborators of the default integration
+     *
+     * @param tenant the tenant
+     * @return the integration
+     * @throws IOException if the tenant is incomplete
+     */
+    @Nonnull private GoogleIntegration newTenantIntegration(@Nonnull final Tenant tenant) throws IOException {
+        if (tenant.id == null || tenant.clientId == null || tenant.clientSecret == null) {
+            throw new IOException("Tenant " + tenant.id + " requires an id, clientId and clientSecret");
+        }
+        final GoogleIntegration base = this.defaultIntegration;
+        if (base == null) {
+            throw new IOException("Tenants require a default integration to share its endpoints and transport");
+        }
+
+        final GoogleIntegration integration = new GoogleIntegration()
+                .setId(tenant.id)
+                .setOauth2ClientId(tenant.clientId)
+                .setOauth2ClientSecret(tenant.clientSecret)
+                .setHostedDomain(tenant.hostedDomain)
+                .setScope(tenant.scope != null ? tenant.scope : base.getScope())
+                .setPrompt(tenant.prompt != null ? tenant.prompt : base.getPrompt())
+                .setRelyingParties(tenant.relyingParties)
+                .setHosts(tenant.hosts)
+                .setOauth2Url(base.getOauth2Url())
+                .setTokenEndpoint(base.getTokenEndpoint())
+                .setDiscovery(base.getDiscovery())
+                .setTransportPool(base.getTransportPool())
+                .setExchangeExecutor(base.getExchangeExecutor())
+                .setIdTokenVerifier(base.getIdTokenVerifier())
+                .setStateCodec(base.getStateCodec())
+                .setCircuitBreaker(base.getCircuitBreaker())
+                .setConcurrencyLimiter(base.getConcurrencyLimiter())
+                .setReplayCache(base.getReplayCache())
+                .setAuditLog(base.getAuditLog())
+                .setConnectionPrewarmer(base.getConnectionPrewarmer())
+                .setMetrics(base.getMetrics());
+        integration.initialize();
+        return integration;
+    }
+
+    public GoogleIntegrationRegistry setDefaultIntegration(@Nullable final GoogleIntegration integration) {
+        this.defaultIntegration = integration;
+        return this;
+    }
+
+    public GoogleIntegrationRegistry setIntegrations(@Nullable final Collection<GoogleIntegration> configured) {
+        this.integrations = configured != null ? configured : Collections.<GoogleIntegration>emptyList();
+        return this;
+    }
+
+    public GoogleIntegrationRegistry setTenantsFile(@Nullable final String path) {
+        this.tenantsFile = path;
+        return this;
+    }
+
+    public GoogleIntegrationRegistry setReloadInterval(final long interval) {
+        this.reloadInterval = interval;
+        return this;
+    }
+
+    public GoogleIntegrationRegistry setIntegrationIdLookupStrategy(
+            @Nullable final Function<ProfileRequestContext, String> strategy) {
+        this.integrationIdLookupStrategy = strategy;
+        return this;
+    }
+
+    /** Integrations indexed by each selector, never modified once published */
+    private static final class Index {
+        /** Integrations by ID */
+        @Nonnull private final Map<String, GoogleIntegration> byId = new HashMap<String, GoogleIntegration>();
+
+        /** Integrations by relying party */
+        @Nonnull private final Map<String, GoogleIntegration> byRelyingParty = new HashMap<String, GoogleIntegration>();
+
+        /** Integrations by lower case host */
+        @Nonnull private final Map<String, GoogleIntegration> byHost = new HashMap<String, GoogleIntegration>();
+    }
+}
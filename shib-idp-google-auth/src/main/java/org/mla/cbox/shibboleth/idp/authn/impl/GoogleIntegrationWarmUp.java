@@ -0,0 +1,176 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Warms up the code paths of a login through a {@link GoogleIntegration} before the first user
+ * takes them, so that a node returning to rotation serves its first logins at steady-state
+ * latency.
+ *
+ * The warm-up parses a synthetic token response and decodes its ID token exactly as a login
+ * does, which loads the JSON classes and discovers the fields of {@link OidcIdToken}; expands
+ * the authorization URL; issues and validates a signed state token when a codec is configured;
+ * and finally resolves the host of the token endpoint and sends it a request through the
+ * shared request factory, leaving a connection with a completed TLS handshake in the pool.
+ * Every step is independent and a failing step is only logged.
+ */
+public class GoogleIntegrationWarmUp implements Runnable {
+    /** Claims of the synthetic ID token */
+    @Nonnull private static final String PAYLOAD = "{\"iss\":\"https://accounts.google.com\",\"aud\":\"warm-up\","
+            + "\"azp\":\"warm-up\",\"sub\":\"0\",\"hd\":\"example.org\",\"email\":\"warm-up@example.org\","
+            + "\"email_verified\":true,\"at_hash\":\"warm-up\",\"name\":\"Warm Up\","
+            + "\"picture\":\"https://example.org\",\"given_name\":\"Warm\","
+            + "\"family_name\":\"Up\",\"locale\":\"en\",\"iat\":0,\"exp\":0}";
+
+    /** The integration to warm up */
+    @Nonnull private final GoogleIntegration googleIntegration;
+
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(GoogleIntegrationWarmUp.class);
+
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+
+    /**
+     * Constructor
+     *
+     * @param integration the integration to warm up
+     */
+    public GoogleIntegrationWarmUp(@Nonnull final GoogleIntegration integration) {
+        this.googleIntegration = integration;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void run() {
+        final long started = System.nanoTime();
+        try {
+            this.decodePath();
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            log.warn("{} Unable to warm up the ID token decode path : {}", this.logPrefix, e.getMessage());
+        }
+        try {
+            this.redirectPath();
+        } catch (RuntimeException e) {
+            log.warn("{} Unable to warm up the authorization URL : {}", this.logPrefix, e.getMessage());
+        }
+        try {
+            this.tokenEndpointConnection();
+        } catch (IOException | RuntimeException e) {
+            log.warn("{} Unable to warm up the connection to the token endpoint : {}", this.logPrefix,
+                    e.getMessage());
+        }
+        log.info("{} Warmed up Google integration {} in {} ms", this.logPrefix, this.googleIntegration.getId(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    /**
+     * Parse a synthetic token response and decode its ID token into an {@link OidcIdToken} and a
+     * {@link GoogleIdPrincipal}, as ProcessRedirectFromGoogle does
+     *
+     * @throws IOException if the synthetic token cannot be parsed
+     * @throws GeneralSecurityException if the signature algorithm is not available
+     */
+    private void decodePath() throws IOException, GeneralSecurityException {
+        final BaseEncoding base64Url = BaseEncoding.base64Url().omitPadding();
+        final String jwt = base64Url.encode("{\"alg\":\"RS256\",\"kid\":\"warm-up\"}".getBytes(StandardCharsets.UTF_8))
+                + "." + base64Url.encode(PAYLOAD.getBytes(StandardCharsets.UTF_8))
+                + "." + base64Url.encode(new byte[256]);
+        final String tokenResponse = "{\"access_token\":\"warm-up\",\"expires_in\":3600,\"scope\":\"openid\","
+                + "\"token_type\":\"Bearer\",\"id_token\":\"" + jwt + "\"}";
+
+        final String idTokenString = this.googleIntegration.getTokenResponseParser().parseIdToken(
+                new ByteArrayInputStream(tokenResponse.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+        final JwtSegmentDecoder decoder = new JwtSegmentDecoder(idTokenString);
+        final OidcIdToken idToken = this.googleIntegration.getJsonParser().parseAndClose(decoder.openPayload(),
+                StandardCharsets.UTF_8, OidcIdToken.class);
+        decoder.decodeSignature();
+        new GoogleIdPrincipal(idToken).serialize();
+
+        if (this.googleIntegration.getIdTokenVerifier() != null) {
+            /* Load the signature provider, the keys themselves being fetched by the key cache */
+            Signature.getInstance("SHA256withRSA");
+        }
+    }
+
+    /**
+     * Expand the authorization URL and, if a codec is configured, issue and validate a signed state token
+     */
+    private void redirectPath() {
+        this.googleIntegration.getAuthorizationUrlTemplate().expand("https", "localhost",
+                "/idp/profile/SAML2/Redirect/SSO?execution=e1s1", "warm-up");
+        final SignedStateCodec stateCodec = this.googleIntegration.getStateCodec();
+        if (stateCodec != null) {
+            stateCodec.validate(stateCodec.issue("e1s1", "warm-up"), "e1s1", "warm-up");
+        }
+    }
+
+    /**
+     * Resolve the host of the token endpoint and send it a request, so that a connection with
+     * a completed TLS handshake is left in the pool for the first exchange
+     *
+     * @throws IOException if the token endpoint cannot be reached
+     */
+    private void tokenEndpointConnection() throws IOException {
+        final GenericUrl tokenEndpoint = this.googleIntegration.getTokenEndpointUrl();
+        final long resolveStarted = System.nanoTime();
+        InetAddress.getAllByName(tokenEndpoint.getHost());
+        final long connectStarted = System.nanoTime();
+        final int status = connectTokenEndpoint(this.googleIntegration);
+        log.debug("{} Token endpoint {} resolved in {} ms, answered {} in {} ms", this.logPrefix, tokenEndpoint,
+                TimeUnit.NANOSECONDS.toMillis(connectStarted - resolveStarted), status,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStarted));
+    }
+
+    /**
+     * Send a request to the token endpoint of an integration through its shared request factory,
+     * leaving the connection in the pool
+     *
+     * @param integration the integration
+     * @return the status of the response
+     * @throws IOException if the token endpoint cannot be reached
+     */
+    static int connectTokenEndpoint(@Nonnull final GoogleIntegration integration) throws IOException {
+        /* The token endpoint refuses a GET, which costs Google nothing and still completes the handshake */
+        final HttpRequest request = integration.getRequestFactory().buildGetRequest(integration.getTokenEndpointUrl());
+        request.setThrowExceptionOnExecuteError(false);
+        final HttpResponse response = request.execute();
+        try {
+            return response.getStatusCode();
+        } finally {
+            /* Consume the body so that the connection is released to the pool rather than closed */
+            response.ignore();
+        }
+    }
+}
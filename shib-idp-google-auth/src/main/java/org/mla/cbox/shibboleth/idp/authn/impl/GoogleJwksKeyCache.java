@@ -0,0 +1,417 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonObjectParser;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.client.util.Key;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Cache of the public keys Google signs ID tokens with, indexed by key ID.
+ *
+ * The key set is fetched at initialization and refreshed in the background when the
+ * max-age announced by Google expires, keeping the last good key set if a refresh fails.
+ * A lookup for an unknown key ID, as happens when Google rotates keys, triggers an
+ * immediate refresh no more often than the configured minimum interval. The refresh runs
+ * on the background thread, shared by all lookups arriving meanwhile, each of which waits
+ * for it at most the refresh wait before failing.
+ */
+public class GoogleJwksKeyCache {
+    /** JSON factory used for parsing the key set */
+    private static final JsonFactory JSON_FACTORY = new JacksonFactory();
+
+    /** Pattern extracting max-age from a Cache-Control header */
+    private static final Pattern MAX_AGE_PATTERN = Pattern.compile("max-age\\s*=\\s*(\\d+)");
+
+    /** URL of the JSON web key set */
+    @Nonnull private String jwksUri = "https://www.googleapis.com/oauth2/v3/certs";
+
+    /** Discovery document supplying the key set URL, null to use the configured URL */
+    @Nullable private GoogleDiscoveryCache discovery;
+
+    /** Transport used to fetch the key set */
+    @Nullable private GoogleTransportPool transportPool;
+
+    /** Refresh interval in milliseconds when Google does not announce a max-age */
+    private long defaultRefreshInterval = 3600000;
+
+    /** Minimum interval in milliseconds between refreshes */
+    private long minRefreshInterval = 60000;
+
+    /** Interval in milliseconds before retrying a failed refresh */
+    private long retryInterval = 60000;
+
+    /** Maximum time in milliseconds a lookup waits for the refresh triggered by an unknown key ID */
+    private long refreshWait = 2000;
+
+    /** Current keys indexed by key ID, replaced as a whole on refresh */
+    @Nonnull private volatile Map<String, PublicKey> keys = Collections.emptyMap();
+
+    /** Time of the last refresh attempt in milliseconds */
+    private volatile long lastRefresh;
+
+    /** Whether the transport pool was created by this cache */
+    private boolean ownsTransportPool;
+
+    /** Scheduler running background refreshes, the only thread refreshing after initialization */
+    @Nullable private ScheduledExecutorService scheduler;
+
+    /** Refresh triggered by an unknown key ID, guarded by this cache */
+    @Nullable private Future<?> pendingRefresh;
+
+    /** Key factory used for building RSA keys, confined to the refreshing thread */
+    @Nullable private KeyFactory keyFactory;
+
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(GoogleJwksKeyCache.class);
+
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+
+    /** Represents a JSON web key set */
+    public static class JsonWebKeySet extends GenericJson {
+        @Key
+        private List<JsonWebKey> keys;
+
+        public List<JsonWebKey> getKeys() {
+            return this.keys;
+        }
+    }
+
+    /** Represents a JSON web key */
+    public static class JsonWebKey extends GenericJson {
+        @Key
+        private String kty;
+
+        @Key
+        private String kid;
+
+        @Key
+        private String n;
+
+        @Key
+        private String e;
+    }
+
+    /** Constructor */
+    public GoogleJwksKeyCache() {
+
+    }
+
+    /**
+     * Initialize the cache by fetching the key set and scheduling its refresh
+     */
+    public void initialize() {
+        if (this.transportPool == null) {
+            this.transportPool = new GoogleTransportPool();
+            this.transportPool.initialize();
+            this.ownsTransportPool = true;
+        }
+
+        try {
+            this.keyFactory = KeyFactory.getInstance("RSA");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("RSA key factory is not available", e);
+        }
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("google-jwks-refresh-%d").setDaemon(true).build());
+
+        this.scheduleRefresh(this.refreshOrRetry());
+    }
+
+    /**
+     * Stop refreshing the key set
+     */
+    public void destroy() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+            this.scheduler = null;
+        }
+        if (this.ownsTransportPool) {
+            this.transportPool.destroy();
+            this.transportPool = null;
+            this.ownsTransportPool = false;
+        }
+    }
+
+    /**
+     * Get the key with the given key ID, refreshing the key set if the key ID is unknown
+     *
+     * @param kid the key ID
+     * @return the key, or null if no key with that key ID is published by Google or the
+     *      refresh did not complete within the refresh wait
+     */
+    @Nullable public PublicKey getKey(@Nullable final String kid) {
+        if (kid == null) {
+            return null;
+        }
+
+        final PublicKey key = this.keys.get(kid);
+        if (key != null) {
+            return key;
+        }
+
+        final Future<?> refresh = this.triggerRefresh(kid);
+        if (refresh == null) {
+            return null;
+        }
+        try {
+            refresh.get(this.refreshWait, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.warn("{} Key set refresh for unknown key ID {} not complete within {} ms", this.logPrefix, kid,
+                    this.refreshWait);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+
+        return this.keys.get(kid);
+    }
+
+    /**
+     * Get the number of keys in the cache
+     *
+     * @return the number of keys
+     */
+    public int getKeyCount() {
+        return this.keys.size();
+    }
+
+    /**
+     * Start a refresh of the key set on the background thread for an unknown key ID, unless
+     * one is in progress or the last refresh is more recent than the minimum interval
+     *
+     * @param kid the unknown key ID
+     * @return the refresh to wait for, or null if there is none
+     */
+    @Nullable private synchronized Future<?> triggerRefresh(@Nonnull final String kid) {
+        if (this.keys.containsKey(kid)) {
+            return null;
+        }
+        if (this.pendingRefresh != null && !this.pendingRefresh.isDone()) {
+            return this.pendingRefresh;
+        }
+        final ScheduledExecutorService current = this.scheduler;
+        if (current == null || System.currentTimeMillis() - this.lastRefresh < this.minRefreshInterval) {
+            return null;
+        }
+
+        log.debug("{} Unknown key ID {}, refreshing key set", this.logPrefix, kid);
+        this.lastRefresh = System.currentTimeMillis();
+        try {
+            this.pendingRefresh = current.submit(new Runnable() {
+                @Override
+                public void run() {
+                    refresh();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+        return this.pendingRefresh;
+    }
+
+    /**
+     * Fetch the key set and replace the cached keys, keeping the cached keys if the fetch fails
+     *
+     * @return the delay in milliseconds before the next refresh
+     */
+    private long refresh() {
+        this.lastRefresh = System.currentTimeMillis();
+        final String uri = this.currentJwksUri();
+        try {
+            final HttpRequest request = this.transportPool.getHttpTransport().createRequestFactory()
+                    .buildGetRequest(new GenericUrl(uri));
+            request.setParser(new JsonObjectParser(JSON_FACTORY));
+            request.setConnectTimeout(this.transportPool.getConnectTimeout());
+            request.setReadTimeout(this.transportPool.getReadTimeout());
+
+            final HttpResponse response = request.execute();
+            final JsonWebKeySet keySet;
+            try {
+                keySet = response.parseAs(JsonWebKeySet.class);
+            } finally {
+                response.ignore();
+            }
+
+            final Map<String, PublicKey> refreshed = new HashMap<String, PublicKey>();
+            if (keySet.getKeys() != null) {
+                for (final JsonWebKey jwk : keySet.getKeys()) {
+                    if ("RSA".equals(jwk.kty) && jwk.kid != null && jwk.n != null && jwk.e != null) {
+                        final BigInteger modulus = new BigInteger(1, BaseEncoding.base64Url().omitPadding().decode(jwk.n));
+                        final BigInteger exponent = new BigInteger(1, BaseEncoding.base64Url().omitPadding().decode(jwk.e));
+                        refreshed.put(jwk.kid, this.keyFactory.generatePublic(new RSAPublicKeySpec(modulus, exponent)));
+                    }
+                }
+            }
+
+            if (refreshed.isEmpty()) {
+                log.warn("{} Key set at {} contains no usable keys, keeping {} cached keys", this.logPrefix,
+                        uri, this.keys.size());
+                return this.retryInterval;
+            }
+
+            this.keys = Collections.unmodifiableMap(refreshed);
+            log.debug("{} Cached {} keys with IDs {}", this.logPrefix, refreshed.size(), refreshed.keySet());
+
+            return this.maxAge(response.getHeaders().getCacheControl());
+        } catch (IOException | GeneralSecurityException | IllegalArgumentException e) {
+            log.warn("{} Unable to refresh key set from {}, keeping {} cached keys : {}", this.logPrefix,
+                    uri, this.keys.size(), e.getMessage());
+            return this.retryInterval;
+        }
+    }
+
+    /**
+     * Get the key set URL, preferring the discovery document over the configured URL
+     *
+     * @return the key set URL
+     */
+    @Nonnull private String currentJwksUri() {
+        if (this.discovery != null) {
+            final String discovered = this.discovery.getJwksUri();
+            if (discovered != null) {
+                return discovered;
+            }
+        }
+        return this.jwksUri;
+    }
+
+    /**
+     * Schedule the next background refresh
+     *
+     * @param delay the delay in milliseconds
+     */
+    private void scheduleRefresh(final long delay) {
+        final ScheduledExecutorService current = this.scheduler;
+        if (current == null || current.isShutdown()) {
+            return;
+        }
+        current.schedule(new Runnable() {
+            @Override
+            public void run() {
+                scheduleRefresh(refreshOrRetry());
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Refresh the key set, retrying after the retry interval on any failure, so that an
+     * unexpected exception cannot end the chain of scheduled refreshes
+     *
+     * @return the delay in milliseconds before the next refresh
+     */
+    private long refreshOrRetry() {
+        try {
+            return this.refresh();
+        } catch (RuntimeException e) {
+            log.error("{} Unexpected failure refreshing key set, keeping {} cached keys", this.logPrefix,
+                    this.keys.size(), e);
+            return this.retryInterval;
+        }
+    }
+
+    /**
+     * Compute the refresh delay from a Cache-Control header
+     *
+     * @param cacheControl the Cache-Control header value
+     * @return the delay in milliseconds
+     */
+    private long maxAge(@Nullable final String cacheControl) {
+        if (cacheControl != null) {
+            final Matcher matcher = MAX_AGE_PATTERN.matcher(cacheControl);
+            if (matcher.find()) {
+                try {
+                    return Math.max(Long.parseLong(matcher.group(1)) * 1000, this.minRefreshInterval);
+                } catch (NumberFormatException e) {
+                    log.debug("{} Ignoring invalid max-age in {}", this.logPrefix, cacheControl);
+                }
+            }
+        }
+        return this.defaultRefreshInterval;
+    }
+
+    public GoogleJwksKeyCache setJwksUri(@Nonnull final String uri) {
+        this.jwksUri = uri;
+        return this;
+    }
+
+    public GoogleJwksKeyCache setDiscovery(@Nullable final GoogleDiscoveryCache discoveryCache) {
+        this.discovery = discoveryCache;
+        return this;
+    }
+
+    public GoogleJwksKeyCache setTransportPool(@Nullable final GoogleTransportPool pool) {
+        this.transportPool = pool;
+        return this;
+    }
+
+    public GoogleJwksKeyCache setDefaultRefreshInterval(final long interval) {
+        this.defaultRefreshInterval = interval;
+        return this;
+    }
+
+    public GoogleJwksKeyCache setMinRefreshInterval(final long interval) {
+        this.minRefreshInterval = interval;
+        return this;
+    }
+
+    public GoogleJwksKeyCache setRetryInterval(final long interval) {
+        this.retryInterval = interval;
+        return this;
+    }
+
+    public GoogleJwksKeyCache setRefreshWait(final long millis) {
+        this.refreshWait = millis;
+        return this;
+    }
+}
@@ -0,0 +1,471 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Audit trail of every login attempt through the Google flow, appended to a file as one
+ * JSON object per line with the time, integration, subject, hosted domain, outcome,
+ * failure reason and latency of the attempt.
+ *
+ * Recording an attempt only places it in a bounded ring buffer, so the request thread never
+ * waits for the disk. A single writer thread drains the ring in batches, appends each batch
+ * with one write and forces it to disk with one fsync, so a burst of logins shares the cost
+ * of committing. When the ring is full a login waits at most the maximum wait for room and
+ * the record is then dropped and counted instead of slowing logins down further.
+ *
+ * A file that cannot be opened does not stop the flow from starting: the writer opens it
+ * again with each batch, and the records of batches that cannot be written are counted as
+ * failed until it succeeds.
+ */
+@ThreadSafe
+public class GoogleLoginAuditLog {
+    /** Outcome of a login that produced an authentication result */
+    @Nonnull public static final String SUCCESS = "success";
+
+    /** Time in nanoseconds between checks for room in a full ring */
+    private static final long FULL_RING_PAUSE = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /** Time in milliseconds the writer sleeps when the ring is empty, if not woken earlier */
+    private static final long IDLE_WAIT = 100;
+
+    /** Path of the audit file */
+    @Nullable private String file;
+
+    /** Number of records the ring holds, rounded up to a power of two */
+    private int capacity = 8192;
+
+    /** Maximum number of records appended and committed together */
+    private int batchSize = 512;
+
+    /** Maximum time in milliseconds a login waits for room in a full ring */
+    private long maxWait;
+
+    /** Whether to force each batch to disk before writing the next */
+    private boolean sync = true;
+
+    /** Records, indexed by sequence number modulo the capacity */
+    @Nonnull private AtomicReferenceArray<Record> ring = new AtomicReferenceArray<Record>(0);
+
+    /** Sequence number each slot expects next, telling writer and loggers whose turn it is */
+    @Nonnull private AtomicLongArray turns = new AtomicLongArray(0);
+
+    /** Mask reducing a sequence number to a slot index */
+    private int mask;
+
+    /** Next sequence number claimed by a login */
+    @Nonnull private final AtomicLong tail = new AtomicLong();
+
+    /** Next sequence number read by the writer, only touched by the writer thread */
+    private long head;
+
+    /** Thread appending the records to the file */
+    @Nullable private Thread writer;
+
+    /** Whether the writer thread is parked waiting for records */
+    private volatile boolean writerIdle;
+
+    /** Whether the audit log is being destroyed */
+    private volatile boolean stopping;
+
+    /** Channel appending to the audit file, null until it has been opened */
+    @Nullable private FileChannel channel;
+
+    /** Number of records written to the file */
+    @Nonnull private final AtomicLong written = new AtomicLong();
+
+    /** Number of records dropped because the ring was full */
+    @Nonnull private final AtomicLong dropped = new AtomicLong();
+
+    /** Number of records lost because the file could not be written */
+    @Nonnull private final AtomicLong failed = new AtomicLong();
+
+    /** Number of batches committed */
+    @Nonnull private final AtomicLong batches = new AtomicLong();
+
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(GoogleLoginAuditLog.class);
+
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+
+    /** Constructor */
+    public GoogleLoginAuditLog() {
+
+    }
+
+    /**
+     * Open the audit file and start the writer thread
+     */
+    public void initialize() {
+        if (this.file == null) {
+            throw new IllegalArgumentException("A login audit log needs a file");
+        }
+        final int size = Integer.highestOneBit(Math.max(2, this.capacity - 1)) << 1;
+        this.ring = new AtomicReferenceArray<Record>(size);
+        this.turns = new AtomicLongArray(size);
+        for (int index = 0; index < size; index++) {
+            this.turns.set(index, index);
+        }
+        this.mask = size - 1;
+        try {
+            this.channel = this.open();
+        } catch (IOException e) {
+            log.error("{} Unable to open {}, retrying with each batch of records : {}", this.logPrefix, this.file,
+                    e.getMessage());
+        }
+
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "google-login-audit");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        log.debug("{} Appending to {} through a ring of {} records", this.logPrefix, this.file, size);
+    }
+
+    /**
+     * Write the records still in the ring, then stop the writer thread and close the audit file
+     */
+    public void destroy() {
+        final Thread current = this.writer;
+        if (current == null) {
+            return;
+        }
+        this.stopping = true;
+        LockSupport.unpark(current);
+        try {
+            current.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.writer = null;
+        if (this.channel == null) {
+            return;
+        }
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            log.warn("{} Unable to close {} : {}", this.logPrefix, this.file, e.getMessage());
+        }
+    }
+
+    /**
+     * Record a login attempt
+     *
+     * @param integrationId the identifier of the Google integration used
+     * @param sub the Google subject, or null if the login failed before an ID token was obtained
+     * @param hd the hosted domain of the subject, or null if none
+     * @param outcome {@link #SUCCESS} or the event ending the login
+     * @param reason why the login failed, or null if it succeeded
+     * @param nanos the time in nanoseconds taken to process the callback from Google
+     * @return true if the attempt was recorded, false if it was dropped because the ring was full
+     */
+    public boolean record(@Nullable final String integrationId, @Nullable final String sub,
+            @Nullable final String hd, @Nonnull final String outcome, @Nullable final String reason,
+            final long nanos) {
+        final Record record = new Record(System.currentTimeMillis(), integrationId, sub, hd, outcome, reason,
+                nanos);
+        if (!this.offer(record)) {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.maxWait);
+            do {
+                if (this.maxWait <= 0 || System.nanoTime() - deadline >= 0) {
+                    if (this.dropped.incrementAndGet() % 1000 == 1) {
+                        log.warn("{} Ring of {} records full, dropping login audit records", this.logPrefix,
+                                this.mask + 1);
+                    }
+                    return false;
+                }
+                LockSupport.parkNanos(FULL_RING_PAUSE);
+            } while (!this.offer(record));
+        }
+
+        if (this.writerIdle) {
+            LockSupport.unpark(this.writer);
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of records written to the file
+     *
+     * @return the count
+     */
+    public long getWrittenCount() {
+        return this.written.get();
+    }
+
+    /**
+     * Get the number of records dropped because the ring was full
+     *
+     * @return the count
+     */
+    public long getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    /**
+     * Get the number of records lost because the file could not be written
+     *
+     * @return the count
+     */
+    public long getFailedCount() {
+        return this.failed.get();
+    }
+
+    /**
+     * Get the number of batches committed to the file
+     *
+     * @return the count
+     */
+    public long getBatchCount() {
+        return this.batches.get();
+    }
+
+    /**
+     * Place a record in the ring if there is room
+     *
+     * @param record the record
+     * @return true iff there was room
+     */
+    private boolean offer(@Nonnull final Record record) {
+        while (true) {
+            final long sequence = this.tail.get();
+            final int index = (int) sequence & this.mask;
+            final long turn = this.turns.get(index);
+            if (turn < sequence) {
+                /* The writer has not yet taken the record from the previous lap */
+                return false;
+            } else if (turn == sequence && this.tail.compareAndSet(sequence, sequence + 1)) {
+                this.ring.set(index, record);
+                this.turns.set(index, sequence + 1);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Take the next record from the ring, on the writer thread
+     *
+     * @return the record, or null if the ring is empty
+     */
+    @Nullable private Record poll() {
+        final int index = (int) this.head & this.mask;
+        if (this.turns.get(index) != this.head + 1) {
+            return null;
+        }
+        final Record record = this.ring.get(index);
+        this.ring.set(index, null);
+        this.turns.set(index, this.head + this.mask + 1);
+        this.head++;
+        return record;
+    }
+
+    /**
+     * Append batches of records to the file until destroyed, on the writer thread
+     */
+    private void drain() {
+        final StringWriter batch = new StringWriter();
+        while (true) {
+            final boolean stop = this.stopping;
+            int count = 0;
+            Record record;
+            while (count < this.batchSize && (record = this.poll()) != null) {
+                try {
+                    record.write(batch);
+                } catch (IOException e) {
+                    /* A StringWriter does not fail */
+                    throw new IllegalStateException(e);
+                }
+                count++;
+            }
+
+            if (count > 0) {
+                this.commit(batch, count);
+                batch.getBuffer().setLength(0);
+            } else if (stop) {
+                return;
+            } else {
+                /* Announce the wait before checking the ring once more, so that no wake up is missed */
+                this.writerIdle = true;
+                if (this.turns.get((int) this.head & this.mask) != this.head + 1 && !this.stopping) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(IDLE_WAIT));
+                }
+                this.writerIdle = false;
+            }
+        }
+    }
+
+    /**
+     * Open the audit file for appending, creating it if needed
+     *
+     * @return the channel
+     * @throws IOException if the file cannot be opened
+     */
+    @Nonnull private FileChannel open() throws IOException {
+        return FileChannel.open(Paths.get(this.file), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Append a batch of records to the file and force them to disk, opening the file first
+     * if it has not been opened yet
+     *
+     * @param batch the records as JSON lines
+     * @param count the number of records
+     */
+    private void commit(@Nonnull final StringWriter batch, final int count) {
+        final ByteBuffer bytes = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+        try {
+            if (this.channel == null) {
+                this.channel = this.open();
+                log.info("{} Opened {}", this.logPrefix, this.file);
+            }
+            while (bytes.hasRemaining()) {
+                this.channel.write(bytes);
+            }
+            if (this.sync) {
+                this.channel.force(false);
+            }
+            this.written.addAndGet(count);
+            this.batches.incrementAndGet();
+        } catch (IOException e) {
+            if (this.failed.getAndAdd(count) == 0) {
+                log.error("{} Unable to write login audit records to {} : {}", this.logPrefix, this.file,
+                        e.getMessage());
+            } else {
+                log.debug("{} Unable to write login audit records to {} : {}", this.logPrefix, this.file,
+                        e.getMessage());
+            }
+        }
+    }
+
+    public GoogleLoginAuditLog setFile(@Nonnull final String path) {
+        this.file = path;
+        return this;
+    }
+
+    public GoogleLoginAuditLog setCapacity(final int records) {
+        this.capacity = records;
+        return this;
+    }
+
+    public GoogleLoginAuditLog setBatchSize(final int records) {
+        this.batchSize = records;
+        return this;
+    }
+
+    public GoogleLoginAuditLog setMaxWait(final long millis) {
+        this.maxWait = millis;
+        return this;
+    }
+
+    public GoogleLoginAuditLog setSync(final boolean forceToDisk) {
+        this.sync = forceToDisk;
+        return this;
+    }
+
+    /** One login attempt */
+    private static final class Record {
+        /** Time of the attempt in milliseconds since the epoch */
+        private final long time;
+
+        /** Identifier of the Google integration */
+        @Nullable private final String integrationId;
+
+        /** Google subject */
+        @Nullable private final String sub;
+
+        /** Hosted domain */
+        @Nullable private final String hd;
+
+        /** Outcome */
+        @Nonnull private final String outcome;
+
+        /** Failure reason */
+        @Nullable private final String reason;
+
+        /** Latency in nanoseconds */
+        private final long nanos;
+
+        /**
+         * Constructor
+         *
+         * @param timestamp time of the attempt in milliseconds since the epoch
+         * @param integration identifier of the Google integration
+         * @param subject Google subject
+         * @param hostedDomain hosted domain
+         * @param result outcome
+         * @param failureReason failure reason
+         * @param latency latency in nanoseconds
+         */
+        private Record(final long timestamp, @Nullable final String integration, @Nullable final String subject,
+                @Nullable final String hostedDomain, @Nonnull final String result,
+                @Nullable final String failureReason, final long latency) {
+            this.time = timestamp;
+            this.integrationId = integration;
+            this.sub = subject;
+            this.hd = hostedDomain;
+            this.outcome = result;
+            this.reason = failureReason;
+            this.nanos = latency;
+        }
+
+        /**
+         * Write the record as a line holding a JSON object, leaving out absent fields
+         *
+         * @param out where to write
+         * @throws IOException if writing fails
+         */
+        private void write(@Nonnull final StringWriter out) throws IOException {
+            final JsonWriter json = new JsonWriter(out);
+            json.setSerializeNulls(false);
+            json.beginObject();
+            json.name("time").value(this.time);
+            json.name("integration").value(this.integrationId);
+            json.name("sub").value(this.sub);
+            json.name("hd").value(this.hd);
+            json.name("outcome").value(this.outcome);
+            json.name("reason").value(this.reason);
+            json.name("latencyMs").value(TimeUnit.NANOSECONDS.toMicros(this.nanos) / 1000.0);
+            json.endObject();
+            json.flush();
+            out.write('\n');
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.opensaml.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Rejects authorization codes and state tokens that have been seen before, so that a replayed
+ * callback fails locally instead of costing a query to the token endpoint.
+ *
+ * Values are remembered as 64 bit fingerprints in a ring of time buckets. Each bucket is a
+ * fixed size open addressing table filled with compare and set, so checks take no lock and
+ * a constant number of steps. Every lifetime / (buckets - 1) milliseconds the oldest bucket
+ * is replaced by an empty one, so each value is remembered for at least the lifetime and
+ * the memory used is fixed, between 16 and 32 bytes per value of capacity and bucket. If a
+ * bucket fills up, further values are accepted without being remembered and counted as
+ * overflows; Google still refuses to exchange a code twice.
+ *
+ * A StorageService shared by the nodes of a cluster can be configured, in which case values
+ * new to this node are also recorded there, catching replays to other nodes.
+ */
+@ThreadSafe
+public class GoogleReplayCache {
+    /** Storage context of authorization codes */
+    @Nonnull public static final String CODE_CONTEXT = "org.mla.cbox.shibboleth.idp.authn.GoogleCode";
+
+    /** Storage context of state tokens */
+    @Nonnull public static final String STATE_CONTEXT = "org.mla.cbox.shibboleth.idp.authn.GoogleState";
+
+    /** Maximum number of slots probed for a fingerprint */
+    private static final int MAX_PROBES = 32;
+
+    /** Time in milliseconds a value is remembered at least */
+    private long lifetime = 600000;
+
+    /** Number of time buckets */
+    private int buckets = 6;
+
+    /** Number of fingerprints a bucket is sized to hold */
+    private int capacity = 16384;
+
+    /** Storage shared by the cluster, null to remember values on this node only */
+    @Nullable private StorageService storageService;
+
+    /** Whether to reject a value when the storage cannot be queried */
+    private boolean strict;
+
+    /** Duration in milliseconds of a bucket */
+    private long bucketDuration;
+
+    /** Number of slots per bucket, a power of two at least twice the capacity to keep probes short */
+    private int slots;
+
+    /** Ring of buckets, indexed by bucket number modulo the number of buckets */
+    @Nonnull private AtomicReferenceArray<Bucket> ring = new AtomicReferenceArray<Bucket>(0);
+
+    /** Fingerprint function, seeded at initialization so that collisions cannot be precomputed */
+    @Nullable private HashFunction fingerprints;
+
+    /** Number of values accepted without being remembered because a bucket was full */
+    @Nonnull private final AtomicLong overflows = new AtomicLong();
+
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(GoogleReplayCache.class);
+
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+
+    /** Constructor */
+    public GoogleReplayCache() {
+
+    }
+
+    /**
+     * Allocate the buckets
+     */
+    public void initialize() {
+        if (this.buckets < 2) {
+            throw new IllegalArgumentException("A replay cache needs at least 2 buckets");
+        }
+        this.bucketDuration = Math.max(1, (this.lifetime + this.buckets - 2) / (this.buckets - 1));
+        this.slots = Integer.highestOneBit(Math.max(MAX_PROBES, this.capacity - 1)) << 2;
+        this.ring = new AtomicReferenceArray<Bucket>(this.buckets);
+        this.fingerprints = Hashing.murmur3_128(new SecureRandom().nextInt());
+        log.debug("{} Remembering {} values per {} ms for {} ms, using {} KB", this.logPrefix, this.capacity,
+                this.bucketDuration, this.bucketDuration * (this.buckets - 1),
+                (long) this.buckets * this.slots * 8 / 1024);
+    }
+
+    /**
+     * Record a value, unless it has been seen before
+     *
+     * @param context the kind of value, {@link #CODE_CONTEXT} or {@link #STATE_CONTEXT}
+     * @param value the value
+     * @return true iff the value has not been seen before
+     */
+    public boolean checkAndRecord(@Nonnull final String context, @Nonnull final String value) {
+        final long fingerprint = this.fingerprint(context, value);
+        final long now = System.currentTimeMillis();
+        final long current = now / this.bucketDuration;
+
+        /* Look in the earlier buckets still live, then claim a slot in the current one */
+        for (long number = current - this.buckets + 1; number < current; number++) {
+            final Bucket bucket = this.ring.get((int) (number % this.buckets));
+            if (bucket != null && bucket.number == number && bucket.contains(fingerprint)) {
+                return false;
+            }
+        }
+        final int result = this.currentBucket(current).add(fingerprint);
+        if (result == Bucket.PRESENT) {
+            return false;
+        }
+        if (result == Bucket.FULL && this.overflows.incrementAndGet() % 1000 == 1) {
+            log.warn("{} Bucket sized for {} values full, accepting values without remembering them",
+                    this.logPrefix, this.capacity);
+        }
+
+        return this.storageService == null || this.recordInStorage(context, value, now);
+    }
+
+    /**
+     * Get the number of values accepted without being remembered because a bucket was full
+     *
+     * @return the count
+     */
+    public long getOverflowCount() {
+        return this.overflows.get();
+    }
+
+    /**
+     * Get the bucket for a bucket number, replacing the expired bucket in its place
+     *
+     * @param number the bucket number
+     * @return the bucket
+     */
+    @Nonnull private Bucket currentBucket(final long number) {
+        final int index = (int) (number % this.buckets);
+        while (true) {
+            final Bucket bucket = this.ring.get(index);
+            if (bucket != null && bucket.number >= number) {
+                return bucket;
+            }
+            final Bucket replacement = new Bucket(number, this.slots);
+            if (this.ring.compareAndSet(index, bucket, replacement)) {
+                return replacement;
+            }
+        }
+    }
+
+    /**
+     * Record a value in the storage shared by the cluster
+     *
+     * @param context the kind of value
+     * @param value the value
+     * @param now the current time in milliseconds
+     * @return true iff the value was not yet recorded
+     */
+    private boolean recordInStorage(@Nonnull final String context, @Nonnull final String value, final long now) {
+        final StorageService storage = this.storageService;
+        final String key = value.length() <= storage.getCapabilities().getKeySize()
+                ? value : Hashing.sha256().hashString(value, StandardCharsets.UTF_8).toString();
+        try {
+            return storage.create(context, key, "1", now + this.lifetime);
+        } catch (IOException e) {
+            log.warn("{} Unable to record value in storage service {}, {} it : {}", this.logPrefix,
+                    storage.getId(), this.strict ? "rejecting" : "accepting", e.getMessage());
+            return !this.strict;
+        }
+    }
+
+    /**
+     * Compute the fingerprint of a value
+     *
+     * @param context the kind of value
+     * @param value the value
+     * @return a non-zero fingerprint
+     */
+    private long fingerprint(@Nonnull final String context, @Nonnull final String value) {
+        final long fingerprint = this.fingerprints.newHasher()
+                .putString(context, StandardCharsets.UTF_8)
+                .putString(value, StandardCharsets.UTF_8)
+                .hash().asLong();
+        return fingerprint != 0 ? fingerprint : 1;
+    }
+
+    public GoogleReplayCache setLifetime(final long millis) {
+        this.lifetime = millis;
+        return this;
+    }
+
+    public GoogleReplayCache setBuckets(final int count) {
+        this.buckets = count;
+        return this;
+    }
+
+    public GoogleReplayCache setCapacity(final int fingerprintsPerBucket) {
+        this.capacity = fingerprintsPerBucket;
+        return this;
+    }
+
+    public GoogleReplayCache setStorageService(@Nullable final StorageService storage) {
+        this.storageService = storage;
+        return this;
+    }
+
+    public GoogleReplayCache setStrict(final boolean rejectOnStorageFailure) {
+        this.strict = rejectOnStorageFailure;
+        return this;
+    }
+
+    /** Fingerprints recorded during one bucket duration */
+    private static final class Bucket {
+        /** Result of adding a new fingerprint */
+        private static final int ADDED = 0;
+
+        /** Result of adding a fingerprint already present */
+        private static final int PRESENT = 1;
+
+        /** Result of adding a fingerprint to a full bucket */
+        private static final int FULL = 2;
+
+        /** Bucket number, the start time divided by the bucket duration */
+        private final long number;
+
+        /** Open addressing table of fingerprints, 0 marking a free slot */
+        @Nonnull private final AtomicLongArray slots;
+
+        /** Mask reducing a fingerprint to a slot index */
+        private final int mask;
+
+        /**
+         * Constructor
+         *
+         * @param bucketNumber the bucket number
+         * @param size the number of slots, a power of two
+         */
+        private Bucket(final long bucketNumber, final int size) {
+            this.number = bucketNumber;
+            this.slots = new AtomicLongArray(size);
+            this.mask = size - 1;
+        }
+
+        /**
+         * Whether the bucket holds a fingerprint
+         *
+         * @param fingerprint the fingerprint
+         * @return true iff present
+         */
+        private boolean contains(final long fingerprint) {
+            final int start = (int) fingerprint & this.mask;
+            for (int probe = 0; probe < MAX_PROBES; probe++) {
+                final long slot = this.slots.get((start + probe) & this.mask);
+                if (slot == fingerprint) {
+                    return true;
+                } else if (slot == 0) {
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Add a fingerprint. Concurrent adds of the same fingerprint probe the same slots
+         * in the same order, so exactly one of them claims a slot.
+         *
+         * @param fingerprint the fingerprint
+         * @return {@link #ADDED}, {@link #PRESENT} or {@link #FULL}
+         */
+        private int add(final long fingerprint) {
+            final int start = (int) fingerprint & this.mask;
+            for (int probe = 0; probe < MAX_PROBES; probe++) {
+                final int index = (start + probe) & this.mask;
+                long slot = this.slots.get(index);
+                if (slot == 0) {
+                    if (this.slots.compareAndSet(index, 0, fingerprint)) {
+                        return ADDED;
+                    }
+                    slot = this.slots.get(index);
+                }
+                if (slot == fingerprint) {
+                    return PRESENT;
+                }
+            }
+            return FULL;
+        }
+    }
+}
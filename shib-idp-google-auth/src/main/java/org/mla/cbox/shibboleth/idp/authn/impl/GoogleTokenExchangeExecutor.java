@@ -0,0 +1,156 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Bounded executor that runs the exchange of an authorization code for an ID token
+ * away from the servlet container threads.
+ *
+ * A container thread waits at most the configured timeout for the result. When all
+ * exchange threads are busy and the queue is full the exchange is rejected immediately,
+ * so a slow token endpoint cannot exhaust the container thread pool.
+ */
+public class GoogleTokenExchangeExecutor {
+    /** Maximum number of concurrent exchanges */
+    private int maxThreads = 16;
+
+    /** Maximum number of exchanges waiting for a thread */
+    private int queueSize = 32;
+
+    /** Maximum time in milliseconds to wait for an exchange to complete */
+    private long timeout = 15000;
+
+    /** Executor running the exchanges */
+    @Nullable private ThreadPoolExecutor executor;
+
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(GoogleTokenExchangeExecutor.class);
+
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+
+    /** Constructor */
+    public GoogleTokenExchangeExecutor() {
+
+    }
+
+    /**
+     * Initialize the executor
+     */
+    public void initialize() {
+        this.executor = new ThreadPoolExecutor(this.maxThreads, this.maxThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(this.queueSize),
+                new ThreadFactoryBuilder().setNameFormat("google-token-exchange-%d").setDaemon(true).build());
+        this.executor.allowCoreThreadTimeOut(true);
+        log.debug("{} Initialized with {} threads and queue of {}", this.logPrefix, this.maxThreads, this.queueSize);
+    }
+
+    /**
+     * Stop the executor, interrupting any exchanges in progress
+     */
+    public void destroy() {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Run an exchange and wait for its result
+     *
+     * @param exchange the exchange to run
+     * @param <T> the type of the result
+     * @return the result of the exchange
+     * @throws IOException if the exchange failed, timed out or could not be scheduled
+     */
+    public <T> T execute(@Nonnull final Callable<T> exchange) throws IOException {
+        final Future<T> future;
+        try {
+            future = this.executor.submit(exchange);
+        } catch (RejectedExecutionException e) {
+            throw new IOException("Token exchange capacity exhausted, " + this.executor.getActiveCount()
+                    + " exchanges in progress");
+        }
+
+        try {
+            return future.get(this.timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new IOException("Token exchange did not complete within " + this.timeout + " ms");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for token exchange", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Token exchange failed", e.getCause());
+        }
+    }
+
+    /**
+     * Get the number of exchanges in progress
+     *
+     * @return the number of active exchanges
+     */
+    public int getActiveCount() {
+        final ThreadPoolExecutor current = this.executor;
+        return current != null ? current.getActiveCount() : 0;
+    }
+
+    /**
+     * Get the number of exchanges waiting for a thread
+     *
+     * @return the number of queued exchanges
+     */
+    public int getQueuedCount() {
+        final ThreadPoolExecutor current = this.executor;
+        return current != null ? current.getQueue().size() : 0;
+    }
+
+    public GoogleTokenExchangeExecutor setMaxThreads(final int max) {
+        this.maxThreads = max;
+        return this;
+    }
+
+    public GoogleTokenExchangeExecutor setQueueSize(final int size) {
+        this.queueSize = size;
+        return this;
+    }
+
+    public GoogleTokenExchangeExecutor setTimeout(final long timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+}
@@ -0,0 +1,337 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.net.ProxySelector;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.ProxySelectorRoutePlanner;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+
+/**
+ * Transport used to query the Google endpoints, backed by a bounded pool of persistent
+ * HTTP connections.
+ *
+ * Connections are kept alive between logins so that most token exchanges reuse an
+ * established TLS connection. New connections are created through the shared SSL socket
+ * factory and so resume cached TLS sessions rather than performing a full handshake.
+ *
+ * Alternatively an {@link HttpTransport} may be supplied, in which case no pool is created
+ * and only the timeouts apply.
+ */
+public class GoogleTransportPool {
+    /** Maximum number of connections in the pool */
+    private int maxConnections = 20;
+
+    /** Maximum number of connections in the pool to a single endpoint */
+    private int maxConnectionsPerRoute = 20;
+
+    /** Timeout in milliseconds for establishing a connection */
+    private int connectTimeout = 5000;
+
+    /** Timeout in milliseconds for reading from a connection */
+    private int readTimeout = 10000;
+
+    /** Timeout in milliseconds waiting for a connection to become available in the pool */
+    private long connectionRequestTimeout = 2000;
+
+    /** Maximum time in milliseconds an idle connection is kept alive */
+    private long keepAliveTime = 60000;
+
+    /** Whether to check a pooled connection is still open before reusing it */
+    private boolean staleCheckingEnabled = true;
+
+    /** The HTTP transport */
+    @Nullable private HttpTransport httpTransport;
+
+    /** The connection manager, null if the transport was supplied */
+    @Nullable private InstrumentedConnectionManager connectionManager;
+
+    /** Number of connections requested from the pool */
+    @Nonnull private final AtomicLong connectionRequests = new AtomicLong();
+
+    /** Total time in nanoseconds spent waiting for a connection from the pool */
+    @Nonnull private final AtomicLong connectionWaitTime = new AtomicLong();
+
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(GoogleTransportPool.class);
+
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+
+    /** Constructor */
+    public GoogleTransportPool() {
+
+    }
+
+    /**
+     * Initialize the pool and the transport using it
+     */
+    public void initialize() {
+        if (this.httpTransport != null) {
+            log.debug("{} Using supplied HTTP transport {}", this.logPrefix, this.httpTransport.getClass().getName());
+            return;
+        }
+
+        final HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, this.connectTimeout);
+        HttpConnectionParams.setSoTimeout(params, this.readTimeout);
+        HttpConnectionParams.setStaleCheckingEnabled(params, this.staleCheckingEnabled);
+        HttpConnectionParams.setTcpNoDelay(params, true);
+        HttpConnectionParams.setSocketBufferSize(params, 8192);
+        ConnManagerParams.setMaxTotalConnections(params, this.maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(this.maxConnectionsPerRoute));
+        ConnManagerParams.setTimeout(params, this.connectionRequestTimeout);
+
+        final SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        this.connectionManager = new InstrumentedConnectionManager(params, registry);
+
+        final DefaultHttpClient httpClient = new DefaultHttpClient(this.connectionManager, params);
+        httpClient.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+        httpClient.setRoutePlanner(new ProxySelectorRoutePlanner(registry, ProxySelector.getDefault()));
+        httpClient.setKeepAliveStrategy(new BoundedKeepAliveStrategy());
+
+        this.httpTransport = new ApacheHttpTransport(httpClient);
+        log.debug("{} Initialized pool of {} connections with connect timeout {} ms and read timeout {} ms",
+                this.logPrefix, this.maxConnections, this.connectTimeout, this.readTimeout);
+    }
+
+    /**
+     * Close all pooled connections
+     */
+    public void destroy() {
+        if (this.connectionManager != null) {
+            this.connectionManager.shutdown();
+            this.connectionManager = null;
+        }
+    }
+
+    /**
+     * Get the HTTP transport
+     *
+     * @return the HTTP transport
+     */
+    @Nullable public HttpTransport getHttpTransport() {
+        return this.httpTransport;
+    }
+
+    /**
+     * Get the connect timeout
+     *
+     * @return timeout in milliseconds
+     */
+    public int getConnectTimeout() {
+        return this.connectTimeout;
+    }
+
+    /**
+     * Get the read timeout
+     *
+     * @return timeout in milliseconds
+     */
+    public int getReadTimeout() {
+        return this.readTimeout;
+    }
+
+    /**
+     * Get the maximum number of connections in the pool
+     *
+     * @return the maximum number of connections
+     */
+    public int getMaxConnections() {
+        return this.maxConnections;
+    }
+
+    /**
+     * Get the number of connections currently in the pool, leased or idle
+     *
+     * @return the number of connections, or -1 if the transport was supplied
+     */
+    public int getConnectionsInPool() {
+        final InstrumentedConnectionManager manager = this.connectionManager;
+        return manager != null ? manager.getConnectionsInPool() : -1;
+    }
+
+    /**
+     * Get the number of connections requested from the pool
+     *
+     * @return the number of connection requests
+     */
+    public long getConnectionRequests() {
+        return this.connectionRequests.get();
+    }
+
+    /**
+     * Get the total time spent waiting for a connection from the pool
+     *
+     * @return total wait time in milliseconds
+     */
+    public long getConnectionWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(this.connectionWaitTime.get());
+    }
+
+    /**
+     * Get the average time spent waiting for a connection from the pool
+     *
+     * @return average wait time in milliseconds
+     */
+    public double getAverageConnectionWaitTime() {
+        final long requests = this.connectionRequests.get();
+        if (requests == 0) {
+            return 0;
+        }
+        return (double) this.connectionWaitTime.get() / requests / 1000000;
+    }
+
+    /**
+     * Supply the HTTP transport instead of using a pool
+     *
+     * @param transport the HTTP transport
+     * @return this pool
+     */
+    public GoogleTransportPool setHttpTransport(@Nullable final HttpTransport transport) {
+        this.httpTransport = transport;
+        return this;
+    }
+
+    public GoogleTransportPool setMaxConnections(final int max) {
+        this.maxConnections = max;
+        return this;
+    }
+
+    public GoogleTransportPool setMaxConnectionsPerRoute(final int max) {
+        this.maxConnectionsPerRoute = max;
+        return this;
+    }
+
+    public GoogleTransportPool setConnectTimeout(final int timeout) {
+        this.connectTimeout = timeout;
+        return this;
+    }
+
+    public GoogleTransportPool setReadTimeout(final int timeout) {
+        this.readTimeout = timeout;
+        return this;
+    }
+
+    public GoogleTransportPool setConnectionRequestTimeout(final long timeout) {
+        this.connectionRequestTimeout = timeout;
+        return this;
+    }
+
+    public GoogleTransportPool setKeepAliveTime(final long time) {
+        this.keepAliveTime = time;
+        return this;
+    }
+
+    public GoogleTransportPool setStaleCheckingEnabled(final boolean enabled) {
+        this.staleCheckingEnabled = enabled;
+        return this;
+    }
+
+    /** Keeps connections alive for as long as the server allows, but no longer than the configured time */
+    private class BoundedKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+        /** {@inheritDoc} */
+        @Override
+        public long getKeepAliveDuration(final HttpResponse response, final HttpContext context) {
+            final HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (it.hasNext()) {
+                final HeaderElement element = it.nextElement();
+                if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                    try {
+                        return Math.min(Long.parseLong(element.getValue()) * 1000, keepAliveTime);
+                    } catch (NumberFormatException e) {
+                        break;
+                    }
+                }
+            }
+            return keepAliveTime;
+        }
+    }
+
+    /** Connection manager recording the time spent waiting for a pooled connection */
+    private class InstrumentedConnectionManager extends ThreadSafeClientConnManager {
+
+        /**
+         * Constructor
+         *
+         * @param params the connection parameters
+         * @param registry the scheme registry
+         */
+        InstrumentedConnectionManager(final HttpParams params, final SchemeRegistry registry) {
+            super(params, registry);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public ClientConnectionRequest requestConnection(final HttpRoute route, final Object state) {
+            final ClientConnectionRequest request = super.requestConnection(route, state);
+            return new ClientConnectionRequest() {
+
+                @Override
+                public ManagedClientConnection getConnection(final long timeout, final TimeUnit tunit)
+                        throws InterruptedException, ConnectionPoolTimeoutException {
+                    final long start = System.nanoTime();
+                    try {
+                        return request.getConnection(timeout, tunit);
+                    } finally {
+                        connectionRequests.incrementAndGet();
+                        connectionWaitTime.addAndGet(System.nanoTime() - start);
+                    }
+                }
+
+                @Override
+                public void abortRequest() {
+                    request.abortRequest();
+                }
+            };
+        }
+    }
+}
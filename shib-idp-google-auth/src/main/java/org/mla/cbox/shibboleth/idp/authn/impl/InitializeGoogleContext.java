@@ -17,17 +17,26 @@ package org.mla.cbox.shibboleth.idp.authn.impl;
 import net.shibboleth.idp.authn.AbstractAuthenticationAction;
 import net.shibboleth.idp.authn.context.AuthenticationContext;
 
+import org.opensaml.profile.action.ActionSupport;
 import org.opensaml.profile.context.ProfileRequestContext;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
 
 public class InitializeGoogleContext extends AbstractAuthenticationAction {
     /** Google integration */
     @Nonnull private GoogleIntegration googleIntegration;
     
+    /** Registry selecting the integration per login, null to always use the configured integration */
+    @Nullable private GoogleIntegrationRegistry integrationRegistry;
+    
+    /** Generator of anti forgery state tokens */
+    @Nonnull private StateTokenGenerator stateTokenGenerator = StateTokenGenerator.getDefault();
+    
     /** Class logger */
     @Nonnull private final Logger log = LoggerFactory.getLogger(InitializeGoogleContext.class);
     
@@ -40,18 +49,50 @@ public class InitializeGoogleContext extends AbstractAuthenticationAction {
             @Nonnull final ProfileRequestContext profileRequestContext,
             @Nonnull final AuthenticationContext authenticationContext) {
         
+        /* Select the integration of the tenant the login is for */
+        GoogleIntegration selectedIntegration = null;
+        if (this.integrationRegistry != null) {
+            final HttpServletRequest servletRequest = getHttpServletRequest();
+            selectedIntegration = this.integrationRegistry.lookup(profileRequestContext,
+                    servletRequest != null ? servletRequest.getServerName() : null);
+        }
+        final GoogleIntegration integration = selectedIntegration != null ? selectedIntegration : this.googleIntegration;
+        
+        /* Fail fast rather than send the browser to Google while the token endpoint is known to be
+         * failing, or while another login is making the probe of the half open breaker
+         */
+        final GoogleCircuitBreaker circuitBreaker = integration.getCircuitBreaker();
+        if (circuitBreaker != null && !circuitBreaker.allowLogin()) {
+            log.warn("{} Google token endpoint is unavailable, not attempting Google login", getLogPrefix());
+            final GoogleAuthnMetrics metrics = integration.getMetrics();
+            if (metrics != null) {
+                metrics.recordCircuitBreakerRejection();
+            }
+            ActionSupport.buildEvent(profileRequestContext, GoogleAuthnEventIds.GOOGLE_UNAVAILABLE);
+            return;
+        }
+        
         /* Create a new GoogleContext */
         final GoogleContext googleContext = new GoogleContext();
         
         /* Set the Google integration details for the context */
-        googleContext.setGoogleIntegration(this.googleIntegration);
+        googleContext.setGoogleIntegration(integration);
         
-        /* Initialize an anti forgery state token for the context */
-        googleContext.initializeAntiForgeryStateToken();
+        /* Initialize an anti forgery state token for the context, unless a signed token bound
+         * to the flow execution will be issued when the authorization URL is computed
+         */
+        if (integration.getStateCodec() == null) {
+            googleContext.initializeAntiForgeryStateToken(this.stateTokenGenerator);
+        }
         
         /* Save the context as a sub context to the authentication context */
         authenticationContext.addSubcontext(googleContext, true);
-        log.debug("{} Created GoogleContext using GoogleIntegration with client ID {}", getLogPrefix(), this.googleIntegration.getOauth2ClientId());
+        
+        final GoogleAuthnMetrics metrics = integration.getMetrics();
+        if (metrics != null) {
+            metrics.recordContextInitialized();
+        }
+        log.debug("{} Created GoogleContext using GoogleIntegration with client ID {}", getLogPrefix(), integration.getOauth2ClientId());
     }
     
     /**
@@ -73,4 +114,26 @@ public class InitializeGoogleContext extends AbstractAuthenticationAction {
         this.googleIntegration = googleIntegration;
         return this;
     }
+    
+    /**
+     * Set the registry selecting the integration per login
+     * 
+     * @param registry the integration registry, or null to always use the configured integration
+     * @return instance of this class
+     */
+    public InitializeGoogleContext setIntegrationRegistry(@Nullable GoogleIntegrationRegistry registry) {
+        this.integrationRegistry = registry;
+        return this;
+    }
+    
+    /**
+     * Set the generator of anti forgery state tokens
+     * 
+     * @param generator the state token generator
+     * @return instance of this class
+     */
+    public InitializeGoogleContext setStateTokenGenerator(@Nonnull StateTokenGenerator generator) {
+        this.stateTokenGenerator = generator;
+        return this;
+    }
 }
@@ -0,0 +1,76 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
+
+/**
+ * Looks up the local account of a Google subject in a relational database, with a
+ * parameterized query selecting the account identifier for the sub claim.
+ */
+public class JdbcIdentityMappingSource implements GoogleIdentityMappingSource {
+    /** Source of pooled connections to the database */
+    @Nullable private DataSource dataSource;
+
+    /** Query selecting the account identifier in its first column, with the sub claim as parameter */
+    @Nonnull private String query = "SELECT account_id FROM google_account WHERE sub = ?";
+
+    /** Maximum time in seconds the query may take, 0 for no limit */
+    private int queryTimeout = 5;
+
+    /** Constructor */
+    public JdbcIdentityMappingSource() {
+
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nullable public String lookup(@Nonnull final String sub) throws IOException {
+        try (final Connection connection = this.dataSource.getConnection();
+                final PreparedStatement statement = connection.prepareStatement(this.query)) {
+            statement.setQueryTimeout(this.queryTimeout);
+            statement.setString(1, sub);
+            try (final ResultSet result = statement.executeQuery()) {
+                return result.next() ? result.getString(1) : null;
+            }
+        } catch (SQLException e) {
+            throw new IOException("Unable to look up the account of " + sub, e);
+        }
+    }
+
+    public JdbcIdentityMappingSource setDataSource(@Nonnull final DataSource source) {
+        this.dataSource = source;
+        return this;
+    }
+
+    public JdbcIdentityMappingSource setQuery(@Nonnull final String sql) {
+        this.query = sql;
+        return this;
+    }
+
+    public JdbcIdentityMappingSource setQueryTimeout(final int seconds) {
+        this.queryTimeout = seconds;
+        return this;
+    }
+}
@@ -0,0 +1,370 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the measurements of the Google authentication flow in lock free counters and
+ * histograms, exposed through the platform MBean server.
+ *
+ * Token endpoint histograms are created on the first response with each HTTP status, so
+ * recording allocates nothing once every status seen has been seen once.
+ */
+@ThreadSafe
+public class JmxGoogleAuthnMetrics implements GoogleAuthnMetrics, GoogleAuthnMetricsMXBean {
+    /** Highest HTTP status with its own histogram, higher ones being recorded as 0 */
+    private static final int MAX_STATUS = 599;
+
+    /** Name under which the MBean is registered */
+    @Nonnull private String objectName = "org.mla.cbox.shibboleth.idp.authn:type=GoogleAuthnMetrics";
+
+    /** Registered name, null if not registered */
+    @Nullable private ObjectName registeredName;
+
+    /** GoogleContexts initialized */
+    @Nonnull private volatile AtomicLong contextsInitialized = new AtomicLong();
+
+    /** Callbacks with a missing or invalid state token */
+    @Nonnull private volatile AtomicLong stateMismatches = new AtomicLong();
+
+    /** Callbacks without an authorization code */
+    @Nonnull private volatile AtomicLong missingCodes = new AtomicLong();
+
+    /** Callbacks replaying a state token or authorization code */
+    @Nonnull private volatile AtomicLong replays = new AtomicLong();
+
+    /** Login attempts left out of the audit log */
+    @Nonnull private volatile AtomicLong auditRecordsDropped = new AtomicLong();
+
+    /** Logins failed by the open circuit breaker */
+    @Nonnull private volatile AtomicLong circuitBreakerRejections = new AtomicLong();
+
+    /** Current limit on concurrent token endpoint queries */
+    private volatile int concurrencyLimit;
+
+    /** Logins failed by the concurrency limit */
+    @Nonnull private volatile AtomicLong concurrencyLimitRejections = new AtomicLong();
+
+    /** Dwell time in milliseconds */
+    @Nonnull private volatile MetricsHistogram callbackDwell = new MetricsHistogram();
+
+    /** Token endpoint latency in microseconds, indexed by HTTP status */
+    @Nonnull private volatile AtomicReferenceArray<MetricsHistogram> tokenEndpointLatency =
+            new AtomicReferenceArray<MetricsHistogram>(MAX_STATUS + 1);
+
+    /** ID token decode time in microseconds */
+    @Nonnull private volatile MetricsHistogram idTokenDecode = new MetricsHistogram();
+
+    /** Serialized principal length in characters */
+    @Nonnull private volatile MetricsHistogram serializedPrincipalSize = new MetricsHistogram();
+
+    /** Lookups of local accounts */
+    @Nonnull private volatile AtomicLong identityMappingLookups = new AtomicLong();
+
+    /** Lookups of local accounts answered from the cache */
+    @Nonnull private volatile AtomicLong identityMappingHits = new AtomicLong();
+
+    /** Identity mapping source query time in microseconds */
+    @Nonnull private volatile MetricsHistogram identityMappingLoad = new MetricsHistogram();
+
+    /** Failed identity mapping source queries */
+    @Nonnull private volatile AtomicLong identityMappingLoadFailures = new AtomicLong();
+
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(JmxGoogleAuthnMetrics.class);
+
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+
+    /** Constructor */
+    public JmxGoogleAuthnMetrics() {
+
+    }
+
+    /**
+     * Register with the platform MBean server. Failure to register is logged and the
+     * measurements are still recorded.
+     */
+    public void initialize() {
+        try {
+            final ObjectName name = new ObjectName(this.objectName);
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            this.registeredName = name;
+        } catch (JMException e) {
+            log.warn("{} Unable to register metrics as {} : {}", this.logPrefix, this.objectName, e.getMessage());
+        }
+    }
+
+    /**
+     * Unregister from the platform MBean server
+     */
+    public void destroy() {
+        if (this.registeredName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.registeredName);
+            } catch (JMException e) {
+                log.debug("{} Unable to unregister metrics : {}", this.logPrefix, e.getMessage());
+            }
+            this.registeredName = null;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void recordContextInitialized() {
+        this.contextsInitialized.incrementAndGet();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void recordCallbackDwell(final long millis) {
+        this.callbackDwell.record(millis);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void recordTokenEndpointLatency(final int status, final long nanos) {
+        final int index = status < 0 || status > MAX_STATUS ? 0 : status;
+        final AtomicReferenceArray<MetricsHistogram> histograms = this.tokenEndpointLatency;
+        MetricsHistogram histogram = histograms.get(index);
+        if (histogram == null) {
+            histograms.compareAndSet(index, null, new MetricsHistogram());
+            histogram = histograms.get(index);
+        }
+        histogram.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void recordStateMismatch() {
+        this.stateMismatches.incrementAndGet();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void recordMissingCode() {
+        this.missingCodes.incrementAndGet();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void recordReplay() {
+        this.replays.incrementAndGet();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void recordAuditRecordDropped() {
+        this.auditRecordsDropped.incrementAndGet();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void recordCircuitBreakerRejection() {
+        this.circuitBreakerRejections.incrementAndGet();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void recordConcurrencyLimit(final int limit) {
+        this.concurrencyLimit = limit;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void recordConcurrencyLimitRejection() {
+        this.concurrencyLimitRejections.incrementAndGet();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void recordIdTokenDecode(final long nanos) {
+        this.idTokenDecode.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void recordSerializedPrincipalSize(final int length) {
+        this.serializedPrincipalSize.record(length);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void recordIdentityMappingLookup(final boolean hit) {
+        this.identityMappingLookups.incrementAndGet();
+        if (hit) {
+            this.identityMappingHits.incrementAndGet();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void recordIdentityMappingLoad(final boolean success, final long nanos) {
+        this.identityMappingLoad.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        if (!success) {
+            this.identityMappingLoadFailures.incrementAndGet();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getContextInitializedCount() {
+        return this.contextsInitialized.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public MetricsHistogram.Snapshot getCallbackDwellMillis() {
+        return this.callbackDwell.snapshot();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Map<String, MetricsHistogram.Snapshot> getTokenEndpointLatencyMicros() {
+        final AtomicReferenceArray<MetricsHistogram> histograms = this.tokenEndpointLatency;
+        final Map<String, MetricsHistogram.Snapshot> snapshots = new TreeMap<String, MetricsHistogram.Snapshot>();
+        for (int status = 0; status <= MAX_STATUS; status++) {
+            final MetricsHistogram histogram = histograms.get(status);
+            if (histogram != null) {
+                snapshots.put(Integer.toString(status), histogram.snapshot());
+            }
+        }
+        return snapshots;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getStateMismatchCount() {
+        return this.stateMismatches.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getMissingCodeCount() {
+        return this.missingCodes.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getReplayCount() {
+        return this.replays.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getAuditRecordDroppedCount() {
+        return this.auditRecordsDropped.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getCircuitBreakerRejectionCount() {
+        return this.circuitBreakerRejections.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getConcurrencyLimit() {
+        return this.concurrencyLimit;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getConcurrencyLimitRejectionCount() {
+        return this.concurrencyLimitRejections.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public MetricsHistogram.Snapshot getIdTokenDecodeMicros() {
+        return this.idTokenDecode.snapshot();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public MetricsHistogram.Snapshot getSerializedPrincipalSize() {
+        return this.serializedPrincipalSize.snapshot();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getIdentityMappingLookupCount() {
+        return this.identityMappingLookups.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public double getIdentityMappingHitRate() {
+        final long lookups = this.identityMappingLookups.get();
+        return lookups > 0 ? this.identityMappingHits.get() / (double) lookups : 0;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public MetricsHistogram.Snapshot getIdentityMappingLoadMicros() {
+        return this.identityMappingLoad.snapshot();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getIdentityMappingLoadFailureCount() {
+        return this.identityMappingLoadFailures.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void reset() {
+        this.contextsInitialized = new AtomicLong();
+        this.stateMismatches = new AtomicLong();
+        this.missingCodes = new AtomicLong();
+        this.replays = new AtomicLong();
+        this.auditRecordsDropped = new AtomicLong();
+        this.circuitBreakerRejections = new AtomicLong();
+        this.concurrencyLimitRejections = new AtomicLong();
+        this.callbackDwell = new MetricsHistogram();
+        this.tokenEndpointLatency = new AtomicReferenceArray<MetricsHistogram>(MAX_STATUS + 1);
+        this.idTokenDecode = new MetricsHistogram();
+        this.serializedPrincipalSize = new MetricsHistogram();
+        this.identityMappingLookups = new AtomicLong();
+        this.identityMappingHits = new AtomicLong();
+        this.identityMappingLoad = new MetricsHistogram();
+        this.identityMappingLoadFailures = new AtomicLong();
+    }
+
+    public JmxGoogleAuthnMetrics setObjectName(@Nonnull final String name) {
+        this.objectName = name;
+        return this;
+    }
+}
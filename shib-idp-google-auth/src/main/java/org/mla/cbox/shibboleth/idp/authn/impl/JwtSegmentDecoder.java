@@ -0,0 +1,219 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Decodes the segments of a compact serialized JWT without intermediate copies.
+ *
+ * The segment boundaries are located by index and each segment is base64url decoded
+ * directly from the token string, either as a stream suitable for handing to a JSON
+ * parser or into a byte array of exactly the decoded length.
+ */
+public final class JwtSegmentDecoder {
+    /** Value of each base64url character, -1 for characters outside the alphabet */
+    private static final int[] DECODE_TABLE = new int[128];
+
+    static {
+        Arrays.fill(DECODE_TABLE, -1);
+        final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        for (int i = 0; i < alphabet.length(); i++) {
+            DECODE_TABLE[alphabet.charAt(i)] = i;
+        }
+    }
+
+    /** The encoded token */
+    @Nonnull private final String token;
+
+    /** Index of the dot ending the header */
+    private final int headerEnd;
+
+    /** Index of the dot ending the payload */
+    private final int payloadEnd;
+
+    /**
+     * Constructor
+     *
+     * @param jwt the compact serialized JWT
+     * @throws IOException if the token does not have exactly three segments
+     */
+    public JwtSegmentDecoder(@Nonnull final String jwt) throws IOException {
+        this.token = jwt;
+        this.headerEnd = jwt.indexOf('.');
+        this.payloadEnd = this.headerEnd < 0 ? -1 : jwt.indexOf('.', this.headerEnd + 1);
+        if (this.payloadEnd < 0 || jwt.indexOf('.', this.payloadEnd + 1) >= 0) {
+            throw new IOException("Token is not a compact serialized JWT");
+        }
+    }
+
+    /**
+     * Get the encoded token
+     *
+     * @return the token
+     */
+    @Nonnull public String getToken() {
+        return this.token;
+    }
+
+    /**
+     * Open a stream over the decoded header
+     *
+     * @return the decoded header
+     */
+    @Nonnull public InputStream openHeader() {
+        return new SegmentInputStream(this.token, 0, this.headerEnd);
+    }
+
+    /**
+     * Open a stream over the decoded payload
+     *
+     * @return the decoded payload
+     */
+    @Nonnull public InputStream openPayload() {
+        return new SegmentInputStream(this.token, this.headerEnd + 1, this.payloadEnd);
+    }
+
+    /**
+     * Decode the signature
+     *
+     * @return the decoded signature
+     * @throws IOException if the signature is not base64url encoded
+     */
+    @Nonnull public byte[] decodeSignature() throws IOException {
+        return decode(this.token, this.payloadEnd + 1, this.token.length());
+    }
+
+    /**
+     * Get the index of the dot ending the payload, the signing input being the token up to this index
+     *
+     * @return the index
+     */
+    public int getSigningInputLength() {
+        return this.payloadEnd;
+    }
+
+    /**
+     * Decode a base64url encoded range of a string into a byte array
+     *
+     * @param encoded the string
+     * @param start index of the first character
+     * @param end index after the last character
+     * @return the decoded bytes
+     * @throws IOException if the range is not base64url encoded
+     */
+    @Nonnull public static byte[] decode(@Nonnull final String encoded, final int start, final int end)
+            throws IOException {
+        final int length = end - start;
+        if (length % 4 == 1) {
+            throw new IOException("Invalid base64url length");
+        }
+
+        final byte[] decoded = new byte[length / 4 * 3 + Math.max(0, length % 4 - 1)];
+        int out = 0;
+        int buffer = 0;
+        int bits = 0;
+        for (int i = start; i < end; i++) {
+            buffer = (buffer << 6) | value(encoded.charAt(i));
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                decoded[out++] = (byte) (buffer >> bits);
+            }
+        }
+        return decoded;
+    }
+
+    /**
+     * Get the value of a base64url character
+     *
+     * @param c the character
+     * @return the value
+     * @throws IOException if the character is not in the base64url alphabet
+     */
+    private static int value(final char c) throws IOException {
+        final int v = c < 128 ? DECODE_TABLE[c] : -1;
+        if (v < 0) {
+            throw new IOException("Invalid base64url character '" + c + "'");
+        }
+        return v;
+    }
+
+    /** Stream decoding a base64url encoded range of a string on demand */
+    private static final class SegmentInputStream extends InputStream {
+        /** The string */
+        @Nonnull private final String encoded;
+
+        /** Index after the last character */
+        private final int end;
+
+        /** Index of the next character */
+        private int position;
+
+        /** Pending bits */
+        private int buffer;
+
+        /** Number of pending bits */
+        private int bits;
+
+        /**
+         * Constructor
+         *
+         * @param source the string
+         * @param start index of the first character
+         * @param limit index after the last character
+         */
+        SegmentInputStream(@Nonnull final String source, final int start, final int limit) {
+            this.encoded = source;
+            this.position = start;
+            this.end = limit;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public int read() throws IOException {
+            while (this.bits < 8) {
+                if (this.position >= this.end) {
+                    return -1;
+                }
+                this.buffer = (this.buffer << 6) | value(this.encoded.charAt(this.position++));
+                this.bits += 6;
+            }
+            this.bits -= 8;
+            return (this.buffer >> this.bits) & 0xFF;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int count = 0;
+            while (count < len) {
+                final int next = read();
+                if (next < 0) {
+                    break;
+                }
+                b[off + count++] = (byte) next;
+            }
+            return count == 0 ? -1 : count;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A histogram of non-negative values in power of two buckets.
+ *
+ * Recording a value updates a bucket and three totals atomically without allocating or
+ * locking. Percentiles are estimated as the upper bound of the bucket they fall in, so they
+ * are accurate to within a factor of two.
+ */
+@ThreadSafe
+public class MetricsHistogram {
+    /** Number of buckets, bucket i holding values below 2^i */
+    private static final int BUCKETS = 64;
+
+    /** Counts per bucket */
+    @Nonnull private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    /** Number of recorded values */
+    @Nonnull private final AtomicLong count = new AtomicLong();
+
+    /** Sum of recorded values */
+    @Nonnull private final AtomicLong sum = new AtomicLong();
+
+    /** Largest recorded value */
+    @Nonnull private final AtomicLong max = new AtomicLong();
+
+    /** Constructor */
+    public MetricsHistogram() {
+
+    }
+
+    /**
+     * Record a value
+     *
+     * @param value the value, negative values being recorded as zero
+     */
+    public void record(final long value) {
+        final long v = value < 0 ? 0 : value;
+        this.buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(v)));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(v);
+        long current = this.max.get();
+        while (v > current && !this.max.compareAndSet(current, v)) {
+            current = this.max.get();
+        }
+    }
+
+    /**
+     * Take a snapshot of the recorded values
+     *
+     * @return the snapshot
+     */
+    @Nonnull public Snapshot snapshot() {
+        final long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.buckets.get(i);
+            total += counts[i];
+        }
+        return new Snapshot(total, this.sum.get(), this.max.get(), percentile(counts, total, 0.5),
+                percentile(counts, total, 0.9), percentile(counts, total, 0.99));
+    }
+
+    /**
+     * Estimate a percentile from bucket counts
+     *
+     * @param counts the bucket counts
+     * @param total the sum of the bucket counts
+     * @param fraction the percentile as a fraction
+     * @return the upper bound of the bucket holding the percentile
+     */
+    private static long percentile(@Nonnull final long[] counts, final long total, final double fraction) {
+        final long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return i == 0 ? 0 : (1L << i) - 1;
+            }
+        }
+        return 0;
+    }
+
+    /** The recorded values at a point in time, exposed over JMX as composite data */
+    public static class Snapshot {
+        /** Number of values */
+        private final long count;
+
+        /** Sum of values */
+        private final long sum;
+
+        /** Largest value */
+        private final long max;
+
+        /** Estimated median */
+        private final long p50;
+
+        /** Estimated 90th percentile */
+        private final long p90;
+
+        /** Estimated 99th percentile */
+        private final long p99;
+
+        /**
+         * Constructor
+         *
+         * @param n number of values
+         * @param total sum of values
+         * @param largest largest value
+         * @param median estimated median
+         * @param ninetieth estimated 90th percentile
+         * @param ninetyNinth estimated 99th percentile
+         */
+        Snapshot(final long n, final long total, final long largest, final long median, final long ninetieth,
+                final long ninetyNinth) {
+            this.count = n;
+            this.sum = total;
+            this.max = largest;
+            this.p50 = median;
+            this.p90 = ninetieth;
+            this.p99 = ninetyNinth;
+        }
+
+        public long getCount() {
+            return this.count;
+        }
+
+        public long getMean() {
+            return this.count == 0 ? 0 : this.sum / this.count;
+        }
+
+        public long getMax() {
+            return this.max;
+        }
+
+        public long getP50() {
+            return this.p50;
+        }
+
+        public long getP90() {
+            return this.p90;
+        }
+
+        public long getP99() {
+            return this.p99;
+        }
+    }
+}
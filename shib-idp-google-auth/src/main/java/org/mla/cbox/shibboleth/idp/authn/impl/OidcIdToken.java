@@ -69,6 +69,38 @@ public class OidcIdToken extends GenericJson {
     @Key
     private String hd = null;
     
+    /* not guaranteed to be present */
+    @Key
+    private String given_name = null;
+    
+    /* not guaranteed to be present */
+    @Key
+    private String family_name = null;
+    
+    /* not guaranteed to be present */
+    @Key
+    private String locale = null;
+    
+    public String getIss() {
+        return this.iss;
+    }
+    
+    public String getAud() {
+        return this.aud;
+    }
+    
+    public Integer getIat() {
+        return this.iat;
+    }
+    
+    public Integer getExp() {
+        return this.exp;
+    }
+    
+    public String getHd() {
+        return this.hd;
+    }
+    
     public String getSub() {
         return this.sub;
     }
@@ -80,4 +112,32 @@ public class OidcIdToken extends GenericJson {
     public String getName() {
         return this.name;
     }
+    
+    public Boolean getEmailVerified() {
+        return this.email_verified;
+    }
+    
+    public String getPicture() {
+        return this.picture;
+    }
+    
+    public String getProfile() {
+        return this.profile;
+    }
+    
+    public String getAzp() {
+        return this.azp;
+    }
+    
+    public String getGivenName() {
+        return this.given_name;
+    }
+    
+    public String getFamilyName() {
+        return this.family_name;
+    }
+    
+    public String getLocale() {
+        return this.locale;
+    }
 }
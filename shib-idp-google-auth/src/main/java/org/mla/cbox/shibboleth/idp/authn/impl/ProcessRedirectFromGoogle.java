@@ -15,15 +15,16 @@
 package org.mla.cbox.shibboleth.idp.authn.impl;
 
 import java.io.IOException;
-import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.security.auth.Subject;
 import javax.servlet.http.HttpServletRequest;
-import javax.xml.bind.DatatypeConverter;
 
 import org.opensaml.profile.action.ActionSupport;
 import org.opensaml.profile.action.EventIds;
@@ -31,21 +32,11 @@ import org.opensaml.profile.context.ProfileRequestContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.HttpContent;
 import com.google.api.client.http.HttpRequest;
-import com.google.api.client.http.HttpRequestFactory;
-import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.HttpResponse;
-import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.UrlEncodedContent;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.GenericJson;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.JsonObjectParser;
-import com.google.api.client.json.jackson.JacksonFactory;
-import com.google.api.client.util.Key;
-import com.google.common.base.Strings;
 
 import net.shibboleth.idp.authn.AbstractValidationAction;
 import net.shibboleth.idp.authn.AuthnEventIds;
@@ -61,11 +52,8 @@ public class ProcessRedirectFromGoogle extends AbstractValidationAction {
     /** GoogleIdTokenContext containing the Google ID token to validate */
     @Nullable private GoogleContext googleContext;
     
-    /** HTTP transport used to query Google token endpoint */
-    private static final HttpTransport HTTP_TRANSPORT = new NetHttpTransport();
-    
-    /** JSON factory used for interpreting ID token response from Google */
-    private static final JsonFactory JSON_FACTORY = new JacksonFactory();
+    /** Registry resolving the integration of a context replicated from another node */
+    @Nullable private GoogleIntegrationRegistry integrationRegistry;
 
     /** Class logger */
     @Nonnull private final Logger log = LoggerFactory.getLogger(ProcessRedirectFromGoogle.class);
@@ -74,25 +62,6 @@ public class ProcessRedirectFromGoogle extends AbstractValidationAction {
     ProcessRedirectFromGoogle() {
     }
     
-    /** Represents token response from Google */
-    public static class TokenResponse extends GenericJson {
-        @Key
-        private String access_token;
-        
-        @Key
-        private String token_type;
-        
-        @Key
-        private Integer expires_in;
-        
-        @Key
-        private String id_token;
-        
-        public String getIdTokenString () {
-            return this.id_token;
-        }
-    }
-    
     /** {@inheritDoc} */
     @Override
     protected boolean doPreExecute(@Nonnull final ProfileRequestContext profileRequestContext,
@@ -117,6 +86,25 @@ public class ProcessRedirectFromGoogle extends AbstractValidationAction {
             return false;
         } 
         
+        /* A context replicated from another node only carries the ID of its integration */
+        if (googleContext.getGoogleIntegration() == null && integrationRegistry != null) {
+            final String integrationId = googleContext.getIntegrationId();
+            if (integrationId != null) {
+                googleContext.setGoogleIntegration(integrationRegistry.getIntegration(integrationId));
+            } else {
+                final HttpServletRequest servletRequest = getHttpServletRequest();
+                googleContext.setGoogleIntegration(integrationRegistry.lookup(profileRequestContext,
+                        servletRequest != null ? servletRequest.getServerName() : null));
+            }
+        }
+        if (googleContext.getGoogleIntegration() == null) {
+            log.info("{} Google integration {} of GoogleContext is not available", getLogPrefix(),
+                    googleContext.getIntegrationId());
+            handleError(profileRequestContext, authenticationContext, AuthnEventIds.NO_CREDENTIALS,
+                    AuthnEventIds.NO_CREDENTIALS);
+            return false;
+        }
+        
         return true;
     }
     
@@ -125,6 +113,8 @@ public class ProcessRedirectFromGoogle extends AbstractValidationAction {
     protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext,
             @Nonnull final AuthenticationContext authenticationContext) {
         
+        final long started = System.nanoTime();
+        
         /* Ensure we were passed the incoming HTTP request */
         final HttpServletRequest servletRequest = getHttpServletRequest();
         if (servletRequest == null) {
@@ -133,19 +123,49 @@ public class ProcessRedirectFromGoogle extends AbstractValidationAction {
             return;
         }
         
+        final GoogleIntegration googleIntegration = googleContext.getGoogleIntegration();
+        final GoogleAuthnMetrics metrics = googleIntegration.getMetrics();
+        if (metrics != null && googleContext.getRedirectTime() > 0) {
+            metrics.recordCallbackDwell(System.currentTimeMillis() - googleContext.getRedirectTime());
+        }
+        
         /* Check the anti forgery state token returned by Google against the saved version in GoogleContext */
         final String antiForgeryStateToken = servletRequest.getParameter("state");
         if (antiForgeryStateToken == null || antiForgeryStateToken.isEmpty()) {
             log.debug("{} No anti forgery state token in request", getLogPrefix());
-            ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.NO_CREDENTIALS);
+            if (metrics != null) {
+                metrics.recordStateMismatch();
+            }
+            signalFailure(profileRequestContext, googleIntegration,
+                    AuthnEventIds.NO_CREDENTIALS, "missing state", started);
             return;
         }
         
         log.debug("{} Google returned anti forgery state token {}", getLogPrefix(), antiForgeryStateToken);
         
-        if (!antiForgeryStateToken.equals(googleContext.getAntiForgeryStateToken())) {
+        /* A signed token is validated against the flow execution and browser session of the
+         * callback, without consulting the token saved when the authorization URL was computed.
+         */
+        final SignedStateCodec stateCodec = googleIntegration.getStateCodec();
+        if (stateCodec != null) {
+            if (!stateCodec.validate(antiForgeryStateToken, servletRequest.getParameter("execution"),
+                    SignedStateCodec.sessionBinding(servletRequest, false))) {
+                log.debug("{} Anti forgery state token in request is not valid for this flow execution and session",
+                        getLogPrefix());
+                if (metrics != null) {
+                    metrics.recordStateMismatch();
+                }
+                signalFailure(profileRequestContext, googleIntegration,
+                        AuthnEventIds.NO_CREDENTIALS, "invalid state", started);
+                return;
+            }
+        } else if (!antiForgeryStateToken.equals(googleContext.getAntiForgeryStateToken())) {
             log.debug("{} Anti forgery state token in request is not equal to token from Google Context", getLogPrefix());
-            ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.NO_CREDENTIALS);
+            if (metrics != null) {
+                metrics.recordStateMismatch();
+            }
+            signalFailure(profileRequestContext, googleIntegration,
+                    AuthnEventIds.NO_CREDENTIALS, "state mismatch", started);
             return;
         }
         
@@ -153,81 +173,331 @@ public class ProcessRedirectFromGoogle extends AbstractValidationAction {
         final String authorizationCode = servletRequest.getParameter("code");
         if (authorizationCode == null || authorizationCode.isEmpty()) {
             log.debug("{} No one-time authorization code in request", getLogPrefix());
-            ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.NO_CREDENTIALS);
+            if (metrics != null) {
+                metrics.recordMissingCode();
+            }
+            signalFailure(profileRequestContext, googleIntegration,
+                    AuthnEventIds.NO_CREDENTIALS, "missing code", started);
             return;
         }
         
         log.debug("{} Google one-time authorization code is {}", getLogPrefix(), authorizationCode);
         
-        /* Query Google token endpoint using the one-time authorization code for an ID token */
-        HttpRequestFactory requestFactory = HTTP_TRANSPORT.createRequestFactory(
-                new HttpRequestInitializer() {
-                    @Override
-                    public void initialize(HttpRequest request) {
-                        /* Set default parser as a JSON parser to make casting to class instance easier */
-                        request.setParser(new JsonObjectParser(JSON_FACTORY));
-                    }
-                });
+        /* Reject a callback presenting a state token or code seen before without querying the token endpoint */
+        final GoogleReplayCache replayCache = googleIntegration.getReplayCache();
+        if (replayCache != null
+                && (!replayCache.checkAndRecord(GoogleReplayCache.STATE_CONTEXT, antiForgeryStateToken)
+                    || !replayCache.checkAndRecord(GoogleReplayCache.CODE_CONTEXT, authorizationCode))) {
+            log.warn("{} Anti forgery state token or authorization code replayed", getLogPrefix());
+            if (metrics != null) {
+                metrics.recordReplay();
+            }
+            signalFailure(profileRequestContext, googleIntegration, AuthnEventIds.NO_CREDENTIALS, "replay", started);
+            return;
+        }
         
-        GenericUrl tokenEndpoint = new GenericUrl(googleContext.getGoogleIntegration().getTokenEndpoint());
+        /* Fail fast while the token endpoint is known to be failing, so that the flow can fall back */
+        final GoogleCircuitBreaker circuitBreaker = googleIntegration.getCircuitBreaker();
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            log.warn("{} Google token endpoint is unavailable, not exchanging authorization code", getLogPrefix());
+            if (metrics != null) {
+                metrics.recordCircuitBreakerRejection();
+            }
+            signalFailure(profileRequestContext, googleIntegration,
+                    GoogleAuthnEventIds.GOOGLE_UNAVAILABLE, "circuit breaker open", started);
+            return;
+        }
         
-        /* Prepare the POST body required at the token endpoint */
-        Map<String, String> params = new HashMap<String, String>(5);
-        params.put("code", authorizationCode);
-        params.put("grant_type", "authorization_code");
-        params.put("client_id", googleContext.getGoogleIntegration().getOauth2ClientId());
-        params.put("client_secret", googleContext.getGoogleIntegration().getOauth2ClientSecret());
-        params.put("redirect_uri", googleContext.getRedirectUri());
+        /* Wait briefly for a place within the concurrency limit, so that a slow token endpoint
+         * cannot tie up an unbounded number of threads
+         */
+        final GoogleConcurrencyLimiter concurrencyLimiter = googleIntegration.getConcurrencyLimiter();
+        if (concurrencyLimiter != null && !concurrencyLimiter.acquire()) {
+            log.warn("{} {} token exchanges in progress, not exchanging authorization code", getLogPrefix(),
+                    concurrencyLimiter.getInFlight());
+            if (metrics != null) {
+                metrics.recordConcurrencyLimitRejection();
+            }
+            if (circuitBreaker != null) {
+                circuitBreaker.cancel();
+            }
+            signalFailure(profileRequestContext, googleIntegration,
+                    GoogleAuthnEventIds.GOOGLE_UNAVAILABLE, "concurrency limit", started);
+            return;
+        }
         
-        HttpContent httpContent = new UrlEncodedContent(params);
-        log.debug("{} computed token endpoint payload is {}", getLogPrefix(), httpContent.toString());
+        /* Exchange the one-time authorization code for an ID token, on the dedicated
+         * exchange executor if one is configured so that this thread waits no longer
+         * than the executor allows.
+         */
+        final TokenExchange exchange = new TokenExchange(googleIntegration, authorizationCode,
+                googleContext.getRedirectUri());
+        final GoogleTokenExchangeExecutor exchangeExecutor = googleIntegration.getExchangeExecutor();
         
         try {
-            HttpRequest request = requestFactory.buildPostRequest(tokenEndpoint, httpContent);
-            
-            log.debug("{} executing POST to Google token endpoint", getLogPrefix());
-            HttpResponse response = request.execute();
-            log.debug("{} done executing POST to Google token endpoint", getLogPrefix());
+            final OidcIdToken idToken = exchangeExecutor != null ? exchangeExecutor.execute(exchange) : exchange.call();
             
-            /* Cast the response to a TokenResponse class instance */
-            TokenResponse tokenResponse = response.parseAs(TokenResponse.class);
-            log.debug("{} received token response {}", getLogPrefix(), tokenResponse.toPrettyString());
-            
-            /* Close the HTTP connection */
-            response.disconnect();
-            
-            /* We do not validate the ID token since we just received it over a secure channel
-             * and we are not going to pass it around. We just grab the payload
-             * and pad it as necessary so we can then decode the base64 encoding.
-             */
-            String idTokenPayloadString = tokenResponse.getIdTokenString().split("\\.")[1];
-            String idTokenPayloadStringPadded = Strings.padEnd(idTokenPayloadString, idTokenPayloadString.length() + (4 - (idTokenPayloadString.length() % 4)), '=');
-            String idTokenPayloadStringDecoded = new String(DatatypeConverter.parseBase64Binary(idTokenPayloadStringPadded));
-        
-            /* Cast the ID token as instance of OidcIdToken class */
-            JsonObjectParser jsonParser = new JsonObjectParser(JSON_FACTORY);
-            OidcIdToken idToken = jsonParser.parseAndClose(new StringReader(idTokenPayloadStringDecoded), OidcIdToken.class);
-            log.debug("{} id token is {}", getLogPrefix(), idToken.toPrettyString());
-        
             /* Attach the ID token to the GoogleContext */
             googleContext.setIdToken(idToken);
         } catch (IOException e) {
             log.warn("{} exception exchanging authorization code for id token : {}", getLogPrefix(), e.getMessage());
-            ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.NO_CREDENTIALS);
+            signalFailure(profileRequestContext, googleIntegration,
+                    AuthnEventIds.NO_CREDENTIALS, e.getMessage(), started);
             return;
+        } finally {
+            exchange.abandon();
         }
         
         log.info("{} Login by '{}' succeeded", getLogPrefix(), googleContext.getIdToken().getSub());
+        audit(googleIntegration, googleContext.getIdToken(), GoogleLoginAuditLog.SUCCESS, null, started);
         
         /* Complete the authentication flow by building the authentication result */
         buildAuthenticationResult(profileRequestContext, authenticationContext);
         ActionSupport.buildProceedEvent(profileRequestContext);
     }
     
+    /**
+     * Signal the event ending a failed login and record the attempt in the audit log
+     * 
+     * @param profileRequestContext the current profile request context
+     * @param googleIntegration the Google integration details
+     * @param eventId the event ending the login
+     * @param reason why the login failed
+     * @param started the time in nanoseconds the callback from Google began to be processed
+     */
+    private void signalFailure(@Nonnull final ProfileRequestContext profileRequestContext,
+            @Nonnull final GoogleIntegration googleIntegration, @Nonnull final String eventId,
+            @Nullable final String reason, final long started) {
+        ActionSupport.buildEvent(profileRequestContext, eventId);
+        audit(googleIntegration, null, eventId, reason, started);
+    }
+    
+    /**
+     * Record a login attempt in the audit log of the Google integration, if it has one
+     * 
+     * @param googleIntegration the Google integration details
+     * @param idToken the ID token obtained, or null if none was
+     * @param outcome {@link GoogleLoginAuditLog#SUCCESS} or the event ending the login
+     * @param reason why the login failed, or null if it succeeded
+     * @param started the time in nanoseconds the callback from Google began to be processed
+     */
+    private void audit(@Nonnull final GoogleIntegration googleIntegration, @Nullable final OidcIdToken idToken,
+            @Nonnull final String outcome, @Nullable final String reason, final long started) {
+        final GoogleLoginAuditLog auditLog = googleIntegration.getAuditLog();
+        if (auditLog == null) {
+            return;
+        }
+        if (!auditLog.record(googleIntegration.getId(), idToken != null ? idToken.getSub() : null,
+                idToken != null ? idToken.getHd() : null, outcome, reason, System.nanoTime() - started)) {
+            final GoogleAuthnMetrics metrics = googleIntegration.getMetrics();
+            if (metrics != null) {
+                metrics.recordAuditRecordDropped();
+            }
+        }
+    }
+    
+    /**
+     * Query the Google token endpoint to exchange the one-time authorization code for an ID token
+     * 
+     * @param googleIntegration the Google integration details
+     * @param authorizationCode the one-time authorization code
+     * @param redirectUri the redirect_uri sent with the authorization request
+     * 
+     * @return the ID token
+     * @throws IOException if the token endpoint could not be queried or the response could not be parsed
+     */
+    @Nonnull private OidcIdToken exchangeAuthorizationCode(@Nonnull final GoogleIntegration googleIntegration,
+            @Nonnull final String authorizationCode, @Nullable final String redirectUri) throws IOException {
+        
+        /* Prepare the POST body required at the token endpoint */
+        Map<String, String> params = new HashMap<String, String>(5);
+        params.put("code", authorizationCode);
+        params.put("grant_type", "authorization_code");
+        params.put("client_id", googleIntegration.getOauth2ClientId());
+        params.put("client_secret", googleIntegration.getOauth2ClientSecret());
+        params.put("redirect_uri", redirectUri);
+        
+        HttpContent httpContent = new UrlEncodedContent(params);
+        log.debug("{} computed token endpoint payload is {}", getLogPrefix(), httpContent.toString());
+        
+        HttpRequest request = googleIntegration.getRequestFactory().buildPostRequest(
+                googleIntegration.getTokenEndpointUrl(), httpContent);
+        
+        log.debug("{} executing POST to Google token endpoint", getLogPrefix());
+        final long started = System.nanoTime();
+        HttpResponse response;
+        try {
+            response = request.execute();
+        } catch (HttpResponseException e) {
+            recordTokenEndpointQuery(googleIntegration, e.getStatusCode(), System.nanoTime() - started);
+            throw e;
+        } catch (IOException e) {
+            recordTokenEndpointQuery(googleIntegration, 0, System.nanoTime() - started);
+            throw e;
+        }
+        recordTokenEndpointQuery(googleIntegration, response.getStatusCode(), System.nanoTime() - started);
+        log.debug("{} done executing POST to Google token endpoint", getLogPrefix());
+        
+        /* Stream the id_token out of the response, skipping the other fields, then release
+         * the connection back to the pool rather than closing it so it can be reused.
+         */
+        final String idTokenString;
+        try {
+            idTokenString = googleIntegration.getTokenResponseParser().parseIdToken(response.getContent(),
+                    response.getContentCharset());
+        } finally {
+            response.ignore();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("{} received id_token of {} characters", getLogPrefix(), idTokenString.length());
+            log.debug("{} transport pool has {} connections, average wait {} ms", getLogPrefix(),
+                    googleIntegration.getTransportPool().getConnectionsInPool(),
+                    googleIntegration.getTransportPool().getAverageConnectionWaitTime());
+        }
+        
+        /* Decode the payload straight from the token into the parser as an instance of OidcIdToken class */
+        final long decodeStarted = System.nanoTime();
+        final JwtSegmentDecoder jwt = new JwtSegmentDecoder(idTokenString);
+        OidcIdToken idToken = googleIntegration.getJsonParser().parseAndClose(jwt.openPayload(), StandardCharsets.UTF_8, OidcIdToken.class);
+        final GoogleAuthnMetrics metrics = googleIntegration.getMetrics();
+        if (metrics != null) {
+            metrics.recordIdTokenDecode(System.nanoTime() - decodeStarted);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("{} id token is {}", getLogPrefix(), idToken.toPrettyString());
+        }
+        
+        /* Verify the signature and claims locally against the cached Google keys */
+        final GoogleIdTokenVerifier idTokenVerifier = googleIntegration.getIdTokenVerifier();
+        if (idTokenVerifier != null) {
+            idTokenVerifier.verify(jwt, idToken, googleIntegration.getOauth2ClientId());
+        }
+        
+        /* The hd parameter only preselects the domain at Google, so enforce it on the token */
+        final String hostedDomain = googleIntegration.getHostedDomain();
+        if (hostedDomain != null && !hostedDomain.equalsIgnoreCase(idToken.getHd())) {
+            throw new IOException("ID token hosted domain " + idToken.getHd() + " is not " + hostedDomain);
+        }
+        
+        return idToken;
+    }
+    
+    /**
+     * Record the outcome of a query to the token endpoint with the metrics, circuit breaker and concurrency limiter
+     * 
+     * @param googleIntegration the Google integration details
+     * @param status the HTTP status, or 0 if no response was received
+     * @param nanos the latency in nanoseconds
+     */
+    private void recordTokenEndpointQuery(@Nonnull final GoogleIntegration googleIntegration, final int status,
+            final long nanos) {
+        final GoogleAuthnMetrics metrics = googleIntegration.getMetrics();
+        if (metrics != null) {
+            metrics.recordTokenEndpointLatency(status, nanos);
+        }
+        final GoogleCircuitBreaker circuitBreaker = googleIntegration.getCircuitBreaker();
+        if (circuitBreaker != null) {
+            circuitBreaker.record(status > 0 && status < 500, nanos);
+        }
+        final GoogleConcurrencyLimiter concurrencyLimiter = googleIntegration.getConcurrencyLimiter();
+        if (concurrencyLimiter != null) {
+            concurrencyLimiter.record(status > 0 && status < 500, nanos);
+            if (metrics != null) {
+                metrics.recordConcurrencyLimit(concurrencyLimiter.getLimit());
+            }
+        }
+    }
+    
+    /**
+     * Exchange of an authorization code, run at most once whether on the exchange executor or
+     * on the calling thread. The exchange holds the place within the concurrency limit until
+     * it finishes, even after the caller has stopped waiting for it, so that the limiter counts
+     * the queries actually in flight. An exchange the executor rejected or cancelled before it
+     * started is abandoned instead, giving up its place and the admission of the circuit
+     * breaker it will not use.
+     */
+    private final class TokenExchange implements Callable<OidcIdToken> {
+        /** The Google integration details */
+        @Nonnull private final GoogleIntegration googleIntegration;
+        
+        /** The one-time authorization code */
+        @Nonnull private final String authorizationCode;
+        
+        /** The redirect_uri sent with the authorization request */
+        @Nullable private final String redirectUri;
+        
+        /** Whether the exchange has started or been abandoned */
+        @Nonnull private final AtomicBoolean claimed = new AtomicBoolean();
+        
+        /**
+         * Constructor
+         * 
+         * @param integration the Google integration details
+         * @param code the one-time authorization code
+         * @param uri the redirect_uri sent with the authorization request
+         */
+        private TokenExchange(@Nonnull final GoogleIntegration integration, @Nonnull final String code,
+                @Nullable final String uri) {
+            this.googleIntegration = integration;
+            this.authorizationCode = code;
+            this.redirectUri = uri;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public OidcIdToken call() throws IOException {
+            if (!this.claimed.compareAndSet(false, true)) {
+                throw new IOException("Token exchange abandoned before it started");
+            }
+            try {
+                return exchangeAuthorizationCode(this.googleIntegration, this.authorizationCode, this.redirectUri);
+            } finally {
+                this.releaseConcurrencyLimit();
+            }
+        }
+        
+        /**
+         * Abandon the exchange unless it has started
+         */
+        private void abandon() {
+            if (this.claimed.compareAndSet(false, true)) {
+                final GoogleCircuitBreaker circuitBreaker = this.googleIntegration.getCircuitBreaker();
+                if (circuitBreaker != null) {
+                    circuitBreaker.cancel();
+                }
+                this.releaseConcurrencyLimit();
+            }
+        }
+        
+        /**
+         * Give up the place within the concurrency limit acquired for the exchange
+         */
+        private void releaseConcurrencyLimit() {
+            final GoogleConcurrencyLimiter concurrencyLimiter = this.googleIntegration.getConcurrencyLimiter();
+            if (concurrencyLimiter != null) {
+                concurrencyLimiter.release();
+            }
+        }
+    }
+    
     /** {@inheritDoc} */
     @Override
     @Nonnull protected Subject populateSubject(@Nonnull final Subject subject) {
         subject.getPrincipals().add(new GoogleIdPrincipal(googleContext.getIdToken()));
+        
+        /* The principal holds the claims from now on */
+        googleContext.setIdToken(null);
         return subject;
     }
+    
+    /**
+     * Set the registry resolving the integration of a context replicated from another node
+     * 
+     * @param registry the integration registry
+     * @return instance of this class
+     */
+    public ProcessRedirectFromGoogle setIntegrationRegistry(@Nullable GoogleIntegrationRegistry registry) {
+        this.integrationRegistry = registry;
+        return this;
+    }
 }
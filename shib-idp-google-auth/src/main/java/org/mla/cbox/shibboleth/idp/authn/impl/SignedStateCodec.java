@@ -0,0 +1,259 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Issues and validates stateless anti forgery state tokens.
+ *
+ * A token carries its expiry time and a random nonce, authenticated together with the
+ * flow execution key and a binding to the browser by a truncated HMAC-SHA256 under a key
+ * shared by all nodes. Any node holding the key can therefore validate a callback without
+ * the token having been stored. Tokens are 36 bytes, encoded as 48 base64url characters.
+ *
+ * Flow execution keys such as e1s2 are counters within a conversation, and so repeat across
+ * users. The binding, the ID of the HTTP session the flow runs in, is what ties a token to
+ * the browser it was issued to: a token and code obtained by one user and replayed through
+ * another user's browser fail validation, as that browser presents a different session.
+ */
+@ThreadSafe
+public class SignedStateCodec {
+    /** Length of the expiry time in bytes */
+    private static final int EXPIRY_LENGTH = 4;
+
+    /** Length of the nonce in bytes */
+    private static final int NONCE_LENGTH = 12;
+
+    /** Length of the truncated MAC in bytes */
+    private static final int MAC_LENGTH = 20;
+
+    /** Length of a decoded token */
+    private static final int TOKEN_LENGTH = EXPIRY_LENGTH + NONCE_LENGTH + MAC_LENGTH;
+
+    /** MAC algorithm */
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    /** Shared key, null until set */
+    @Nullable private SecretKeySpec key;
+
+    /** Per-thread MAC instances initialized with the key */
+    @Nonnull private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Unable to initialize " + MAC_ALGORITHM, e);
+            }
+        }
+    };
+
+    /** Source of the nonces */
+    @Nonnull private StateTokenGenerator generator = StateTokenGenerator.getDefault();
+
+    /** Lifetime of a token in seconds */
+    private long lifetime = 600;
+
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(SignedStateCodec.class);
+
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+
+    /** Constructor */
+    public SignedStateCodec() {
+
+    }
+
+    /**
+     * Initialize the codec, ensuring a key of adequate length has been set
+     */
+    public void initialize() {
+        if (this.key == null || this.key.getEncoded().length < 32) {
+            throw new IllegalStateException("A shared key of at least 32 bytes is required");
+        }
+    }
+
+    /**
+     * Issue a token bound to a flow execution and a browser
+     *
+     * @param flowExecutionKey the flow execution key
+     * @param binding the binding to the browser, see {@link #sessionBinding(HttpServletRequest, boolean)}
+     * @return the token
+     */
+    @Nonnull public String issue(@Nullable final String flowExecutionKey, @Nonnull final String binding) {
+        final byte[] token = new byte[TOKEN_LENGTH];
+        final long expiry = System.currentTimeMillis() / 1000 + this.lifetime;
+        token[0] = (byte) (expiry >>> 24);
+        token[1] = (byte) (expiry >>> 16);
+        token[2] = (byte) (expiry >>> 8);
+        token[3] = (byte) expiry;
+
+        final byte[] nonce = new byte[NONCE_LENGTH];
+        this.generator.nextBytes(nonce);
+        System.arraycopy(nonce, 0, token, EXPIRY_LENGTH, NONCE_LENGTH);
+
+        System.arraycopy(this.mac(token, flowExecutionKey, binding), 0, token, EXPIRY_LENGTH + NONCE_LENGTH, MAC_LENGTH);
+        return BaseEncoding.base64Url().omitPadding().encode(token);
+    }
+
+    /**
+     * Validate a token against a flow execution and a browser
+     *
+     * @param state the token returned by Google
+     * @param flowExecutionKey the flow execution key of the callback
+     * @param binding the binding to the browser presenting the callback, or null if it has none
+     * @return true iff the token was issued by a node holding the key, for this flow execution and
+     *          browser, and has not expired
+     */
+    public boolean validate(@Nullable final String state, @Nullable final String flowExecutionKey,
+            @Nullable final String binding) {
+        if (state == null) {
+            return false;
+        }
+        if (binding == null) {
+            log.debug("{} Callback is not bound to a browser session", this.logPrefix);
+            return false;
+        }
+
+        final byte[] token;
+        try {
+            token = JwtSegmentDecoder.decode(state, 0, state.length());
+        } catch (IOException e) {
+            log.debug("{} State token is not base64url encoded", this.logPrefix);
+            return false;
+        }
+        if (token.length != TOKEN_LENGTH) {
+            log.debug("{} State token has invalid length {}", this.logPrefix, token.length);
+            return false;
+        }
+
+        final byte[] expected = this.mac(token, flowExecutionKey, binding);
+        final byte[] actual = new byte[MAC_LENGTH];
+        System.arraycopy(token, EXPIRY_LENGTH + NONCE_LENGTH, actual, 0, MAC_LENGTH);
+        final byte[] truncated = new byte[MAC_LENGTH];
+        System.arraycopy(expected, 0, truncated, 0, MAC_LENGTH);
+        if (!MessageDigest.isEqual(truncated, actual)) {
+            log.debug("{} State token MAC does not match flow execution {} and browser session", this.logPrefix,
+                    flowExecutionKey);
+            return false;
+        }
+
+        final long expiry = (token[0] & 0xFFL) << 24 | (token[1] & 0xFFL) << 16 | (token[2] & 0xFFL) << 8
+                | (token[3] & 0xFFL);
+        if (expiry < System.currentTimeMillis() / 1000) {
+            log.debug("{} State token expired", this.logPrefix);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Compute the MAC over the expiry time, nonce, flow execution key and binding
+     *
+     * @param token the token, of which the expiry time and nonce are authenticated
+     * @param flowExecutionKey the flow execution key
+     * @param binding the binding to the browser
+     * @return the untruncated MAC
+     */
+    @Nonnull private byte[] mac(@Nonnull final byte[] token, @Nullable final String flowExecutionKey,
+            @Nonnull final String binding) {
+        final Mac mac = this.macs.get();
+        mac.update(token, 0, EXPIRY_LENGTH + NONCE_LENGTH);
+        if (flowExecutionKey != null) {
+            mac.update(flowExecutionKey.getBytes(StandardCharsets.UTF_8));
+        }
+        /* Separate the two so that characters cannot be moved from one to the other */
+        mac.update((byte) 0);
+        mac.update(binding.getBytes(StandardCharsets.UTF_8));
+        return mac.doFinal();
+    }
+
+    /**
+     * Get the binding of a request to the browser presenting it: the ID of its HTTP session,
+     * which the browser holds as a first-party cookie and which the flow conversation lives in
+     *
+     * @param request the request
+     * @param create whether to create a session if the request has none
+     * @return the binding, or null if the request has no session and none was created
+     */
+    @Nullable public static String sessionBinding(@Nonnull final HttpServletRequest request, final boolean create) {
+        final HttpSession session = request.getSession(create);
+        return session != null ? session.getId() : null;
+    }
+
+    /**
+     * Extract the flow execution key from a flow execution URL
+     *
+     * @param flowExecutionUrl the flow execution URL
+     * @return the flow execution key, or null if the URL does not contain one
+     */
+    @Nullable public static String flowExecutionKey(@Nullable final String flowExecutionUrl) {
+        if (flowExecutionUrl == null) {
+            return null;
+        }
+        int start = flowExecutionUrl.indexOf("?execution=");
+        if (start < 0) {
+            start = flowExecutionUrl.indexOf("&execution=");
+        }
+        if (start < 0) {
+            return null;
+        }
+        start += "?execution=".length();
+        final int end = flowExecutionUrl.indexOf('&', start);
+        return end < 0 ? flowExecutionUrl.substring(start) : flowExecutionUrl.substring(start, end);
+    }
+
+    /**
+     * Set the shared key
+     *
+     * @param base64Key the key, base64 encoded
+     * @return this codec
+     */
+    public SignedStateCodec setKey(@Nonnull final String base64Key) {
+        this.key = new SecretKeySpec(BaseEncoding.base64().decode(base64Key.trim()), MAC_ALGORITHM);
+        return this;
+    }
+
+    public SignedStateCodec setGenerator(@Nonnull final StateTokenGenerator nonceGenerator) {
+        this.generator = nonceGenerator;
+        return this;
+    }
+
+    public SignedStateCodec setLifetime(final long seconds) {
+        this.lifetime = seconds;
+        return this;
+    }
+}
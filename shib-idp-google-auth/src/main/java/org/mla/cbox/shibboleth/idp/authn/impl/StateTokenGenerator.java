@@ -0,0 +1,191 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Generates anti forgery state tokens as fixed length base64url strings.
+ *
+ * Each thread draws from its own deterministic random bit generator, seeded from a shared
+ * system source and reseeded after a configured number of tokens, so generating a token
+ * neither contends on a shared instance nor reads the system entropy source.
+ */
+@ThreadSafe
+public class StateTokenGenerator {
+    /** Generator used when none is configured */
+    @Nonnull private static final StateTokenGenerator DEFAULT = new StateTokenGenerator();
+
+    /** The base64url alphabet */
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    /** Shared source of seeds for the per-thread generators */
+    @Nonnull private final SecureRandom seedSource = new SecureRandom();
+
+    /** Per-thread generators */
+    @Nonnull private final ThreadLocal<Generator> generators = new ThreadLocal<Generator>() {
+        @Override
+        protected Generator initialValue() {
+            return new Generator();
+        }
+    };
+
+    /** Algorithm of the per-thread generators */
+    @Nonnull private String algorithm = "SHA1PRNG";
+
+    /** Number of random bytes per token, a multiple of 3 gives tokens without padding */
+    private int tokenBytes = 18;
+
+    /** Number of tokens a per-thread generator produces before being reseeded */
+    private int reseedInterval = 100000;
+
+    /** Constructor */
+    public StateTokenGenerator() {
+
+    }
+
+    /**
+     * Get the generator used when none is configured
+     *
+     * @return the shared default generator
+     */
+    @Nonnull public static StateTokenGenerator getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Generate a state token
+     *
+     * @return a base64url encoded token of {@link #getTokenLength()} characters
+     */
+    @Nonnull public String generate() {
+        final Generator generator = this.generators.get();
+        generator.next(this.tokenBytes);
+        return encode(generator.buffer, this.tokenBytes);
+    }
+
+    /**
+     * Fill an array with random bytes from the calling thread's generator
+     *
+     * @param bytes the array to fill
+     */
+    public void nextBytes(@Nonnull final byte[] bytes) {
+        this.generators.get().random().nextBytes(bytes);
+    }
+
+    /**
+     * Get the length of the generated tokens
+     *
+     * @return the number of characters
+     */
+    public int getTokenLength() {
+        return (this.tokenBytes * 4 + 2) / 3;
+    }
+
+    public StateTokenGenerator setAlgorithm(@Nonnull final String name) {
+        this.algorithm = name;
+        return this;
+    }
+
+    public StateTokenGenerator setTokenBytes(final int bytes) {
+        this.tokenBytes = bytes;
+        return this;
+    }
+
+    public StateTokenGenerator setReseedInterval(final int interval) {
+        this.reseedInterval = interval;
+        return this;
+    }
+
+    /**
+     * Encode bytes as base64url without padding
+     *
+     * @param bytes the bytes
+     * @param length the number of bytes to encode
+     * @return the encoded string
+     */
+    @Nonnull private static String encode(@Nonnull final byte[] bytes, final int length) {
+        final char[] out = new char[(length * 4 + 2) / 3];
+        int o = 0;
+        int i = 0;
+        for (; i + 3 <= length; i += 3) {
+            final int v = (bytes[i] & 0xFF) << 16 | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF);
+            out[o++] = ALPHABET[v >>> 18];
+            out[o++] = ALPHABET[(v >>> 12) & 0x3F];
+            out[o++] = ALPHABET[(v >>> 6) & 0x3F];
+            out[o++] = ALPHABET[v & 0x3F];
+        }
+        if (i < length) {
+            final int v = (bytes[i] & 0xFF) << 16 | (i + 1 < length ? (bytes[i + 1] & 0xFF) << 8 : 0);
+            out[o++] = ALPHABET[v >>> 18];
+            out[o++] = ALPHABET[(v >>> 12) & 0x3F];
+            if (i + 1 < length) {
+                out[o++] = ALPHABET[(v >>> 6) & 0x3F];
+            }
+        }
+        return new String(out);
+    }
+
+    /** A per-thread generator with its output buffer */
+    private final class Generator {
+        /** Output buffer, reused for every token */
+        @Nonnull private byte[] buffer = new byte[0];
+
+        /** The random bit generator, null until first used or after the reseed interval */
+        private SecureRandom random;
+
+        /** Number of tokens produced since the last reseed */
+        private int produced;
+
+        /**
+         * Fill the buffer with random bytes
+         *
+         * @param length the number of bytes
+         */
+        void next(final int length) {
+            if (this.buffer.length != length) {
+                this.buffer = new byte[length];
+            }
+            this.random().nextBytes(this.buffer);
+        }
+
+        /**
+         * Get the random bit generator, seeding a new one when the reseed interval is reached
+         *
+         * @return the random bit generator
+         */
+        @Nonnull SecureRandom random() {
+            if (this.random == null || ++this.produced >= reseedInterval) {
+                final byte[] seed = new byte[32];
+                synchronized (seedSource) {
+                    seedSource.nextBytes(seed);
+                }
+                try {
+                    this.random = SecureRandom.getInstance(algorithm);
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException("Random bit generator " + algorithm + " is not available", e);
+                }
+                this.random.setSeed(seed);
+                this.produced = 0;
+            }
+            return this.random;
+        }
+    }
+}
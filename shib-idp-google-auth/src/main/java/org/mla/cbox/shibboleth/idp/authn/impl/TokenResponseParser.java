@@ -0,0 +1,139 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.JsonToken;
+
+/**
+ * Extracts the id_token from a token endpoint response.
+ *
+ * The response is read as a stream of JSON tokens straight from the response body. Only the
+ * id_token value is kept; the values of all other fields, including nested objects and
+ * arrays, are skipped without being materialized.
+ */
+@ThreadSafe
+public class TokenResponseParser {
+    /** Name of the id_token field */
+    @Nonnull private static final String ID_TOKEN_FIELD = "id_token";
+
+    /** Factory of the streaming parsers */
+    @Nonnull private final JsonFactory jsonFactory;
+
+    /**
+     * Constructor
+     *
+     * @param factory the JSON factory creating the streaming parsers
+     */
+    public TokenResponseParser(@Nonnull final JsonFactory factory) {
+        this.jsonFactory = factory;
+    }
+
+    /**
+     * Read the id_token from a token endpoint response body, closing the body
+     *
+     * @param body the response body
+     * @param charset the charset of the body, null for UTF-8
+     * @return the encoded id_token
+     * @throws IOException if the body is not a JSON object or has no id_token string
+     */
+    @Nonnull public String parseIdToken(@Nullable final InputStream body, @Nullable final Charset charset)
+            throws IOException {
+        if (body == null) {
+            throw new IOException("Token response has no body");
+        }
+
+        final JsonParser parser = charset != null
+                ? this.jsonFactory.createJsonParser(body, charset) : this.jsonFactory.createJsonParser(body);
+        try {
+            JsonToken token = parser.nextToken();
+            if (token != JsonToken.START_OBJECT) {
+                throw new IOException("Token response is not a JSON object, it starts with " + describe(token));
+            }
+
+            String idToken = null;
+            while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                token = parser.nextToken();
+                if (token == null) {
+                    break;
+                }
+                if (ID_TOKEN_FIELD.equals(field)) {
+                    if (token != JsonToken.VALUE_STRING) {
+                        throw new IOException("Token response field id_token is " + describe(token)
+                                + " rather than a string");
+                    }
+                    idToken = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+
+            if (token != JsonToken.END_OBJECT) {
+                throw new IOException("Token response ends with " + describe(token) + " before the end of its object");
+            }
+            if (idToken == null) {
+                throw new IOException("Token response does not contain an id_token");
+            }
+            return idToken;
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Describe a JSON token for an error message
+     *
+     * @param token the token, null at the end of the input
+     * @return the description
+     */
+    @Nonnull private static String describe(@Nullable final JsonToken token) {
+        if (token == null) {
+            return "end of input";
+        }
+        switch (token) {
+            case START_OBJECT:
+                return "an object";
+            case START_ARRAY:
+                return "an array";
+            case END_OBJECT:
+            case END_ARRAY:
+                return "a closing bracket";
+            case FIELD_NAME:
+                return "a field name";
+            case VALUE_NULL:
+                return "null";
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                return "a boolean";
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return "a number";
+            case VALUE_STRING:
+                return "a string";
+            default:
+                return token.toString();
+        }
+    }
+}
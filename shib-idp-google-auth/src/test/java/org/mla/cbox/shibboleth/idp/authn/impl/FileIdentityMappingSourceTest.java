@@ -0,0 +1,107 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for {@link FileIdentityMappingSource} */
+public class FileIdentityMappingSourceTest {
+    /** Mapping file */
+    private File file;
+
+    /** Source under test, checking the file on every lookup */
+    private FileIdentityMappingSource source;
+
+    @Before
+    public void setUp() throws IOException {
+        this.file = File.createTempFile("mappings", ".properties");
+        write("1001=alice\n", 1000000000000L);
+        this.source = new FileIdentityMappingSource().setFile(this.file.getPath()).setReloadInterval(0);
+        this.source.initialize();
+    }
+
+    @After
+    public void tearDown() {
+        this.file.delete();
+    }
+
+    @Test
+    public void testLookup() throws IOException {
+        assertEquals("alice", this.source.lookup("1001"));
+        assertNull(this.source.lookup("1002"));
+    }
+
+    /** A changed file replaces the mappings */
+    @Test
+    public void testReload() throws IOException {
+        write("1002=bob\n", 1000000060000L);
+        assertNull(this.source.lookup("1001"));
+        assertEquals("bob", this.source.lookup("1002"));
+    }
+
+    /** A deleted file keeps the last mappings until it comes back */
+    @Test
+    public void testDeleted() throws IOException {
+        assertTrue(this.file.delete());
+        assertEquals("alice", this.source.lookup("1001"));
+        assertEquals("alice", this.source.lookup("1001"));
+        write("1002=bob\n", 1000000060000L);
+        assertEquals("bob", this.source.lookup("1002"));
+    }
+
+    /** A file that cannot be read keeps the last mappings until it can */
+    @Test
+    public void testUnreadable() throws IOException {
+        assertTrue(this.file.delete());
+        assertTrue(this.file.mkdir());
+        assertEquals("alice", this.source.lookup("1001"));
+        assertTrue(this.file.delete());
+        write("1002=bob\n", 1000000060000L);
+        assertEquals("bob", this.source.lookup("1002"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingAtStartup() throws IOException {
+        assertTrue(this.file.delete());
+        new FileIdentityMappingSource().setFile(this.file.getPath()).initialize();
+    }
+
+    /**
+     * Write the mapping file
+     *
+     * @param content mappings
+     * @param modified modification time to give the file
+     * @throws IOException if the file cannot be written
+     */
+    private void write(final String content, final long modified) throws IOException {
+        try (final Writer out = new OutputStreamWriter(new FileOutputStream(this.file), StandardCharsets.UTF_8)) {
+            out.write(content);
+        }
+        assertTrue(this.file.setLastModified(modified));
+    }
+}
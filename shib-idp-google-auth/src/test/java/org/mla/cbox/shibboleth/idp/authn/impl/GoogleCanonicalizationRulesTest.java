@@ -0,0 +1,98 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+/** Tests for {@link GoogleCanonicalizationRules} */
+public class GoogleCanonicalizationRulesTest {
+    /**
+     * Build a principal
+     *
+     * @param email the email claim
+     * @param emailVerified the email_verified claim
+     * @return the principal
+     */
+    private static GoogleIdPrincipal principal(final String email, final Boolean emailVerified) {
+        final GoogleIdPrincipal principal = new GoogleIdPrincipal("1234567890", email, "A User");
+        principal.setEmailVerifiedClaim(emailVerified);
+        return principal;
+    }
+
+    /**
+     * Build initialized rules
+     *
+     * @param source the claim the name starts from
+     * @return the rules
+     */
+    private static GoogleCanonicalizationRules rules(final GoogleCanonicalizationRules.Source source) {
+        final GoogleCanonicalizationRules rules = new GoogleCanonicalizationRules().setSource(source)
+                .setDomainMappings(Collections.singletonMap("Example.org", ""));
+        rules.initialize();
+        return rules;
+    }
+
+    /** The sub claim is used whether or not the email address is verified */
+    @Test
+    public void testSub() {
+        final GoogleCanonicalizationRules rules = rules(GoogleCanonicalizationRules.Source.SUB);
+        assertEquals("1234567890", rules.canonicalize(principal("user@example.org", Boolean.FALSE)));
+        assertEquals("1234567890", rules.canonicalize(principal(null, null)));
+    }
+
+    /** A verified email address gives the name */
+    @Test
+    public void testVerifiedEmail() {
+        assertEquals("user", rules(GoogleCanonicalizationRules.Source.EMAIL)
+                .canonicalize(principal("user@example.org", Boolean.TRUE)));
+        assertEquals("user", rules(GoogleCanonicalizationRules.Source.LOCAL_PART)
+                .canonicalize(principal("user@elsewhere.example", Boolean.TRUE)));
+    }
+
+    /** An email address not reported as verified gives no name */
+    @Test
+    public void testUnverifiedEmail() {
+        for (final GoogleCanonicalizationRules.Source source : new GoogleCanonicalizationRules.Source[] {
+            GoogleCanonicalizationRules.Source.EMAIL, GoogleCanonicalizationRules.Source.LOCAL_PART, }) {
+            final GoogleCanonicalizationRules rules = rules(source);
+            assertNull(rules.canonicalize(principal("user@example.org", Boolean.FALSE)));
+            assertNull(rules.canonicalize(principal("user@example.org", null)));
+        }
+    }
+
+    /** A verified name cached for an address is not served once the address is unverified */
+    @Test
+    public void testUnverifiedAfterCached() {
+        final GoogleCanonicalizationRules rules = rules(GoogleCanonicalizationRules.Source.EMAIL);
+        assertEquals("user", rules.canonicalize(principal("user@example.org", Boolean.TRUE)));
+        assertNull(rules.canonicalize(principal("user@example.org", Boolean.FALSE)));
+    }
+
+    /** Unverified addresses give a name only when explicitly allowed */
+    @Test
+    public void testAllowUnverifiedEmail() {
+        final GoogleCanonicalizationRules rules = new GoogleCanonicalizationRules()
+                .setSource(GoogleCanonicalizationRules.Source.EMAIL).setAllowUnverifiedEmail(true);
+        rules.initialize();
+        assertEquals("user@example.org", rules.canonicalize(principal("user@example.org", Boolean.FALSE)));
+        assertEquals("user@example.org", rules.canonicalize(principal("user@example.org", null)));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/** Tests for {@link GoogleConcurrencyLimiter} */
+public class GoogleConcurrencyLimiterTest {
+    /** Latency of the unloaded token endpoint */
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /** Latency of the token endpoint under load, well beyond the tolerance */
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /** Slow queries shrink a small limit down to the minimum */
+    @Test
+    public void testSmallLimitShrinks() {
+        for (int initial = 2; initial <= 4; initial++) {
+            final GoogleConcurrencyLimiter limiter = limiter(initial, 1);
+            limiter.record(true, FAST);
+            limiter.record(true, SLOW);
+            assertTrue("Limit " + initial + " did not shrink", limiter.getLimit() < initial);
+            for (int i = 0; i < 50; i++) {
+                limiter.record(true, SLOW);
+            }
+            assertEquals(1, limiter.getLimit());
+        }
+    }
+
+    /** Slow queries shrink a large limit towards the minimum */
+    @Test
+    public void testLargeLimitShrinks() {
+        final GoogleConcurrencyLimiter limiter = limiter(32, 2);
+        limiter.record(true, FAST);
+        for (int i = 0; i < 10; i++) {
+            limiter.record(true, SLOW);
+        }
+        assertTrue(limiter.getLimit() < 16);
+    }
+
+    /** Fast queries grow the limit while it is in use */
+    @Test
+    public void testGrowsInUse() {
+        final GoogleConcurrencyLimiter limiter = limiter(4, 1);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(limiter.acquire());
+        }
+        for (int i = 0; i < 10; i++) {
+            limiter.record(true, FAST);
+        }
+        assertTrue(limiter.getLimit() > 4);
+    }
+
+    /** Fast queries do not grow a limit that is mostly unused */
+    @Test
+    public void testIdleDoesNotGrow() {
+        final GoogleConcurrencyLimiter limiter = limiter(4, 1);
+        for (int i = 0; i < 10; i++) {
+            limiter.record(true, FAST);
+        }
+        assertEquals(4, limiter.getLimit());
+    }
+
+    /** A failed query backs off by the backoff ratio */
+    @Test
+    public void testFailureBacksOff() {
+        final GoogleConcurrencyLimiter limiter = limiter(10, 1).setBackoffRatio(0.5);
+        limiter.initialize();
+        limiter.record(false, FAST);
+        assertEquals(5, limiter.getLimit());
+    }
+
+    /** Queries beyond the limit and the queue are rejected, and admitted again once permits are released */
+    @Test
+    public void testAcquireBeyondLimit() {
+        final GoogleConcurrencyLimiter limiter = limiter(2, 1).setQueueSize(0);
+        limiter.initialize();
+        assertTrue(limiter.acquire());
+        assertTrue(limiter.acquire());
+        assertFalse(limiter.acquire());
+        assertEquals(2, limiter.getInFlight());
+        limiter.release();
+        assertTrue(limiter.acquire());
+    }
+
+    /** A query waits for a permit released within the maximum wait */
+    @Test
+    public void testWaitForRelease() throws InterruptedException {
+        final GoogleConcurrencyLimiter limiter = limiter(1, 1).setQueueSize(1).setMaxWait(5000);
+        limiter.initialize();
+        assertTrue(limiter.acquire());
+        final Thread releaser = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                limiter.release();
+            }
+        });
+        releaser.start();
+        assertTrue(limiter.acquire());
+        releaser.join();
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    /**
+     * Build an initialized limiter
+     *
+     * @param initial the initial limit
+     * @param min the lowest limit
+     * @return the limiter
+     */
+    private static GoogleConcurrencyLimiter limiter(final int initial, final int min) {
+        final GoogleConcurrencyLimiter limiter = new GoogleConcurrencyLimiter().setInitialLimit(initial)
+                .setMinLimit(min).setMaxLimit(64);
+        limiter.initialize();
+        return limiter;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for {@link GoogleIdPrincipalSerializer} */
+public class GoogleIdPrincipalSerializerTest {
+    /** Principal serialized by versions before the compact format */
+    private static final String LEGACY = "{\"Google\":\"{\\\"subClaim\\\":\\\"1234567890\\\","
+            + "\\\"emailClaim\\\":\\\"user@example.org\\\",\\\"nameClaim\\\":\\\"A User\\\"}\"}";
+
+    /** The serializer under test */
+    private GoogleIdPrincipalSerializer serializer;
+
+    /** Build the serializer */
+    @Before
+    public void setUp() {
+        this.serializer = new GoogleIdPrincipalSerializer();
+    }
+
+    /** A principal with all claims survives a round trip */
+    @Test
+    public void testRoundTrip() throws IOException {
+        final GoogleIdPrincipal principal = new GoogleIdPrincipal("1234567890", "user@example.org", "A User");
+        principal.setHostedDomainClaim("example.org");
+        principal.setEmailVerifiedClaim(Boolean.FALSE);
+        principal.setPictureClaim("https://example.org/picture.png");
+        principal.setGivenNameClaim("A");
+        principal.setFamilyNameClaim("User");
+        principal.setLocaleClaim("en");
+
+        final String serialized = this.serializer.serialize(principal);
+        assertTrue(serialized.startsWith("{\"G2\":\"1234567890\""));
+        assertTrue(this.serializer.supports(serialized));
+
+        final GoogleIdPrincipal deserialized = this.serializer.deserialize(serialized);
+        assertEquals(principal, deserialized);
+        assertEquals("user@example.org", deserialized.getEmailClaim());
+        assertEquals("A User", deserialized.getNameClaim());
+        assertEquals("example.org", deserialized.getHostedDomainClaim());
+        assertEquals(Boolean.FALSE, deserialized.getEmailVerifiedClaim());
+        assertEquals("https://example.org/picture.png", deserialized.getPictureClaim());
+        assertEquals("A", deserialized.getGivenNameClaim());
+        assertEquals("User", deserialized.getFamilyNameClaim());
+        assertEquals("en", deserialized.getLocaleClaim());
+    }
+
+    /** Claims not asserted are neither written nor read back */
+    @Test
+    public void testMinimal() throws IOException {
+        final String serialized = this.serializer.serialize(new GoogleIdPrincipal("1234567890", null, null));
+        assertEquals("{\"G2\":\"1234567890\"}", serialized);
+
+        final GoogleIdPrincipal deserialized = this.serializer.deserialize(serialized);
+        assertEquals("1234567890", deserialized.getSubClaim());
+        assertNull(deserialized.getEmailClaim());
+        assertNull(deserialized.getNameClaim());
+        assertNull(deserialized.getEmailVerifiedClaim());
+        assertNull(deserialized.getLocaleClaim());
+    }
+
+    /** Claims needing escaping survive a round trip */
+    @Test
+    public void testEscaping() throws IOException {
+        final GoogleIdPrincipal principal = new GoogleIdPrincipal("1234567890", "user@example.org",
+                "A \"Quoted\" \\ User\u00e9");
+        assertEquals(principal.getNameClaim(),
+                this.serializer.deserialize(this.serializer.serialize(principal)).getNameClaim());
+    }
+
+    /** A principal serialized in the legacy format is still read */
+    @Test
+    public void testLegacy() throws IOException {
+        assertTrue(this.serializer.supports(LEGACY));
+
+        final GoogleIdPrincipal deserialized = this.serializer.deserialize(LEGACY);
+        assertEquals("1234567890", deserialized.getSubClaim());
+        assertEquals("user@example.org", deserialized.getEmailClaim());
+        assertEquals("A User", deserialized.getNameClaim());
+        assertNull(deserialized.getHostedDomainClaim());
+    }
+
+    /** A legacy principal written anew uses the compact format */
+    @Test
+    public void testLegacyRewritten() throws IOException {
+        final String serialized = this.serializer.serialize(this.serializer.deserialize(LEGACY));
+        assertTrue(serialized.startsWith("{\"G2\":"));
+        assertEquals(this.serializer.deserialize(LEGACY), this.serializer.deserialize(serialized));
+    }
+
+    /** Empty subjects yield no principal */
+    @Test
+    public void testEmpty() throws IOException {
+        assertNull(this.serializer.deserialize("{\"G2\":\"\"}"));
+        assertNull(this.serializer.deserialize("{\"Google\":\"\"}"));
+    }
+
+    /** Only values in one of the two formats are supported */
+    @Test
+    public void testSupports() {
+        assertTrue(this.serializer.supports("{\"G2\":\"1\"}"));
+        assertTrue(this.serializer.supports("{\"Google\":\"{}\"}"));
+        assertFalse(this.serializer.supports("{\"sub\":\"1\"}"));
+        assertFalse(this.serializer.supports("[\"G2\"]"));
+        assertFalse(this.serializer.supports("G2"));
+    }
+
+    /** A value that is not a JSON object is refused */
+    @Test(expected = IOException.class)
+    public void testNotAnObject() throws IOException {
+        this.serializer.deserialize("[\"G2\",\"1\"]");
+    }
+}
@@ -0,0 +1,277 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.common.io.BaseEncoding;
+
+/** Tests for {@link GoogleIdTokenVerifier} */
+public class GoogleIdTokenVerifierTest {
+    /** Key ID of the signing key */
+    private static final String KID = "key-1";
+
+    /** Client ID the tokens are issued to */
+    private static final String CLIENT_ID = "client.apps.googleusercontent.com";
+
+    /** Key pair Google signs with */
+    private static final KeyPair GOOGLE_KEYS = generateKeyPair();
+
+    /** Key pair unknown to the key cache */
+    private static final KeyPair OTHER_KEYS = generateKeyPair();
+
+    /** Encoder of token segments */
+    private static final BaseEncoding BASE64_URL = BaseEncoding.base64Url().omitPadding();
+
+    /** The verifier under test */
+    private GoogleIdTokenVerifier verifier;
+
+    /** Build the verifier over a key cache holding the Google key */
+    @Before
+    public void setUp() {
+        final GoogleJwksKeyCache keyCache = new GoogleJwksKeyCache() {
+            @Override
+            public PublicKey getKey(final String kid) {
+                return KID.equals(kid) ? GOOGLE_KEYS.getPublic() : null;
+            }
+        };
+        this.verifier = new GoogleIdTokenVerifier().setKeyCache(keyCache).setClockSkew(300);
+        this.verifier.initialize();
+    }
+
+    /** A token signed by Google for the client is accepted */
+    @Test
+    public void testValid() throws Exception {
+        this.verify(header("RS256", KID), payload("https://accounts.google.com", CLIENT_ID, now() + 3600, now()),
+                GOOGLE_KEYS);
+        this.verify(header("RS256", KID), payload("accounts.google.com", CLIENT_ID, now() + 3600, now()),
+                GOOGLE_KEYS);
+    }
+
+    /** A token signed with another algorithm is rejected, whatever its signature */
+    @Test(expected = IOException.class)
+    public void testWrongAlgorithm() throws Exception {
+        this.verify(header("HS256", KID), payload("accounts.google.com", CLIENT_ID, now() + 3600, now()),
+                GOOGLE_KEYS);
+    }
+
+    /** An unsigned token is rejected */
+    @Test(expected = IOException.class)
+    public void testNoAlgorithm() throws Exception {
+        final String token = BASE64_URL.encode(header("none", KID).getBytes(StandardCharsets.UTF_8)) + "."
+                + BASE64_URL.encode(payload("accounts.google.com", CLIENT_ID, now() + 3600, now())
+                        .getBytes(StandardCharsets.UTF_8)) + ".";
+        this.verify(token);
+    }
+
+    /** A token signed with a key Google does not publish is rejected */
+    @Test(expected = IOException.class)
+    public void testUnknownKey() throws Exception {
+        this.verify(header("RS256", "key-2"), payload("accounts.google.com", CLIENT_ID, now() + 3600, now()),
+                OTHER_KEYS);
+    }
+
+    /** A token without a key ID is rejected */
+    @Test(expected = IOException.class)
+    public void testNoKeyId() throws Exception {
+        this.verify("{\"alg\":\"RS256\"}", payload("accounts.google.com", CLIENT_ID, now() + 3600, now()),
+                GOOGLE_KEYS);
+    }
+
+    /** A token naming the Google key but signed with another is rejected */
+    @Test(expected = IOException.class)
+    public void testBadSignature() throws Exception {
+        this.verify(header("RS256", KID), payload("accounts.google.com", CLIENT_ID, now() + 3600, now()),
+                OTHER_KEYS);
+    }
+
+    /** A token whose claims were changed after signing is rejected */
+    @Test(expected = IOException.class)
+    public void testTamperedPayload() throws Exception {
+        final String token = sign(header("RS256", KID),
+                payload("accounts.google.com", "other-client", now() + 3600, now()), GOOGLE_KEYS);
+        final String[] segments = token.split("\\.");
+        this.verify(segments[0] + "." + BASE64_URL.encode(payload("accounts.google.com", CLIENT_ID, now() + 3600,
+                now()).getBytes(StandardCharsets.UTF_8)) + "." + segments[2]);
+    }
+
+    /** A token from another issuer is rejected */
+    @Test(expected = IOException.class)
+    public void testWrongIssuer() throws Exception {
+        this.verify(header("RS256", KID), payload("https://evil.example.org", CLIENT_ID, now() + 3600, now()),
+                GOOGLE_KEYS);
+    }
+
+    /** Only the configured issuers are accepted */
+    @Test(expected = IOException.class)
+    public void testConfiguredIssuers() throws Exception {
+        this.verifier.setIssuers(Collections.singleton("https://accounts.google.com"));
+        this.verify(header("RS256", KID), payload("accounts.google.com", CLIENT_ID, now() + 3600, now()),
+                GOOGLE_KEYS);
+    }
+
+    /** A token issued to another client is rejected */
+    @Test(expected = IOException.class)
+    public void testWrongAudience() throws Exception {
+        this.verify(header("RS256", KID), payload("accounts.google.com", "other-client", now() + 3600, now()),
+                GOOGLE_KEYS);
+    }
+
+    /** A token that expired longer ago than the clock skew is rejected */
+    @Test(expected = IOException.class)
+    public void testExpired() throws Exception {
+        this.verify(header("RS256", KID), payload("accounts.google.com", CLIENT_ID, now() - 301, now() - 3901),
+                GOOGLE_KEYS);
+    }
+
+    /** A token that expired within the clock skew is accepted */
+    @Test
+    public void testExpiredWithinSkew() throws Exception {
+        this.verify(header("RS256", KID), payload("accounts.google.com", CLIENT_ID, now() - 200, now() - 3800),
+                GOOGLE_KEYS);
+    }
+
+    /** A token without an expiry is rejected */
+    @Test(expected = IOException.class)
+    public void testNoExpiry() throws Exception {
+        this.verify(header("RS256", KID), "{\"iss\":\"accounts.google.com\",\"aud\":\"" + CLIENT_ID
+                + "\",\"sub\":\"1234567890\"}", GOOGLE_KEYS);
+    }
+
+    /** A token issued further in the future than the clock skew is rejected */
+    @Test(expected = IOException.class)
+    public void testIssuedInFuture() throws Exception {
+        this.verify(header("RS256", KID), payload("accounts.google.com", CLIENT_ID, now() + 3901, now() + 301),
+                GOOGLE_KEYS);
+    }
+
+    /** A token issued in the future within the clock skew is accepted */
+    @Test
+    public void testIssuedInFutureWithinSkew() throws Exception {
+        this.verify(header("RS256", KID), payload("accounts.google.com", CLIENT_ID, now() + 3800, now() + 200),
+                GOOGLE_KEYS);
+    }
+
+    /** A verifier without a key cache is refused */
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoKeyCache() {
+        new GoogleIdTokenVerifier().initialize();
+    }
+
+    /**
+     * Sign a token and verify it
+     *
+     * @param header the header JSON
+     * @param payload the payload JSON
+     * @param keys the key pair to sign with
+     * @throws Exception if the token is rejected
+     */
+    private void verify(final String header, final String payload, final KeyPair keys) throws Exception {
+        this.verify(sign(header, payload, keys));
+    }
+
+    /**
+     * Verify an encoded token the way the token exchange does
+     *
+     * @param token the encoded token
+     * @throws IOException if the token is rejected
+     */
+    private void verify(final String token) throws IOException {
+        final JwtSegmentDecoder jwt = new JwtSegmentDecoder(token);
+        final OidcIdToken idToken = new JacksonFactory().createJsonParser(jwt.openPayload(), StandardCharsets.UTF_8)
+                .parseAndClose(OidcIdToken.class);
+        this.verifier.verify(jwt, idToken, CLIENT_ID);
+    }
+
+    /**
+     * Build a header
+     *
+     * @param alg the algorithm
+     * @param kid the key ID
+     * @return the header JSON
+     */
+    private static String header(final String alg, final String kid) {
+        return "{\"alg\":\"" + alg + "\",\"kid\":\"" + kid + "\",\"typ\":\"JWT\"}";
+    }
+
+    /**
+     * Build a payload
+     *
+     * @param iss the issuer
+     * @param aud the audience
+     * @param exp the expiry time in seconds
+     * @param iat the issue time in seconds
+     * @return the payload JSON
+     */
+    private static String payload(final String iss, final String aud, final long exp, final long iat) {
+        return "{\"iss\":\"" + iss + "\",\"aud\":\"" + aud + "\",\"sub\":\"1234567890\",\"exp\":" + exp
+                + ",\"iat\":" + iat + "}";
+    }
+
+    /**
+     * Sign a token with RS256
+     *
+     * @param header the header JSON
+     * @param payload the payload JSON
+     * @param keys the key pair to sign with
+     * @return the encoded token
+     * @throws GeneralSecurityException if signing fails
+     */
+    private static String sign(final String header, final String payload, final KeyPair keys)
+            throws GeneralSecurityException {
+        final String signingInput = BASE64_URL.encode(header.getBytes(StandardCharsets.UTF_8)) + "."
+                + BASE64_URL.encode(payload.getBytes(StandardCharsets.UTF_8));
+        final Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(keys.getPrivate());
+        signature.update(signingInput.getBytes(StandardCharsets.US_ASCII));
+        return signingInput + "." + BASE64_URL.encode(signature.sign());
+    }
+
+    /**
+     * Get the current time
+     *
+     * @return the time in seconds
+     */
+    private static long now() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    /**
+     * Generate an RSA key pair
+     *
+     * @return the key pair
+     */
+    private static KeyPair generateKeyPair() {
+        try {
+            final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            return generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import org.opensaml.storage.StorageCapabilities;
+import org.opensaml.storage.StorageService;
+
+/** Tests for {@link GoogleReplayCache} */
+public class GoogleReplayCacheTest {
+
+    /** A value is accepted once, and only within its own context */
+    @Test
+    public void testDuplicate() {
+        final GoogleReplayCache cache = cache(600000, 6, 16384);
+        assertTrue(cache.checkAndRecord(GoogleReplayCache.CODE_CONTEXT, "4/code"));
+        assertFalse(cache.checkAndRecord(GoogleReplayCache.CODE_CONTEXT, "4/code"));
+        assertTrue(cache.checkAndRecord(GoogleReplayCache.STATE_CONTEXT, "4/code"));
+        assertFalse(cache.checkAndRecord(GoogleReplayCache.STATE_CONTEXT, "4/code"));
+    }
+
+    /** Distinct values are all accepted while the buckets have room */
+    @Test
+    public void testDistinct() {
+        final GoogleReplayCache cache = cache(600000, 6, 16384);
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(cache.checkAndRecord(GoogleReplayCache.CODE_CONTEXT, "4/code-" + i));
+        }
+        assertEquals(0, cache.getOverflowCount());
+    }
+
+    /** A value stays remembered after the bucket it was recorded in stops being the current one */
+    @Test
+    public void testRotation() throws InterruptedException {
+        final GoogleReplayCache cache = cache(300, 4, 1024);
+        assertTrue(cache.checkAndRecord(GoogleReplayCache.CODE_CONTEXT, "4/code"));
+        Thread.sleep(150);
+        assertFalse(cache.checkAndRecord(GoogleReplayCache.CODE_CONTEXT, "4/code"));
+    }
+
+    /** A value is forgotten once its bucket has been replaced, at most a bucket after the lifetime */
+    @Test
+    public void testExpiry() throws InterruptedException {
+        final GoogleReplayCache cache = cache(300, 4, 1024);
+        assertTrue(cache.checkAndRecord(GoogleReplayCache.CODE_CONTEXT, "4/code"));
+        Thread.sleep(500);
+        assertTrue(cache.checkAndRecord(GoogleReplayCache.CODE_CONTEXT, "4/code"));
+    }
+
+    /** Values beyond the room of a bucket are accepted and counted */
+    @Test
+    public void testOverflow() {
+        final GoogleReplayCache cache = cache(600000, 6, 1);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(cache.checkAndRecord(GoogleReplayCache.CODE_CONTEXT, "4/code-" + i));
+        }
+        assertTrue(cache.getOverflowCount() > 0);
+        assertTrue(cache.getOverflowCount() <= 1000 - 32);
+    }
+
+    /** A value recorded by one node is rejected by another sharing the storage service */
+    @Test
+    public void testStorageAcrossNodes() {
+        final MemoryStorage storage = new MemoryStorage(255);
+        final GoogleReplayCache node1 = cache(600000, 6, 1024).setStorageService(storage.proxy());
+        final GoogleReplayCache node2 = cache(600000, 6, 1024).setStorageService(storage.proxy());
+        assertTrue(node1.checkAndRecord(GoogleReplayCache.CODE_CONTEXT, "4/code"));
+        assertFalse(node2.checkAndRecord(GoogleReplayCache.CODE_CONTEXT, "4/code"));
+        assertTrue(node2.checkAndRecord(GoogleReplayCache.STATE_CONTEXT, "4/code"));
+    }
+
+    /** Values longer than the storage keys allow are stored under their hash */
+    @Test
+    public void testStorageLongValue() {
+        final MemoryStorage storage = new MemoryStorage(16);
+        final GoogleReplayCache cache = cache(600000, 6, 1024).setStorageService(storage.proxy());
+        final String value = "4/a-code-longer-than-sixteen-characters";
+        assertTrue(cache.checkAndRecord(GoogleReplayCache.CODE_CONTEXT, value));
+        final String key = storage.keys.iterator().next();
+        assertEquals(GoogleReplayCache.CODE_CONTEXT.length() + 1 + 64, key.length());
+        assertFalse(key.contains(value));
+    }
+
+    /** A value is accepted when the storage service fails, unless strict */
+    @Test
+    public void testStorageFailure() {
+        final MemoryStorage storage = new MemoryStorage(255);
+        storage.failing = true;
+        final GoogleReplayCache lenient = cache(600000, 6, 1024).setStorageService(storage.proxy());
+        assertTrue(lenient.checkAndRecord(GoogleReplayCache.CODE_CONTEXT, "4/code"));
+        final GoogleReplayCache strict = cache(600000, 6, 1024).setStorageService(storage.proxy()).setStrict(true);
+        assertFalse(strict.checkAndRecord(GoogleReplayCache.CODE_CONTEXT, "4/code"));
+    }
+
+    /** A value seen by this node is rejected without querying the storage service */
+    @Test
+    public void testLocalBeforeStorage() {
+        final MemoryStorage storage = new MemoryStorage(255);
+        final GoogleReplayCache cache = cache(600000, 6, 1024).setStorageService(storage.proxy());
+        assertTrue(cache.checkAndRecord(GoogleReplayCache.CODE_CONTEXT, "4/code"));
+        storage.failing = true;
+        assertFalse(cache.checkAndRecord(GoogleReplayCache.CODE_CONTEXT, "4/code"));
+        assertEquals(1, storage.creates);
+    }
+
+    /** A single bucket is refused */
+    @Test(expected = IllegalArgumentException.class)
+    public void testOneBucket() {
+        cache(600000, 1, 1024);
+    }
+
+    /**
+     * Build an initialized cache
+     *
+     * @param lifetime the lifetime in milliseconds
+     * @param buckets the number of buckets
+     * @param capacity the capacity of a bucket
+     * @return the cache
+     */
+    private static GoogleReplayCache cache(final long lifetime, final int buckets, final int capacity) {
+        final GoogleReplayCache cache = new GoogleReplayCache().setLifetime(lifetime).setBuckets(buckets)
+                .setCapacity(capacity);
+        cache.initialize();
+        return cache;
+    }
+
+    /** Storage service holding created keys in memory, implementing only what the cache uses */
+    private static final class MemoryStorage implements InvocationHandler {
+        /** Maximum key size */
+        private final int keySize;
+
+        /** Created keys, prefixed with their context */
+        private final Set<String> keys = new HashSet<String>();
+
+        /** Whether creating a record fails */
+        private volatile boolean failing;
+
+        /** Number of create calls */
+        private int creates;
+
+        /**
+         * Constructor
+         *
+         * @param maxKeySize maximum key size
+         */
+        private MemoryStorage(final int maxKeySize) {
+            this.keySize = maxKeySize;
+        }
+
+        /**
+         * Get a storage service backed by this storage
+         *
+         * @return the storage service
+         */
+        private StorageService proxy() {
+            return (StorageService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] {StorageService.class}, this);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public synchronized Object invoke(final Object proxy, final Method method, final Object[] args)
+                throws IOException {
+            if ("getId".equals(method.getName())) {
+                return "memory";
+            } else if ("getCapabilities".equals(method.getName())) {
+                return Proxy.newProxyInstance(getClass().getClassLoader(),
+                        new Class<?>[] {StorageCapabilities.class}, new InvocationHandler() {
+                            @Override
+                            public Object invoke(final Object capabilities, final Method size, final Object[] none) {
+                                return size.getReturnType() == long.class ? (Object) Long.valueOf(keySize)
+                                        : (Object) Integer.valueOf(keySize);
+                            }
+                        });
+            } else if ("create".equals(method.getName()) && args.length == 4) {
+                this.creates++;
+                if (this.failing) {
+                    throw new IOException("Storage unavailable");
+                }
+                return this.keys.add(args[0] + ":" + args[1]);
+            }
+            throw new UnsupportedOperationException(method.getName());
+        }
+    }
+}
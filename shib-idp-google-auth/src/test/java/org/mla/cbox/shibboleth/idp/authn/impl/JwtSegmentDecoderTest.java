@@ -0,0 +1,149 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.google.common.io.BaseEncoding;
+
+/** Tests for {@link JwtSegmentDecoder} */
+public class JwtSegmentDecoderTest {
+    /** Encoding of JWT segments */
+    private static final BaseEncoding BASE64URL = BaseEncoding.base64Url().omitPadding();
+
+    /** Segments of every length modulo 3 decode to the bytes they encode */
+    @Test
+    public void testRoundTrip() throws IOException {
+        for (int length = 0; length < 40; length++) {
+            final byte[] header = bytes(length, 7);
+            final byte[] payload = bytes(length + 1, 11);
+            final byte[] signature = bytes(length + 2, 13);
+            final String jwt = BASE64URL.encode(header) + "." + BASE64URL.encode(payload) + "."
+                    + BASE64URL.encode(signature);
+
+            final JwtSegmentDecoder decoder = new JwtSegmentDecoder(jwt);
+            assertArrayEquals(header, readFully(decoder.openHeader()));
+            assertArrayEquals(payload, readFully(decoder.openPayload()));
+            assertArrayEquals(signature, decoder.decodeSignature());
+            assertEquals(jwt.lastIndexOf('.'), decoder.getSigningInputLength());
+            assertEquals(jwt, decoder.getToken());
+        }
+    }
+
+    /** Reading into a buffer smaller than the segment returns the bytes in order */
+    @Test
+    public void testBufferedRead() throws IOException {
+        final byte[] payload = "{\"sub\":\"1234567890\",\"email\":\"user@example.org\"}"
+                .getBytes(StandardCharsets.UTF_8);
+        final JwtSegmentDecoder decoder = new JwtSegmentDecoder("e30." + BASE64URL.encode(payload) + ".c2ln");
+        final InputStream in = decoder.openPayload();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[5];
+        int read;
+        while ((read = in.read(buffer, 0, buffer.length)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        assertArrayEquals(payload, out.toByteArray());
+        assertEquals(-1, in.read());
+    }
+
+    /** A token without exactly three segments is refused */
+    @Test
+    public void testSegmentCount() {
+        for (final String jwt : new String[] {"", "e30", "e30.e30", "e30.e30.c2ln.c2ln", "..."}) {
+            try {
+                new JwtSegmentDecoder(jwt);
+                fail("Accepted " + jwt);
+            } catch (IOException e) {
+                continue;
+            }
+        }
+    }
+
+    /** Empty segments decode to nothing */
+    @Test
+    public void testEmptySegments() throws IOException {
+        final JwtSegmentDecoder decoder = new JwtSegmentDecoder("..");
+        assertEquals(-1, decoder.openHeader().read());
+        assertEquals(-1, decoder.openPayload().read());
+        assertEquals(0, decoder.decodeSignature().length);
+    }
+
+    /** Characters outside the base64url alphabet, including padding, are refused */
+    @Test
+    public void testInvalidCharacters() throws IOException {
+        for (final String segment : new String[] {"c2l+", "c2l/", "c2ln=", "c2l\u00e9", "c2 l"}) {
+            try {
+                new JwtSegmentDecoder("e30.e30." + segment).decodeSignature();
+                fail("Decoded signature " + segment);
+            } catch (IOException e) {
+                // expected
+            }
+            try {
+                readFully(new JwtSegmentDecoder("e30." + segment + ".c2ln").openPayload());
+                fail("Decoded payload " + segment);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    /** A segment whose length cannot result from base64url encoding is refused */
+    @Test(expected = IOException.class)
+    public void testInvalidLength() throws IOException {
+        new JwtSegmentDecoder("e30.e30.c2lnb").decodeSignature();
+    }
+
+    /**
+     * Build a byte array of a pattern covering all byte values
+     *
+     * @param length the length
+     * @param step the difference between consecutive bytes
+     * @return the bytes
+     */
+    private static byte[] bytes(final int length, final int step) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * step + 250);
+        }
+        return bytes;
+    }
+
+    /**
+     * Read a stream to its end
+     *
+     * @param in the stream
+     * @return the bytes read
+     * @throws IOException if the stream cannot be read
+     */
+    private static byte[] readFully(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int next;
+        while ((next = in.read()) >= 0) {
+            out.write(next);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,184 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+
+
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.BaseEncoding;
+
+/** Tests for {@link SignedStateCodec} */
+public class SignedStateCodecTest {
+    /** Shared key of 32 bytes */
+    private static final String KEY = BaseEncoding.base64().encode(new byte[] {
+        1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16,
+        17, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32, });
+
+    /** Flow execution key the tokens are bound to */
+    private static final String EXECUTION = "e1s1";
+
+    /** Session of the browser the tokens are bound to */
+    private static final String SESSION = "5A3F0C9E21B7D4E68F1A2B3C4D5E6F70";
+
+    /** The codec under test */
+    private SignedStateCodec codec;
+
+    /** Build the codec */
+    @Before
+    public void setUp() {
+        this.codec = new SignedStateCodec().setKey(KEY);
+        this.codec.initialize();
+    }
+
+    /** A token validates for the flow execution it was issued for */
+    @Test
+    public void testRoundTrip() {
+        final String token = this.codec.issue(EXECUTION, SESSION);
+        assertEquals(48, token.length());
+        assertTrue(this.codec.validate(token, EXECUTION, SESSION));
+    }
+
+    /** Each token carries a fresh nonce */
+    @Test
+    public void testTokensDiffer() {
+        assertFalse(this.codec.issue(EXECUTION, SESSION).equals(this.codec.issue(EXECUTION, SESSION)));
+    }
+
+    /** A token is bound to its flow execution */
+    @Test
+    public void testOtherFlowExecution() {
+        final String token = this.codec.issue(EXECUTION, SESSION);
+        assertFalse(this.codec.validate(token, "e2s1", SESSION));
+        assertFalse(this.codec.validate(token, null, SESSION));
+    }
+
+    /**
+     * A token and code taken from one browser fail in another at the same flow execution key,
+     * which every user's first Google login shares
+     */
+    @Test
+    public void testOtherSession() {
+        final String token = this.codec.issue(EXECUTION, SESSION);
+        assertFalse(this.codec.validate(token, EXECUTION, "0F1E2D3C4B5A69788796A5B4C3D2E1F0"));
+        assertFalse(this.codec.validate(token, EXECUTION, ""));
+    }
+
+    /** A callback without a session is rejected */
+    @Test
+    public void testNoSession() {
+        assertFalse(this.codec.validate(this.codec.issue(EXECUTION, SESSION), EXECUTION, null));
+    }
+
+    /** Characters cannot be moved between the flow execution key and the session */
+    @Test
+    public void testBoundary() {
+        final String token = this.codec.issue(EXECUTION, "AB");
+        assertTrue(this.codec.validate(token, EXECUTION, "AB"));
+        assertFalse(this.codec.validate(token, EXECUTION + "A", "B"));
+    }
+
+    /** A token is only valid under the key it was issued with */
+    @Test
+    public void testOtherKey() {
+        final SignedStateCodec other = new SignedStateCodec().setKey(BaseEncoding.base64().encode(new byte[32]));
+        other.initialize();
+        assertFalse(other.validate(this.codec.issue(EXECUTION, SESSION), EXECUTION, SESSION));
+    }
+
+    /** Changing any character of a token invalidates it */
+    @Test
+    public void testTampered() {
+        final String token = this.codec.issue(EXECUTION, SESSION);
+        for (int i = 0; i < token.length(); i++) {
+            final char replacement = token.charAt(i) == 'A' ? 'B' : 'A';
+            final String tampered = token.substring(0, i) + replacement + token.substring(i + 1);
+            assertFalse("Tampered at " + i, this.codec.validate(tampered, EXECUTION, SESSION));
+        }
+    }
+
+    /** Extending the expiry time invalidates the MAC */
+    @Test
+    public void testExtendedExpiry() {
+        final byte[] decoded = BaseEncoding.base64Url().omitPadding().decode(this.codec.issue(EXECUTION, SESSION));
+        decoded[2]++;
+        final String extended = BaseEncoding.base64Url().omitPadding().encode(decoded);
+        assertFalse(this.codec.validate(extended, EXECUTION, SESSION));
+    }
+
+    /** A token truncated or extended by any length is rejected */
+    @Test
+    public void testLength() {
+        final String token = this.codec.issue(EXECUTION, SESSION);
+        for (int length = 0; length < token.length(); length++) {
+            assertFalse("Truncated to " + length, this.codec.validate(token.substring(0, length), EXECUTION, SESSION));
+        }
+        assertFalse(this.codec.validate(token + "AAAA", EXECUTION, SESSION));
+    }
+
+    /** The whole truncated MAC is checked, not only a prefix of it */
+    @Test
+    public void testMacTail() {
+        final byte[] decoded = BaseEncoding.base64Url().omitPadding().decode(this.codec.issue(EXECUTION, SESSION));
+        decoded[decoded.length - 1] ^= 1;
+        assertFalse(this.codec.validate(BaseEncoding.base64Url().omitPadding().encode(decoded), EXECUTION, SESSION));
+    }
+
+    /** An expired token is rejected */
+    @Test
+    public void testExpired() {
+        final SignedStateCodec expiring = new SignedStateCodec().setKey(KEY).setLifetime(-1);
+        expiring.initialize();
+        final String token = expiring.issue(EXECUTION, SESSION);
+        assertFalse(expiring.validate(token, EXECUTION, SESSION));
+        assertFalse(this.codec.validate(token, EXECUTION, SESSION));
+    }
+
+    /** Values that are not tokens are rejected */
+    @Test
+    public void testMalformed() {
+        assertFalse(this.codec.validate(null, EXECUTION, SESSION));
+        assertFalse(this.codec.validate("", EXECUTION, SESSION));
+        assertFalse(this.codec.validate("not a state token", EXECUTION, SESSION));
+        assertFalse(this.codec.validate("+" + this.codec.issue(EXECUTION, SESSION).substring(1), EXECUTION, SESSION));
+        assertFalse(this.codec.validate(StateTokenGenerator.getDefault().generate(), EXECUTION, SESSION));
+    }
+
+    /** A key shorter than 32 bytes is refused */
+    @Test(expected = IllegalStateException.class)
+    public void testShortKey() {
+        new SignedStateCodec().setKey(BaseEncoding.base64().encode(new byte[16])).initialize();
+    }
+
+    /** No key is refused */
+    @Test(expected = IllegalStateException.class)
+    public void testNoKey() {
+        new SignedStateCodec().initialize();
+    }
+
+    /** The flow execution key is extracted from a flow execution URL */
+    @Test
+    public void testFlowExecutionKey() {
+        assertEquals(EXECUTION, SignedStateCodec.flowExecutionKey("/idp/profile/SAML2/Redirect/SSO?execution=e1s1"));
+        assertEquals(EXECUTION, SignedStateCodec.flowExecutionKey("/idp/profile/cas/login?a=b&execution=e1s1&c=d"));
+        assertNull(SignedStateCodec.flowExecutionKey("/idp/profile/SAML2/Redirect/SSO"));
+        assertNull(SignedStateCodec.flowExecutionKey(null));
+    }
+}